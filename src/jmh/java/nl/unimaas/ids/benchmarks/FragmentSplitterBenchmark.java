@@ -0,0 +1,88 @@
+package nl.unimaas.ids.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import nl.unimaas.ids.operations.transform.FragmentSplitter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Splitting label lists with the FragmentSplitter against the String.split/replaceAll loop it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FragmentSplitterBenchmark {
+	
+	@Param({ ",", ",\"", "|", ";;" })
+	String delimiter;
+	
+	@Param({ "\"" })
+	String quote;
+	
+	@Param({ "20" })
+	int fragmentsPerValue;
+	
+	private String[] values;
+	
+	private FragmentSplitter splitter;
+	
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		values = new String[1024];
+		for (int i = 0; i < values.length; i++) {
+			StringBuilder value = new StringBuilder();
+			for (int j = 0; j < fragmentsPerValue; j++) {
+				if (j > 0)
+					value.append(delimiter.equals(",\"") ? "," : delimiter);
+				value.append(quote).append("label ").append(random.nextInt(100000));
+				if (random.nextInt(4) == 0)
+					value.append(" (synonym)");
+				value.append(quote);
+			}
+			values[i] = value.toString();
+		}
+		splitter = new FragmentSplitter(delimiter, quote);
+	}
+	
+	@Benchmark
+	public void fragmentSplitter(Blackhole blackhole) {
+		for (String value : values)
+			splitter.split(value, blackhole::consume);
+	}
+	
+	// The loop previously used in Split.executeSplit
+	@Benchmark
+	public void stringSplitReplaceAll(Blackhole blackhole) {
+		String delim = delimiter.equals(",\"") ? ",(?=\")" : delimiter;
+		for (String value : values) {
+			String[] splitFragments = value.split(delim);
+			if (delim.equals("|"))
+				splitFragments = value.split(Pattern.quote(delim));
+			for (String splitFragment : splitFragments) {
+				if (!quote.equals(" "))
+					splitFragment = splitFragment.replaceAll("^" + quote + "|" + quote + "$", "");
+				if (splitFragment.indexOf("(") != -1)
+					splitFragment = splitFragment.substring(0, splitFragment.indexOf("("));
+				blackhole.consume(splitFragment);
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package nl.unimaas.ids.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import nl.unimaas.ids.operations.transform.PrefixInference;
+import nl.unimaas.ids.operations.transform.PrefixRegistry;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Prefix inference of the expand operation ("--uri-expansion infer") on generated cross references.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrefixInferenceBenchmark {
+	
+	@Param({ "3000" })
+	int registrySize;
+	
+	private String[] values;
+	
+	private IRI property;
+	
+	private PrefixInference inference;
+	
+	@Setup
+	public void setup() {
+		ValueFactory f = SimpleValueFactory.getInstance();
+		Map<String, String> registery = new HashMap<String, String>();
+		for (int i = 0; i < registrySize; i++)
+			registery.put("prefix" + i, "http://identifiers.org/prefix" + i + "/");
+		registery.put("drugbank", "http://identifiers.org/drugbank/");
+		registery.put("uniprot", "http://identifiers.org/uniprot/");
+		registery.put("kegg", "http://identifiers.org/kegg/");
+		registery.put("chebi", "http://identifiers.org/chebi/");
+		Map<String, String> prefixToReplace = new HashMap<String, String>();
+		prefixToReplace.put("uniprotkb", "uniprot");
+		prefixToReplace.put("keggcompound", "kegg");
+		prefixToReplace.put("chebi:chebi", "chebi");
+		
+		property = f.createIRI(SyntheticData.XREF_PROPERTY);
+		inference = new PrefixInference(f, new PrefixRegistry(registery, prefixToReplace), SyntheticData.XREF_PROPERTY, null);
+		
+		Random random = new Random(42);
+		values = new String[1024];
+		for (int i = 0; i < values.length; i++)
+			values[i] = SyntheticData.xref(random);
+	}
+	
+	@Benchmark
+	public void infer(Blackhole blackhole) {
+		for (String value : values)
+			blackhole.consume(inference.infer(property, value));
+	}
+}
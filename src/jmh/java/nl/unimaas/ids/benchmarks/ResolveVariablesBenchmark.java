@@ -0,0 +1,57 @@
+package nl.unimaas.ids.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import nl.unimaas.ids.operations.queries.AbstractSparqlQuery;
+import nl.unimaas.ids.operations.queries.SparqlUpdate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Replacement of the ?_input, ?_output and ?_serviceUrl variables in query files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class ResolveVariablesBenchmark {
+	
+	// Number of triple patterns in the generated query
+	@Param({ "10", "1000" })
+	int patterns;
+	
+	private String query;
+	
+	private AbstractSparqlQuery executor;
+	
+	@Setup
+	public void setup() {
+		StringBuilder sb = new StringBuilder("INSERT { GRAPH <?_output> {\n");
+		for (int i = 0; i < patterns; i++)
+			sb.append("  ?s <http://example.org/p").append(i).append("> ?o").append(i).append(" .\n");
+		sb.append("} } WHERE { SERVICE <?_serviceUrl> { GRAPH <?_input> {\n");
+		for (int i = 0; i < patterns; i++)
+			sb.append("  ?s <http://example.org/p").append(i).append("> ?o").append(i).append(" .\n");
+		sb.append("} } }");
+		query = sb.toString();
+		executor = new SparqlUpdate(null, "https://w3id.org/data2services/input",
+				"https://w3id.org/data2services/output", "http://localhost:7200/repositories/test");
+	}
+	
+	@Benchmark
+	public String resolveVariables() {
+		return executor.resolveVariables(query);
+	}
+}
@@ -0,0 +1,95 @@
+package nl.unimaas.ids.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import nl.unimaas.ids.operations.Expand;
+import nl.unimaas.ids.operations.Split;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.rdf4j.repository.Repository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end split and expand against an in-process repository, refilled before each run.
+ * The size of the data is set with -p entities=...
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class SplitExpandBenchmark {
+	
+	@Param({ "memory", "native" })
+	String store;
+	
+	@Param({ "10000" })
+	int entities;
+	
+	@Param({ "10" })
+	int labelsPerEntity;
+	
+	@Param({ "10000" })
+	int bufferSize;
+	
+	@Param({ "0" })
+	int uploadThreads;
+	
+	@Param({ "1" })
+	int parallelism;
+	
+	@Param({ "batches", "binary", "nquads" })
+	String uploadMode;
+	
+	private File dataDir;
+	
+	private Repository repo;
+	
+	@Setup(Level.Invocation)
+	public void setup() throws IOException {
+		dataDir = Files.createTempDirectory("sparql-operations-benchmark-").toFile();
+		repo = SyntheticData.createRepository(store, dataDir);
+		SyntheticData.load(repo, entities, labelsPerEntity, 42);
+	}
+	
+	@TearDown(Level.Invocation)
+	public void tearDown() throws IOException {
+		repo.shutDown();
+		FileUtils.deleteDirectory(dataDir);
+	}
+	
+	@Benchmark
+	public void split() throws Exception {
+		Split splitter = new Split(repo, null, bufferSize);
+		splitter.setUploadThreads(uploadThreads);
+		splitter.setParallelism(parallelism);
+		splitter.setUploadMode(uploadMode);
+		splitter.executeSplit(SyntheticData.CLASS, SyntheticData.LABEL_PROPERTY, ",", "\"", true);
+	}
+	
+	@Benchmark
+	public void expandWithPrefix() throws Exception {
+		Expand expander = new Expand(repo, null, bufferSize);
+		expander.setUploadThreads(uploadThreads);
+		expander.setParallelism(parallelism);
+		expander.setUploadMode(uploadMode);
+		expander.executeExpand(SyntheticData.CLASS, SyntheticData.XREF_PROPERTY, true,
+				"https://w3id.org/data2services/", null);
+	}
+}
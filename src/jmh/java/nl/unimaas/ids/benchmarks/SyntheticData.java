@@ -0,0 +1,78 @@
+package nl.unimaas.ids.benchmarks;
+
+import java.io.File;
+import java.util.Random;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.RDF;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.eclipse.rdf4j.sail.nativerdf.NativeStore;
+
+/**
+ * In-process repositories filled with generated entities to split and expand.
+ */
+public class SyntheticData {
+	
+	public static final String NAMESPACE = "http://example.org/benchmark/";
+	
+	public static final String CLASS = NAMESPACE + "Entity";
+	
+	public static final String LABEL_PROPERTY = NAMESPACE + "label";
+	
+	public static final String XREF_PROPERTY = NAMESPACE + "xref";
+	
+	public static final String[] XREF_PREFIXES = { "DrugBank", "UniProtKB", "KEGG Compound", "ChEBI:CHEBI", "PubChem Compound", "unknownsource" };
+	
+	// "memory" for a MemoryStore, "native" for a NativeStore in dataDir
+	public static Repository createRepository(String store, File dataDir) {
+		Repository repo;
+		if (store.equals("native")) {
+			repo = new SailRepository(new NativeStore(dataDir));
+		} else {
+			repo = new SailRepository(new MemoryStore());
+		}
+		repo.initialize();
+		return repo;
+	}
+	
+	// Each entity gets a label list of labelsPerEntity quoted labels and one cross reference
+	public static void load(Repository repo, int entities, int labelsPerEntity, long seed) {
+		Random random = new Random(seed);
+		ValueFactory f = repo.getValueFactory();
+		IRI entityClass = f.createIRI(CLASS);
+		IRI labelProperty = f.createIRI(LABEL_PROPERTY);
+		IRI xrefProperty = f.createIRI(XREF_PROPERTY);
+		try (RepositoryConnection conn = repo.getConnection()) {
+			conn.begin();
+			for (int i = 0; i < entities; i++) {
+				IRI entity = f.createIRI(NAMESPACE + "entity/" + i);
+				IRI graph = f.createIRI(NAMESPACE + "graph/" + (i % 4));
+				conn.add(entity, RDF.TYPE, entityClass, graph);
+				conn.add(entity, labelProperty, f.createLiteral(labelList(random, labelsPerEntity)), graph);
+				conn.add(entity, xrefProperty, f.createLiteral(xref(random)), graph);
+			}
+			conn.commit();
+		}
+	}
+	
+	public static String labelList(Random random, int labels) {
+		StringBuilder value = new StringBuilder();
+		for (int j = 0; j < labels; j++) {
+			if (j > 0)
+				value.append(',');
+			value.append("\"label ").append(random.nextInt(1000000));
+			if (random.nextInt(4) == 0)
+				value.append(" (synonym)");
+			value.append('"');
+		}
+		return value.toString();
+	}
+	
+	public static String xref(Random random) {
+		return XREF_PREFIXES[random.nextInt(XREF_PREFIXES.length)] + ":" + random.nextInt(100000);
+	}
+}
@@ -1,6 +1,13 @@
 package nl.unimaas.ids;
 
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import nl.unimaas.ids.operations.QueryOperations;
+
+import org.eclipse.rdf4j.IsolationLevels;
+
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 
@@ -15,15 +22,15 @@ public class CliOptions {
 	@Option(names= {"-f", "--filepath"}, description = "Path of file(s) to execute. Single file from URL or filepath. Multiple files from directory (query files must have .rq extension). YAML file.")
 	String inputFile = null;
 	
-	@Option(names= {"-op", "--operation"}, description = "SPARQL query operation (update, construct, select, split, expand). Default is update")
+	@Option(names= {"-op", "--operation"}, description = "SPARQL query operation (update, construct, select, split, expand, transform). Default is update")
 	QueryOperations queryOperation = QueryOperations.update;
 
 	@Option(names= {"--split-file-path"}, description = "Path of file that contains split rules")
 	String splitFile = null;
 	
 	// SPARQL endpoint params
-	@Option(names= {"-ep", "--sparql-endpoint"}, required = true, 
-			description = "URL of the SPARQL Endpoint to query or RDF4J Server. e.g. http://graphdb.dumontierlab.com/repositories/test or http://graphdb.dumontierlab.com")
+	@Option(names= {"-ep", "--sparql-endpoint"}, 
+			description = "URL of the SPARQL Endpoint to query or RDF4J Server. e.g. http://graphdb.dumontierlab.com/repositories/test or http://graphdb.dumontierlab.com. Required, except to start the daemon")
 	String endpointUrl = null;
 	
 	@Option(names= {"-rep", "--repositoryId"}, description = "Repository ID for RDF4J Server. E.g. test")
@@ -36,6 +43,58 @@ public class CliOptions {
 	String password = null;
 	
 	
+	// HTTP client params
+	@Option(names= {"--http-max-connections"}, description = "Maximum number of HTTP connections to the SPARQL endpoint, shared by all the threads. Default: 20")
+	int httpMaxConnections = 20;
+	
+	@Option(names= {"--http-connect-timeout"}, description = "Timeout in milliseconds to connect to the SPARQL endpoint, or to get a connection from the pool. Default: 30000")
+	int httpConnectTimeout = 30000;
+	
+	@Option(names= {"--http-socket-timeout"}, description = "Maximum time in milliseconds without receiving data from the SPARQL endpoint during a request. 0 for no timeout. Default: 0")
+	int httpSocketTimeout = 0;
+	
+	@Option(names= {"--http-keep-alive"}, description = "Maximum time in milliseconds an idle HTTP connection is kept for reuse. Default: 60000")
+	int httpKeepAlive = 60000;
+	
+	@Option(names= {"--http-buffer-size"}, description = "Size in bytes of the HTTP connection and socket buffers. Default: 65536")
+	int httpBufferSize = 65536;
+	
+	@Option(names= {"--http-no-compression"}, description = "Do not ask the SPARQL endpoint for gzip compressed responses")
+	boolean httpNoCompression = false;
+	
+	@Option(names= {"--http-retries"}, description = "Number of times a request is sent again after a connection error, a timeout or a 429, 502, 503 or 504 response. Updates and uploads are only sent again when the endpoint did not receive them, or answered 429 or 503. Default: 3")
+	int httpRetries = 3;
+	
+	@Option(names= {"--http-retry-delay"}, description = "Delay in milliseconds before the first retry of a request, doubled at each retry up to 60s, with a random jitter. A longer Retry-After of the endpoint is respected. Default: 1000")
+	long httpRetryDelay = 1000;
+	
+	@Option(names= {"--http-circuit-breaker-threshold"}, description = "Number of consecutive failed requests after which all the requests are paused, then one request checks whether the endpoint is back. 0 to never pause. Default: 5")
+	int httpCircuitBreakerThreshold = 5;
+	
+	@Option(names= {"--http-circuit-breaker-pause"}, description = "Number of seconds the requests are paused by the circuit breaker. Default: 30")
+	int httpCircuitBreakerPause = 30;
+	
+	@Option(names= {"--http-adaptive-concurrency"}, description = "Halve the number of concurrent requests when the endpoint is overloaded or its latency rises, and increase it again slowly, up to --http-max-connections")
+	boolean httpAdaptiveConcurrency = false;
+	
+	
+	// Daemon params
+	@Option(names= {"--daemon-port"}, description = "Start a daemon executing the jobs posted to http://ADDRESS:PORT/jobs, with the same options, in a warm JVM. The --http-* and --daemon-* options are only read when the daemon starts and apply to all the jobs. Default: 0, no daemon")
+	int daemonPort = 0;
+	
+	@Option(names= {"--daemon-address"}, description = "Address the daemon listens on. An address other than a loopback address needs --daemon-token. Default: 127.0.0.1, only local clients")
+	String daemonAddress = "127.0.0.1";
+	
+	@Option(names= {"--daemon-token"}, description = "Secret the clients of the daemon send in the header Authorization: Bearer TOKEN. Required when --daemon-address is not a loopback address")
+	String daemonToken = null;
+	
+	@Option(names= {"--daemon-jobs"}, description = "Number of jobs the daemon executes at the same time. Default: 2")
+	int daemonJobs = 2;
+	
+	@Option(names= {"--daemon-queue-size"}, description = "Number of jobs waiting for a free slot before the daemon refuses new jobs. Default: 100")
+	int daemonQueueSize = 100;
+	
+	
 	// SPARQL query variables
 	@Option(names= {"--var-inputGraph"}, description = "Input graph URI variable to replace in the SPARQL query. E.g.: https://w3id.org/data2services/input")
 	String varInputGraph;
@@ -46,6 +105,65 @@ public class CliOptions {
 	@Option(names= {"--var-serviceUrl"}, description = "A SPARQL service URL variable to replace in the SPARQL query. E.g.: http://localhost:7200/repositories/test")
 	String varServiceUrl;
 	
+	@Option(names= {"--var"}, description = "Value of a ?_name variable to replace in the SPARQL query, e.g. --var name=value. Can be repeated")
+	Map<String, String> variables = new LinkedHashMap<String, String>();
+	
+	
+	// Query files params
+	@Option(names= {"--query-parallelism"}, description = "Number of queries from a directory or YAML file executed at the same time, each on its own connection. Default: 1")
+	int queryParallelism = 1;
+	
+	@Option(names= {"--parallel-updates"}, description = "Allow --query-parallelism for the update operation, when the updates do not depend on each other")
+	boolean parallelUpdates = false;
+	
+	@Option(names= {"--construct-format"}, description = "Format of the CONSTRUCT results: turtle, ntriples, nquads or binary. Default: turtle")
+	String constructFormat = "turtle";
+	
+	@Option(names= {"--select-format"}, description = "Format of the SELECT results: tsv, csv, json or binary. Default: tsv")
+	String selectFormat = "tsv";
+	
+	@Option(names= {"--output-compression"}, description = "Compression of the SELECT and CONSTRUCT results: none or gzip. Default: none")
+	String outputCompression = "none";
+	
+	@Option(names= {"--page-size"}, description = "Fetch the SELECT and CONSTRUCT results, and the rows read by split without --split-delete, in pages of this number of rows with ORDER BY, LIMIT and OFFSET. Must not exceed the maximum number of results of the endpoint. 0 sends each query at once. Default: 0")
+	int pageSize = 0;
+	
+	@Option(names= {"--page-prefetch"}, description = "Number of pages fetched at the same time with --page-size, each on its own connection. Default: 2")
+	int pagePrefetch = 2;
+	
+	@Option(names= {"--page-retries"}, description = "Number of times a failed page is fetched again, waiting about 1s then twice longer each time. Default: 3")
+	int pageRetries = 3;
+	
+	@Option(names= {"--cache-dir"}, description = "Directory where the SELECT and CONSTRUCT results are cached, to not query the endpoint again for the same query and dataset version")
+	File cacheDir = null;
+	
+	@Option(names= {"--cache-ttl"}, description = "Number of seconds the cached results are used. 0 for results that do not expire. Default: 86400")
+	long cacheTtl = 86400;
+	
+	@Option(names= {"--cache-max-size"}, description = "Maximum size of --cache-dir in MB, the oldest results are deleted beyond. Default: 1024")
+	long cacheMaxSize = 1024;
+	
+	@Option(names= {"--dataset-version"}, description = "Version of the data queried, part of the key of the cached results, e.g. a release date. \"auto\" uses the number of statements of the repository")
+	String datasetVersion = null;
+	
+	@Option(names= {"--checkpoint-file"}, description = "File where the ids of the successful queries, or the progress of split and expand, are recorded")
+	File checkpointFile = null;
+	
+	@Option(names= {"--checkpoint-slices"}, description = "Number of slices of the subjects read by split, expand and transform with --checkpoint-file, each recorded once done. Each slice is a scan of the values filtered on the MD5 hash of the subject, more slices mean more work for the triplestore. At most 256. Default: --parallelism")
+	int checkpointSlices = 0;
+	
+	@Option(names= {"--resume"}, description = "Do not execute again the queries, split and expand slices recorded in --checkpoint-file by a previous run with the same options")
+	boolean resume = false;
+	
+	@Option(names= {"--progress-interval"}, description = "Print a progress line with the rows read, triples written, bytes transferred and latencies every N seconds. 0 for no progress line. Default: 0")
+	int progressInterval = 0;
+	
+	@Option(names= {"--metrics-file"}, description = "JSON file where the counters and latency histograms of the run are written at the end")
+	File metricsFile = null;
+	
+	@Option(names= {"--prometheus-file"}, description = "File where the metrics are written in the Prometheus text format at each progress line and at the end, e.g. for the textfile collector of the node exporter")
+	File prometheusFile = null;
+	
 	
 	// Split params
 	@Option(names= {"--split-delimiter"}, description = "Delimiter for the Split operation. Default: ','")
@@ -66,6 +184,42 @@ public class CliOptions {
 	@Option(names= {"--split-buffer-size"}, description = "Number of statements in the RDF4J model before loading it to the SPARQL endpoint. Default: 1000000")
 	int splitBufferSize = 1000000;
 	
+	@Option(names= {"--upload-threads"}, description = "Number of upload stages loading split/expand batches in parallel while the results are still read. 0 loads in the reading thread. Default: 0")
+	int uploadThreads = 0;
+	
+	@Option(names= {"--parallelism"}, description = "Number of disjoint slices of the subjects read in parallel by split and expand, each on its own connection. Default: 1")
+	int parallelism = 1;
+	
+	@Option(names= {"--push-down"}, description = "Run split and expand as a SPARQL UPDATE on the triplestore when the rule can be expressed in SPARQL (single char delimiter, fixed --uri-expansion), instead of loading the statements from the client")
+	boolean pushDown = false;
+	
+	@Option(names= {"--upload-queue-size"}, description = "Maximum number of full batches waiting for an upload stage. Default: 2")
+	int uploadQueueSize = 2;
+	
+	@Option(names= {"--upload-mode"}, description = "How split/expand statements are sent to a RDF4J server: batches of statements, or a binary or nquads stream written as the statements are generated. Default: batches")
+	String uploadMode = "batches";
+	
+	@Option(names= {"--commit-size"}, description = "Number of split/expand statements loaded in each transaction. 0 loads each batch of --split-buffer-size statements in one transaction. Default: 0")
+	int commitSize = 0;
+	
+	@Option(names= {"--isolation-level"}, description = "Isolation level of the split/expand loading transactions: NONE, READ_UNCOMMITTED, READ_COMMITTED, SNAPSHOT_READ, SNAPSHOT or SERIALIZABLE. Default: the triplestore default")
+	IsolationLevels isolationLevel = null;
+	
+	@Option(names= {"--commit-retries"}, description = "Number of times a failed loading or deleting transaction of split/expand is sent again, waiting about 1s then twice longer each time. Default: 3")
+	int commitRetries = 3;
+	
+	@Option(names= {"--delete-chunk-size"}, description = "Number of statements deleted in each transaction by --split-delete, --expand-delete and --rules-delete. Default: 10000")
+	int deleteChunkSize = 10000;
+	
+	@Option(names= {"--dedup"}, description = "Drop the split/expand statements already generated in the run instead of sending them again")
+	boolean dedup = false;
+	
+	@Option(names= {"--incremental-index"}, description = "Directory where split/expand/transform record the values read, to only transform the new or changed values on the next run and remove the statements generated from the values gone")
+	File incrementalIndex = null;
+	
+	@Option(names= {"--dedup-capacity"}, description = "Number of distinct statements checked by --dedup, 32 bytes each. Default: 1000000")
+	int dedupCapacity = 1000000;
+	
 	
 	// URI expansion params
 	
@@ -81,7 +235,23 @@ public class CliOptions {
 	@Option(names= {"--infer-expansion-prefix"}, description = "Used when --uri-expansion = \"infer\". The created prefixes will be expanded with this value as the new perdicate")
 	String inferExpansionPrefix = null;
 	
+	@Option(names= {"--prefix-registry"}, description = "File path or URL of the prefix registry used when --uri-expansion = \"infer\" and by expand-curie rules: JSON-LD context (e.g. http://prefix.cc/context), .csv or .tsv of prefix and namespace. Default: registry bundled in the jar")
+	String prefixRegistry = null;
+	
+	@Option(names= {"--expand-cache-size"}, description = "Number of values kept in the expansion cache of --uri-expansion = \"infer\" and of each expand-curie rule. 0 disables the cache. Default: 100000")
+	int expandCacheSize = 100000;
+	
+	@Option(names= {"--expand-cache-file"}, description = "File where the expansion cache is saved at the end of a run and read by the next run")
+	File expandCacheFile = null;
+	
 	@Option(names= {"--expand-delete"}, description = "Should we delete the original expanded statements? Default: false")
 	boolean expandDelete = false;
 	
+	// Transform params
+	@Option(names= {"--rules-file"}, description = "Tab separated file of transform rules: class, property and transformations (split:DELIMITER, trim[:QUOTE], strip-parenthetical, expand-prefix:NAMESPACE, expand-curie[:PREDICATE_NAMESPACE])")
+	String rulesFile = null;
+	
+	@Option(names= {"--rules-delete"}, description = "Should we delete the transformed statements? Default: false")
+	boolean rulesDelete = false;
+	
 }
@@ -0,0 +1,382 @@
+package nl.unimaas.ids;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.unimaas.ids.metrics.Metrics;
+
+import org.eclipse.rdf4j.repository.Repository;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import picocli.CommandLine;
+
+/**
+ * Executes the operations of CliOptions as jobs posted to a local HTTP API, in one warm JVM.
+ * The repositories are kept open between the jobs, with the pooled HTTP client and the prefix registries.
+ *
+ * POST /jobs with one option per line queues a job and returns its id, ?wait=true answers with its output once done.
+ * GET /jobs lists the jobs, GET /jobs/ID gives the status of a job and GET /jobs/ID/output its output.
+ * GET /metrics gives the metrics of all the jobs in the Prometheus text format.
+ * With a token, the requests without the header Authorization: Bearer TOKEN are refused.
+ */
+public class SparqlDaemon {
+
+	private static final int MAX_JOBS_KEPT = 1000;
+
+	public enum Status {
+		QUEUED, RUNNING, SUCCEEDED, FAILED
+	}
+
+	private String address;
+
+	private int port;
+
+	private int jobThreads;
+
+	// Required from the clients when not null
+	private String token = null;
+
+	private ThreadPoolExecutor executor;
+
+	private HttpServer server = null;
+
+	// Output of the jobs, one file per job
+	private File outputDirectory;
+
+	// Open repositories by endpoint, repository id and credentials
+	private Map<List<String>, Repository> repositories = new ConcurrentHashMap<List<String>, Repository>();
+
+	// Jobs by id, in the order they were posted
+	private Map<String, Job> jobs = new LinkedHashMap<String, Job>();
+
+	private AtomicLong jobCount = new AtomicLong();
+
+	public SparqlDaemon(String address, int port, int jobThreads, int queueSize) {
+		if (jobThreads < 1 || queueSize < 1)
+			throw new IllegalArgumentException("The daemon needs at least one job thread and a queue of at least one job");
+		this.address = address;
+		this.port = port;
+		this.jobThreads = jobThreads;
+		AtomicLong threadCount = new AtomicLong();
+		executor = new ThreadPoolExecutor(jobThreads, jobThreads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+				runnable -> new Thread(runnable, "daemon-job-" + threadCount.incrementAndGet()));
+	}
+
+	public void setToken(String token) {
+		this.token = token;
+	}
+
+	public void start() throws IOException {
+		// A job reads and writes the local files of its options, only trusted clients can post them
+		if (token == null && !InetAddress.getByName(address).isLoopbackAddress())
+			throw new IllegalArgumentException("The daemon listens on " + address + ", not a loopback address: set --daemon-token so only the clients knowing it can post jobs");
+		outputDirectory = Files.createTempDirectory("sparql-operations-jobs-").toFile();
+
+		server = HttpServer.create(new InetSocketAddress(address, port), 0);
+		server.createContext("/jobs", this::handleJobs);
+		server.createContext("/metrics", this::handleMetrics);
+		// Requests waiting for their job do not block the others
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "daemon-shutdown"));
+		System.out.println("Daemon listening on http://" + address + ":" + getPort() + "/jobs, "
+				+ jobThreads + " jobs at a time, output of the jobs in " + outputDirectory);
+	}
+
+	public int getPort() {
+		return server != null ? server.getAddress().getPort() : port;
+	}
+
+	public void stop() {
+		if (server != null)
+			server.stop(0);
+		executor.shutdownNow();
+		for (Repository repo : repositories.values())
+			repo.shutDown();
+		synchronized (jobs) {
+			for (Job job : jobs.values())
+				job.outputFile.delete();
+		}
+		outputDirectory.delete();
+	}
+
+	private Repository getRepository(CliOptions cli) throws Exception {
+		List<String> key = Arrays.asList(cli.endpointUrl, cli.repositoryId, cli.username, cli.password);
+		synchronized (repositories) {
+			Repository repo = repositories.get(key);
+			if (repo == null) {
+				repo = SparqlOperation.getRepository(cli);
+				repositories.put(key, repo);
+			}
+			return repo;
+		}
+	}
+
+	private void handleJobs(HttpExchange exchange) throws IOException {
+		try {
+			if (!isAuthorized(exchange))
+				return;
+			String[] path = exchange.getRequestURI().getPath().replaceAll("/+$", "").split("/");
+			String method = exchange.getRequestMethod();
+			if (path.length == 2 && method.equals("POST")) {
+				postJob(exchange);
+			} else if (path.length == 2 && method.equals("GET")) {
+				StringBuilder list = new StringBuilder();
+				synchronized (jobs) {
+					for (Job job : jobs.values())
+						list.append(job).append('\n');
+				}
+				respond(exchange, 200, list.toString());
+			} else if ((path.length == 3 || (path.length == 4 && path[3].equals("output"))) && method.equals("GET")) {
+				Job job;
+				synchronized (jobs) {
+					job = jobs.get(path[2]);
+				}
+				if (job == null)
+					respond(exchange, 404, "No job " + path[2] + "\n");
+				else if (path.length == 3)
+					respond(exchange, 200, job + "\n");
+				else
+					respondOutput(exchange, 200, job);
+			} else {
+				respond(exchange, 404, "Use POST /jobs, GET /jobs, GET /jobs/ID or GET /jobs/ID/output\n");
+			}
+		} catch (Exception e) {
+			respond(exchange, 500, e.toString() + "\n");
+		} finally {
+			exchange.close();
+		}
+	}
+
+	// The body has one option or value per line, e.g. -op, then select. Empty lines are ignored
+	private void postJob(HttpExchange exchange) throws Exception {
+		List<String> args = new ArrayList<String>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty())
+					args.add(line);
+			}
+		}
+		CliOptions cli = new CliOptions();
+		CommandLine.ParseResult parsed;
+		try {
+			parsed = new CommandLine(cli).parseArgs(args.toArray(new String[args.size()]));
+		} catch (CommandLine.ParameterException e) {
+			respond(exchange, 400, e.getMessage() + "\n");
+			return;
+		}
+		if (cli.help) {
+			ByteArrayOutputStream usage = new ByteArrayOutputStream();
+			CommandLine.usage(new CliOptions(), new PrintStream(usage, true, "UTF-8"));
+			respond(exchange, 200, usage.toString("UTF-8"));
+			return;
+		}
+		// The HTTP client and the daemon are configured once for all the jobs, these options of a job would be ignored
+		for (CommandLine.Model.OptionSpec option : parsed.matchedOptions()) {
+			String name = option.longestName();
+			if (name.startsWith("--http-") || name.startsWith("--daemon-")) {
+				respond(exchange, 400, "The option " + name + " of a job is not supported, the --http-* and --daemon-* options are set when the daemon starts\n");
+				return;
+			}
+			// The metrics of the jobs executed at the same time would be mixed
+			if (jobThreads > 1 && (name.equals("--metrics-file") || name.equals("--prometheus-file") || name.equals("--progress-interval"))) {
+				respond(exchange, 400, "The option " + name + " of a job needs --daemon-jobs 1, the jobs executed at the same time share the metrics. Use GET /metrics\n");
+				return;
+			}
+		}
+
+		Job job = new Job(String.valueOf(jobCount.incrementAndGet()), cli);
+		try {
+			executor.execute(job);
+		} catch (RejectedExecutionException e) {
+			respond(exchange, 503, "Job queue full, " + executor.getQueue().size() + " jobs waiting\n");
+			return;
+		}
+		addJob(job);
+
+		exchange.getResponseHeaders().set("Location", "/jobs/" + job.id);
+		exchange.getResponseHeaders().set("X-Job-Id", job.id);
+		if ("wait=true".equals(exchange.getRequestURI().getQuery())) {
+			job.done.await();
+			exchange.getResponseHeaders().set("X-Job-Status", job.status.toString());
+			respondOutput(exchange, job.status == Status.SUCCEEDED ? 200 : 500, job);
+		} else {
+			respond(exchange, 202, job.id + "\n");
+		}
+	}
+
+	// The oldest finished jobs are forgotten, with their output
+	private void addJob(Job job) {
+		synchronized (jobs) {
+			jobs.put(job.id, job);
+			Iterator<Job> oldest = jobs.values().iterator();
+			while (jobs.size() > MAX_JOBS_KEPT && oldest.hasNext()) {
+				Job old = oldest.next();
+				if (old.status == Status.SUCCEEDED || old.status == Status.FAILED) {
+					old.outputFile.delete();
+					oldest.remove();
+				}
+			}
+		}
+	}
+
+	private void handleMetrics(HttpExchange exchange) throws IOException {
+		try {
+			if (!isAuthorized(exchange))
+				return;
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+			respond(exchange, 200, Metrics.toPrometheus());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	// Answers 401 to a request without the token
+	private boolean isAuthorized(HttpExchange exchange) throws IOException {
+		if (token == null)
+			return true;
+		String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+		// Compared in constant time, the time taken does not tell how much of the token is right
+		if (authorization != null && MessageDigest.isEqual(authorization.getBytes(StandardCharsets.UTF_8),
+				("Bearer " + token).getBytes(StandardCharsets.UTF_8)))
+			return true;
+		exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+		respond(exchange, 401, "Missing or wrong token, send the header Authorization: Bearer TOKEN\n");
+		return false;
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		if (!exchange.getResponseHeaders().containsKey("Content-Type"))
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		// A length of 0 would be a chunked response
+		exchange.sendResponseHeaders(status, bytes.length > 0 ? bytes.length : -1);
+		exchange.getResponseBody().write(bytes);
+	}
+
+	// Output written by the job so far, nothing while it is queued
+	private static void respondOutput(HttpExchange exchange, int status, Job job) throws IOException {
+		job.flush();
+		long length = job.outputFile.length();
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, length > 0 ? length : -1);
+		if (length == 0)
+			return;
+		// The file may grow while it is sent
+		byte[] buffer = new byte[1 << 16];
+		try (InputStream in = Files.newInputStream(job.outputFile.toPath())) {
+			int read;
+			while (length > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, length))) > 0) {
+				exchange.getResponseBody().write(buffer, 0, read);
+				length -= read;
+			}
+		}
+	}
+
+	private class Job implements Runnable {
+
+		private String id;
+
+		private CliOptions cli;
+
+		private File outputFile;
+
+		// Given to the operation of the job, closed once it is done
+		private PrintStream output = null;
+
+		private volatile Status status = Status.QUEUED;
+
+		private long posted = System.currentTimeMillis();
+
+		private volatile long started = 0;
+
+		private volatile long finished = 0;
+
+		private volatile Throwable error = null;
+
+		private CountDownLatch done = new CountDownLatch(1);
+
+		Job(String id, CliOptions cli) {
+			this.id = id;
+			this.cli = cli;
+			this.outputFile = new File(outputDirectory, id + ".log");
+		}
+
+		@Override
+		public void run() {
+			started = System.currentTimeMillis();
+			status = Status.RUNNING;
+			try {
+				synchronized (this) {
+					output = new PrintStream(new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16), false, "UTF-8");
+				}
+				SparqlOperation.run(cli, getRepository(cli), output);
+				status = Status.SUCCEEDED;
+			} catch (Throwable e) {
+				error = e;
+				if (output != null)
+					e.printStackTrace(output);
+				status = Status.FAILED;
+			} finally {
+				finished = System.currentTimeMillis();
+				closeOutput();
+				System.out.println(this);
+				done.countDown();
+			}
+		}
+
+		synchronized void flush() {
+			if (output != null && finished == 0)
+				output.flush();
+		}
+
+		// What a thread started by the job still prints once it is closed is dropped
+		private synchronized void closeOutput() {
+			if (output == null)
+				return;
+			output.flush();
+			if (output.checkError())
+				System.out.println("Can not write the whole output of job " + id + " to " + outputFile);
+			output.close();
+		}
+
+		// Tab separated id, status, seconds waiting, seconds running, operation and error
+		@Override
+		public String toString() {
+			long now = System.currentTimeMillis();
+			double waiting = ((started > 0 ? started : now) - posted) / 1000.0;
+			double running = started > 0 ? ((finished > 0 ? finished : now) - started) / 1000.0 : 0;
+			return id + "\t" + status + "\t" + waiting + "\t" + running + "\t" + cli.queryOperation
+					+ (error != null ? "\t" + error.toString().replace('\n', ' ') : "");
+		}
+	}
+}
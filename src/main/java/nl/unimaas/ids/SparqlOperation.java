@@ -1,8 +1,15 @@
 package nl.unimaas.ids;
 
+import java.io.IOException;
+import java.io.PrintStream;
+
+import nl.unimaas.ids.metrics.MetricsReporter;
+import nl.unimaas.ids.operations.AbstractTransformOperation;
 import nl.unimaas.ids.operations.Expand;
 import nl.unimaas.ids.operations.QueryOperations;
 import nl.unimaas.ids.operations.Split;
+import nl.unimaas.ids.operations.Transform;
+import nl.unimaas.ids.operations.queries.ResultCache;
 import nl.unimaas.ids.operations.queries.SparqlExecutorInterface;
 import nl.unimaas.ids.operations.queries.SparqlQueryFactory;
 
@@ -20,10 +27,44 @@ public class SparqlOperation {
 			if(cli.help)
 				printUsageAndExit();
 			
-			Repository repo = SparqlRepositoryFactory.getRepository(cli.endpointUrl, cli.repositoryId, cli.username, cli.password);
-			
+			SparqlRepositoryFactory.configureHttpClient(cli.httpMaxConnections, cli.httpConnectTimeout, cli.httpSocketTimeout,
+					cli.httpKeepAlive, cli.httpBufferSize, !cli.httpNoCompression);
+			SparqlRepositoryFactory.configureResilience(cli.httpRetries, cli.httpRetryDelay, cli.httpCircuitBreakerThreshold,
+					cli.httpCircuitBreakerPause, cli.httpAdaptiveConcurrency);
+			if (cli.daemonPort > 0) {
+				// The jobs are executed until the JVM is stopped
+				SparqlDaemon daemon = new SparqlDaemon(cli.daemonAddress, cli.daemonPort, cli.daemonJobs, cli.daemonQueueSize);
+				daemon.setToken(cli.daemonToken);
+				daemon.start();
+				return;
+			}
+			run(cli, getRepository(cli));
+		} catch (Exception e) {
+			printUsageAndExit(e);
+		}
+	}
+	
+	static Repository getRepository(CliOptions cli) throws Exception {
+		if (cli.endpointUrl == null)
+			throw new IllegalArgumentException("Missing required option '--sparql-endpoint'");
+		return SparqlRepositoryFactory.getRepository(cli.endpointUrl, cli.repositoryId, cli.username, cli.password);
+	}
+	
+	public static void run(CliOptions cli, Repository repo) throws Exception {
+		run(cli, repo, System.out);
+	}
+	
+	/**
+	 * Execute the operation of the options on the repository, printing the progress and the results without output file to out.
+	 * Throws instead of exiting, also used for the jobs of the daemon.
+	 */
+	public static void run(CliOptions cli, Repository repo, PrintStream out) throws Exception {
+		// The metrics are written when the operation is done, or failed
+		try (MetricsReporter reporter = new MetricsReporter(cli.progressInterval, cli.metricsFile, cli.prometheusFile, out)) {
+			reporter.start();
 			if (cli.queryOperation == QueryOperations.split) {
 				Split splitter = new Split(repo, cli.varOutputGraph, cli.splitBufferSize);
+				configureTransform(splitter, cli, out);
 				
 				if(cli.splitFile != null) {
 					splitter.executeSplitFromFile(cli.splitFile, cli.splitDelete);
@@ -33,12 +74,40 @@ public class SparqlOperation {
 			
 			}else if (cli.queryOperation == QueryOperations.expand) {
 				Expand expanner = new Expand(repo, cli.varOutputGraph, cli.splitBufferSize);
+				configureTransform(expanner, cli, out);
+				expanner.setPrefixRegistry(cli.prefixRegistry);
+				expanner.setExpandCacheSize(cli.expandCacheSize);
+				expanner.setExpandCacheFile(cli.expandCacheFile);
 				expanner.executeExpand(cli.expandClass, cli.expandProperty, cli.expandDelete, cli.uriExpansion, cli.inferExpansionPrefix);							
+			} else if (cli.queryOperation == QueryOperations.transform) {
+				Transform transform = new Transform(repo, cli.varOutputGraph, cli.splitBufferSize);
+				configureTransform(transform, cli, out);
+				transform.setPrefixRegistry(cli.prefixRegistry);
+				transform.setExpandCacheSize(cli.expandCacheSize);
+				transform.executeRulesFile(cli.rulesFile, cli.rulesDelete);
 			} else {
 				// Execute SPARQL query operations
-				System.out.println("Performing operation: " + cli.queryOperation.toString());
+				out.println("Performing operation: " + cli.queryOperation.toString());
 				SparqlExecutorInterface sparqlExecutor = SparqlQueryFactory.getSparqlExecutor(cli.queryOperation, repo, 
 						cli.varInputGraph, cli.varOutputGraph, cli.varServiceUrl);
+				sparqlExecutor.setOutput(out);
+				sparqlExecutor.setQueryParallelism(cli.queryParallelism);
+				sparqlExecutor.setParallelUpdates(cli.parallelUpdates);
+				sparqlExecutor.setCheckpoint(cli.checkpointFile, cli.resume);
+				sparqlExecutor.setConstructFormat(cli.constructFormat);
+				sparqlExecutor.setSelectFormat(cli.selectFormat);
+				sparqlExecutor.setOutputCompression(cli.outputCompression);
+				sparqlExecutor.setVariables(cli.variables);
+				sparqlExecutor.setPagination(cli.pageSize, cli.pagePrefetch, cli.pageRetries);
+				if (cli.cacheDir != null) {
+					boolean probe = "auto".equals(cli.datasetVersion);
+					ResultCache resultCache = new ResultCache(cli.cacheDir, cli.cacheTtl, cli.cacheMaxSize * 1024 * 1024,
+							cli.endpointUrl, cli.repositoryId, probe ? null : cli.datasetVersion);
+					resultCache.setOutput(out);
+					if (probe)
+						resultCache.probeVersion(repo);
+					sparqlExecutor.setResultCache(resultCache);
+				}
 				if (cli.sparqlQuery != null) {
 					// Execute SPARQL query string passed to -sp
 					// TODO: Properly get select results using asList https://rdf4j.eclipse.org/documentation/programming/repository/
@@ -49,11 +118,29 @@ public class SparqlOperation {
 					sparqlExecutor.executeFiles(cli.inputFile);
 				}
 			}
-		} catch (Exception e) {
-			printUsageAndExit(e);
+			out.println("HTTP connection pool: " + SparqlRepositoryFactory.getPoolStats());
 		}
 	}
 	
+	private static void configureTransform(AbstractTransformOperation operation, CliOptions cli, PrintStream out) throws IOException {
+		// Before the checkpoint, which prints when resuming
+		operation.setOutput(out);
+		operation.setUploadThreads(cli.uploadThreads);
+		operation.setUploadQueueSize(cli.uploadQueueSize);
+		operation.setParallelism(cli.parallelism);
+		operation.setPushDown(cli.pushDown);
+		operation.setCheckpoint(cli.checkpointFile, cli.resume);
+		operation.setCheckpointSlices(cli.checkpointSlices);
+		operation.setCommitSize(cli.commitSize);
+		operation.setIsolationLevel(cli.isolationLevel);
+		operation.setCommitRetries(cli.commitRetries);
+		operation.setUploadMode(cli.uploadMode);
+		operation.setDedupCapacity(cli.dedup ? cli.dedupCapacity : 0);
+		operation.setIncrementalIndex(cli.incrementalIndex);
+		operation.setDeleteChunkSize(cli.deleteChunkSize);
+		operation.setPagination(cli.pageSize, cli.pagePrefetch, cli.pageRetries);
+	}
+	
 	private static void printUsageAndExit() {
 		printUsageAndExit(null);
 	}
@@ -1,19 +1,196 @@
 package nl.unimaas.ids;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
 
+import nl.unimaas.ids.http.CircuitBreaker;
+import nl.unimaas.ids.http.ConcurrencyLimiter;
+import nl.unimaas.ids.http.ResilientExec;
+import nl.unimaas.ids.http.RetryPolicy;
+import nl.unimaas.ids.metrics.Counter;
+import nl.unimaas.ids.metrics.Metrics;
+
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.io.output.ProxyOutputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.pool.PoolStats;
+import org.eclipse.rdf4j.http.client.SharedHttpClientSessionManager;
 import org.eclipse.rdf4j.repository.Repository;
 import org.eclipse.rdf4j.repository.http.HTTPRepository;
 import org.eclipse.rdf4j.repository.sparql.SPARQLRepository;
 
 public class SparqlRepositoryFactory {
 	
+	// HTTP client shared by all the repositories, built on first use
+	private static PoolingHttpClientConnectionManager connectionManager = null;
+	private static SharedHttpClientSessionManager sessionManager = null;
+	
+	private static int maxConnections = 20;
+	private static int connectTimeout = 30000;
+	private static int socketTimeout = 0;
+	private static int keepAlive = 60000;
+	private static int bufferSize = 65536;
+	private static boolean compression = true;
+	
+	private static int retries = 3;
+	private static long retryDelay = 1000;
+	private static int circuitBreakerThreshold = 5;
+	private static int circuitBreakerPause = 30;
+	private static boolean adaptiveConcurrency = false;
+	
+	/**
+	 * Settings of the HTTP client, used by the repositories created after the call.
+	 * Timeouts and keep-alive in milliseconds, 0 for no socket timeout.
+	 */
+	public static synchronized void configureHttpClient(int maxConnections, int connectTimeout, int socketTimeout,
+			int keepAlive, int bufferSize, boolean compression) {
+		SparqlRepositoryFactory.maxConnections = maxConnections;
+		SparqlRepositoryFactory.connectTimeout = connectTimeout;
+		SparqlRepositoryFactory.socketTimeout = socketTimeout;
+		SparqlRepositoryFactory.keepAlive = keepAlive;
+		SparqlRepositoryFactory.bufferSize = bufferSize;
+		SparqlRepositoryFactory.compression = compression;
+		sessionManager = null;
+	}
+	
+	/**
+	 * Retries of the requests after a transient failure, the first one after about retryDelay milliseconds.
+	 * The requests are paused for circuitBreakerPause seconds after circuitBreakerThreshold consecutive failures, 0 to never pause them.
+	 * With adaptiveConcurrency, the number of concurrent requests is reduced when the endpoint is overloaded.
+	 */
+	public static synchronized void configureResilience(int retries, long retryDelay, int circuitBreakerThreshold,
+			int circuitBreakerPause, boolean adaptiveConcurrency) {
+		SparqlRepositoryFactory.retries = retries;
+		SparqlRepositoryFactory.retryDelay = retryDelay;
+		SparqlRepositoryFactory.circuitBreakerThreshold = circuitBreakerThreshold;
+		SparqlRepositoryFactory.circuitBreakerPause = circuitBreakerPause;
+		SparqlRepositoryFactory.adaptiveConcurrency = adaptiveConcurrency;
+		sessionManager = null;
+	}
+	
+	// Leased, pending and available connections of the pool, null before the first repository
+	public static synchronized PoolStats getPoolStats() {
+		return connectionManager != null ? connectionManager.getTotalStats() : null;
+	}
+	
+	private static synchronized SharedHttpClientSessionManager getSessionManager() {
+		if (sessionManager == null) {
+			connectionManager = new PoolingHttpClientConnectionManager();
+			// All the requests go to the same endpoint
+			connectionManager.setMaxTotal(maxConnections);
+			connectionManager.setDefaultMaxPerRoute(maxConnections);
+			connectionManager.setDefaultConnectionConfig(ConnectionConfig.custom().setBufferSize(bufferSize).build());
+			connectionManager.setDefaultSocketConfig(SocketConfig.custom()
+					.setSoKeepAlive(true)
+					.setTcpNoDelay(true)
+					.setRcvBufSize(bufferSize)
+					.setSndBufSize(bufferSize)
+					.build());
+			
+			RetryPolicy retryPolicy = new RetryPolicy(retries, retryDelay);
+			CircuitBreaker circuitBreaker = new CircuitBreaker(circuitBreakerThreshold, circuitBreakerPause);
+			ConcurrencyLimiter limiter = adaptiveConcurrency ? new ConcurrencyLimiter(maxConnections) : null;
+			HttpClientBuilder builder = new HttpClientBuilder() {
+				// Each attempt goes through the interceptors
+				@Override
+				protected ClientExecChain decorateProtocolExec(ClientExecChain protocolExec) {
+					return new ResilientExec(protocolExec, retryPolicy, circuitBreaker, limiter);
+				}
+			}
+					.useSystemProperties()
+					// Retried by ResilientExec
+					.disableAutomaticRetries()
+					.setConnectionManager(connectionManager)
+					.setDefaultRequestConfig(RequestConfig.custom()
+							.setConnectTimeout(connectTimeout)
+							.setConnectionRequestTimeout(connectTimeout)
+							.setSocketTimeout(socketTimeout)
+							.build())
+					// Reuse a connection as long as the server allows it, at most keepAlive
+					.setKeepAliveStrategy((response, context) -> {
+						long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+						return duration > 0 ? Math.min(duration, keepAlive) : keepAlive;
+					})
+					.evictExpiredConnections()
+					.evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS)
+					// Count the bytes sent, and received before the decompression of the response
+					.addInterceptorFirst((HttpRequestInterceptor) (request, context) -> {
+						Metrics.HTTP_REQUESTS.inc();
+						if (request instanceof HttpEntityEnclosingRequest) {
+							HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) request;
+							// Already counted by a previous attempt
+							if (entityRequest.getEntity() != null && !(entityRequest.getEntity() instanceof CountingEntity))
+								entityRequest.setEntity(new CountingEntity(entityRequest.getEntity(), Metrics.BYTES_SENT));
+						}
+					})
+					.addInterceptorFirst((HttpResponseInterceptor) (response, context) -> {
+						if (response.getEntity() != null)
+							response.setEntity(new CountingEntity(response.getEntity(), Metrics.BYTES_RECEIVED));
+					});
+			if (!compression)
+				builder.disableContentCompression();
+			CloseableHttpClient httpClient = builder.build();
+			
+			sessionManager = new SharedHttpClientSessionManager();
+			sessionManager.setHttpClient(httpClient);
+		}
+		return sessionManager;
+	}
+	
+	// Adds the bytes of the entity read or written to the counter
+	private static class CountingEntity extends HttpEntityWrapper {
+		
+		private Counter bytes;
+		
+		CountingEntity(HttpEntity entity, Counter bytes) {
+			super(entity);
+			this.bytes = bytes;
+		}
+		
+		@Override
+		public InputStream getContent() throws IOException {
+			return new ProxyInputStream(super.getContent()) {
+				@Override
+				protected void afterRead(int n) {
+					if (n > 0)
+						bytes.add(n);
+				}
+			};
+		}
+		
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			super.writeTo(new ProxyOutputStream(out) {
+				@Override
+				protected void beforeWrite(int n) {
+					bytes.add(n);
+				}
+			});
+		}
+	}
+	
 	// Try to load HTTPRepository, load SPARQLRepository if fail
 	public static Repository getRepository(String endpointUrl, String repositoryId, String username, String password) throws SQLException, ClassNotFoundException {
 		if (repositoryId != null) {
 			// If RDF4J repository ID is provided we loaded using it instead of the repository URL
 			// It allows to do select and update on same repo (with URL you have the repo and repo/statements for update)
 			HTTPRepository httpRepo = new HTTPRepository(endpointUrl, repositoryId);
+			httpRepo.setHttpClientSessionManager(getSessionManager());
         	httpRepo.setUsernameAndPassword(username, password);
         	httpRepo.initialize();
         	return httpRepo;
@@ -24,12 +201,14 @@ public class SparqlRepositoryFactory {
 				repositoryId = endpointUrl.substring(endpointUrl.indexOf("/repositories/") + 14, endpointUrl.indexOf("/statements"));
 				endpointUrl = endpointUrl.substring(0, endpointUrl.indexOf("/repositories/"));
 				HTTPRepository httpRepo = new HTTPRepository(endpointUrl, repositoryId);
+				httpRepo.setHttpClientSessionManager(getSessionManager());
 	        	httpRepo.setUsernameAndPassword(username, password);
 	        	httpRepo.initialize();
 	        	return httpRepo;
 			} else {
 				System.out.println("Triplestore is not a RDF4J server, using SPARQLRepository instead of HTTPRepository");
 				SPARQLRepository sparqlRepo = new SPARQLRepository(endpointUrl);
+				sparqlRepo.setHttpClientSessionManager(getSessionManager());
 	   	 		sparqlRepo.setUsernameAndPassword(username, password);
 	   	 		sparqlRepo.initialize();
 	   	 		return sparqlRepo;
@@ -37,4 +216,4 @@ public class SparqlRepositoryFactory {
 			//} catch (IllegalArgumentException e) {
 		}
 	} 
-}
\ No newline at end of file
+}
@@ -0,0 +1,74 @@
+package nl.unimaas.ids.http;
+
+import nl.unimaas.ids.metrics.Metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pauses all the requests to the endpoint after a number of consecutive failures, instead of each thread retrying on its own.
+ * Once the pause is over a single request is let through: if it succeeds all the requests resume, otherwise the pause starts again.
+ */
+public class CircuitBreaker {
+
+	private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class.getName());
+
+	private enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private int threshold;
+
+	private long pauseMillis;
+
+	private State state = State.CLOSED;
+
+	private int failures = 0;
+
+	private long openUntil = 0;
+
+	/**
+	 * Open after threshold consecutive failures, 0 to never pause the requests.
+	 */
+	public CircuitBreaker(int threshold, int pauseSeconds) {
+		this.threshold = threshold;
+		this.pauseMillis = pauseSeconds * 1000L;
+	}
+
+	// Blocks while the requests are paused, or while the request checking the endpoint is in progress
+	public synchronized void acquire() throws InterruptedException {
+		while (true) {
+			if (state == State.CLOSED)
+				return;
+			if (state == State.OPEN) {
+				long wait = openUntil - System.currentTimeMillis();
+				if (wait <= 0) {
+					state = State.HALF_OPEN;
+					logger.info("Checking if the SPARQL endpoint is back");
+					return;
+				}
+				wait(wait);
+			} else {
+				wait();
+			}
+		}
+	}
+
+	public synchronized void onSuccess() {
+		failures = 0;
+		if (state != State.CLOSED) {
+			state = State.CLOSED;
+			logger.info("SPARQL endpoint back, resuming the requests");
+			notifyAll();
+		}
+	}
+
+	public synchronized void onFailure() {
+		failures++;
+		if (threshold <= 0 || (state == State.CLOSED && failures < threshold) || state == State.OPEN)
+			return;
+		state = State.OPEN;
+		openUntil = System.currentTimeMillis() + pauseMillis;
+		Metrics.CIRCUIT_BREAKER_OPENS.inc();
+		logger.warn(failures + " consecutive failed requests, pausing the requests to the SPARQL endpoint for " + (pauseMillis / 1000) + "s");
+		notifyAll();
+	}
+}
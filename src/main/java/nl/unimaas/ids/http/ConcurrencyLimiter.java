@@ -0,0 +1,79 @@
+package nl.unimaas.ids.http;
+
+import nl.unimaas.ids.metrics.Metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of requests waiting for a response of the endpoint, adapted with AIMD:
+ * the limit grows by 1 after a limit of successful requests, and is halved when the endpoint is overloaded,
+ * or when the recent latency gets above twice the usual latency.
+ * The limit only applies until the response starts, the results streamed afterwards do not hold it.
+ */
+public class ConcurrencyLimiter {
+
+	private static final Logger logger = LoggerFactory.getLogger(ConcurrencyLimiter.class.getName());
+
+	// Requests before the latency is compared
+	private static final int WARMUP_REQUESTS = 20;
+
+	private int maxLimit;
+
+	private double limit;
+
+	private int inFlight = 0;
+
+	private long requests = 0;
+
+	// Moving averages of the latency in nanoseconds, over the last few requests and over the last hundred
+	private double recentLatency = 0;
+
+	private double usualLatency = 0;
+
+	// nanoTime of the last decrease, null before the first one
+	private Long lastDecrease = null;
+
+	public ConcurrencyLimiter(int maxLimit) {
+		this.maxLimit = Math.max(1, maxLimit);
+		this.limit = this.maxLimit;
+	}
+
+	public synchronized void acquire() throws InterruptedException {
+		while (inFlight >= (int) limit)
+			wait();
+		inFlight++;
+	}
+
+	// Latency until the response started, overloaded for a 429, 502, 503 or 504 response, or a connection error
+	public synchronized void release(long latencyNanos, boolean overloaded) {
+		inFlight--;
+		if (overloaded) {
+			decrease("the endpoint is overloaded");
+		} else {
+			requests++;
+			recentLatency = requests == 1 ? latencyNanos : 0.7 * recentLatency + 0.3 * latencyNanos;
+			usualLatency = requests == 1 ? latencyNanos : 0.99 * usualLatency + 0.01 * latencyNanos;
+			if (requests > WARMUP_REQUESTS && recentLatency > 2 * usualLatency)
+				decrease("the latency rose to " + Math.round(recentLatency / 1e6) + "ms");
+			else if (limit < maxLimit)
+				limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+		notifyAll();
+	}
+
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	// At most once per usual latency, the requests in progress report the same overload
+	private void decrease(String reason) {
+		long now = System.nanoTime();
+		if (limit <= 1 || (lastDecrease != null && now - lastDecrease < Math.max(usualLatency, 1e9)))
+			return;
+		lastDecrease = now;
+		limit = Math.max(1, limit / 2);
+		Metrics.CONCURRENCY_DECREASES.inc();
+		logger.warn("Concurrent requests limited to " + (int) limit + ", " + reason);
+	}
+}
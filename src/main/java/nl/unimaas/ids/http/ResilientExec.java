@@ -0,0 +1,123 @@
+package nl.unimaas.ids.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import nl.unimaas.ids.metrics.Metrics;
+
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends each request to the endpoint through the circuit breaker and the concurrency limiter,
+ * and sends it again after a transient failure allowed by the retry policy.
+ * Each attempt goes through the interceptors of the client, so it is counted in the metrics.
+ */
+public class ResilientExec implements ClientExecChain {
+
+	private static final Logger logger = LoggerFactory.getLogger(ResilientExec.class.getName());
+
+	private ClientExecChain next;
+
+	private RetryPolicy retryPolicy;
+
+	private CircuitBreaker circuitBreaker;
+
+	// null when the number of requests is only limited by the connection pool
+	private ConcurrencyLimiter limiter;
+
+	public ResilientExec(ClientExecChain next, RetryPolicy retryPolicy, CircuitBreaker circuitBreaker, ConcurrencyLimiter limiter) {
+		this.next = next;
+		this.retryPolicy = retryPolicy;
+		this.circuitBreaker = circuitBreaker;
+		this.limiter = limiter;
+	}
+
+	@Override
+	public CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper request, HttpClientContext context,
+			HttpExecutionAware execAware) throws IOException, HttpException {
+		boolean idempotent = retryPolicy.getMaxRetries() > 0 && RetryPolicy.isIdempotent(request);
+		// The protocol interceptors add their headers again at each attempt
+		Header[] headers = request.getAllHeaders();
+		for (int attempt = 0; ; attempt++) {
+			request.setHeaders(headers);
+			acquire();
+			long start = System.nanoTime();
+			CloseableHttpResponse response;
+			try {
+				response = next.execute(route, request, context, execAware);
+			} catch (IOException e) {
+				release(start, true);
+				circuitBreaker.onFailure();
+				if (!retryPolicy.canRetry(attempt, request, idempotent, e, context))
+					throw e;
+				retry(attempt, request, retryPolicy.getDelay(attempt, null), e.toString());
+				continue;
+			} catch (HttpException | RuntimeException e) {
+				// The endpoint answered, or the request is invalid
+				release(start, false);
+				circuitBreaker.onSuccess();
+				throw e;
+			}
+			int status = response.getStatusLine().getStatusCode();
+			boolean overloaded = RetryPolicy.isOverloaded(status);
+			release(start, overloaded);
+			if (!overloaded) {
+				circuitBreaker.onSuccess();
+				return response;
+			}
+			circuitBreaker.onFailure();
+			if (!retryPolicy.canRetry(attempt, request, idempotent, status))
+				return response;
+			long delay = retryPolicy.getDelay(attempt, response);
+			// Read to the end, so the connection is reused
+			EntityUtils.consumeQuietly(response.getEntity());
+			response.close();
+			retry(attempt, request, delay, response.getStatusLine().toString());
+		}
+	}
+
+	private void acquire() throws InterruptedIOException {
+		try {
+			circuitBreaker.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to send a request to the SPARQL endpoint");
+		}
+		try {
+			if (limiter != null)
+				limiter.acquire();
+		} catch (InterruptedException e) {
+			// Let another request check the endpoint if this one was let through after a pause
+			circuitBreaker.onFailure();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to send a request to the SPARQL endpoint");
+		}
+	}
+
+	private void release(long start, boolean overloaded) {
+		if (limiter != null)
+			limiter.release(System.nanoTime() - start, overloaded);
+	}
+
+	private void retry(int attempt, HttpRequestWrapper request, long delay, String failure) throws InterruptedIOException {
+		Metrics.HTTP_RETRIES.inc();
+		logger.warn(request.getRequestLine().getMethod() + " " + request.getOriginal().getRequestLine().getUri().replaceAll("\\?.*", "")
+				+ " failed (" + failure + "), retrying in " + delay + "ms (" + (attempt + 1) + "/" + retryPolicy.getMaxRetries() + ")");
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry a request to the SPARQL endpoint");
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package nl.unimaas.ids.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+
+/**
+ * Which failed requests are sent again, and after which delay.
+ * A query, which does not modify the repository, is retried after any transient failure: a connection error,
+ * a timeout, or a 429, 502, 503 or 504 response. An update or an upload is only retried when the endpoint did not receive it,
+ * i.e. the connection failed before the request was sent, or when it answered 429 or 503, which means it did not process it.
+ */
+public class RetryPolicy {
+
+	// Longest delay between two attempts
+	static final long MAX_DELAY = 60000;
+
+	private int maxRetries;
+
+	private long retryDelay;
+
+	/**
+	 * Up to maxRetries retries, the first one after about retryDelay milliseconds.
+	 */
+	public RetryPolicy(int maxRetries, long retryDelay) {
+		this.maxRetries = maxRetries;
+		this.retryDelay = retryDelay;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * Delay before the retry following the failed attempt (0 for the first one): retryDelay doubled at each attempt, up to 1 minute,
+	 * between half of it and all of it at random so that the threads failing together do not retry together.
+	 */
+	public static long getDelay(long retryDelay, int attempt) {
+		long delay = Math.min(MAX_DELAY, retryDelay << Math.min(attempt, 20));
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	// The Retry-After of the endpoint in seconds is respected, when longer
+	public long getDelay(int attempt, HttpResponse response) {
+		long delay = getDelay(retryDelay, attempt);
+		if (response != null && response.getFirstHeader("Retry-After") != null) {
+			try {
+				long retryAfter = Long.parseLong(response.getFirstHeader("Retry-After").getValue().trim()) * 1000;
+				delay = Math.max(delay, Math.min(retryAfter, MAX_DELAY));
+			} catch (NumberFormatException e) {
+				// An HTTP date, the computed delay is used
+			}
+		}
+		return delay;
+	}
+
+	// Rate limited, or a gateway or server temporarily unable to answer
+	public static boolean isOverloaded(int status) {
+		return status == 429 || status == 502 || status == 503 || status == 504;
+	}
+
+	/**
+	 * GET and HEAD requests, and SPARQL queries sent with POST, i.e. a query form without update, or an application/sparql-query body.
+	 * The transactions and updates of the repository are not idempotent.
+	 */
+	public static boolean isIdempotent(HttpRequest request) {
+		String method = request.getRequestLine().getMethod();
+		if (method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS"))
+			return true;
+		if (!method.equals("POST") || !(request instanceof HttpEntityEnclosingRequest))
+			return false;
+		HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+		if (entity == null || !entity.isRepeatable())
+			return false;
+		ContentType contentType = ContentType.get(entity);
+		if (contentType == null)
+			return false;
+		if (contentType.getMimeType().equals("application/sparql-query"))
+			return true;
+		if (!contentType.getMimeType().equals(ContentType.APPLICATION_FORM_URLENCODED.getMimeType()))
+			return false;
+		try {
+			boolean query = false;
+			List<NameValuePair> parameters = URLEncodedUtils.parse(entity);
+			for (NameValuePair parameter : parameters) {
+				if (parameter.getName().equals("update"))
+					return false;
+				query |= parameter.getName().equals("query");
+			}
+			return query;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// A request is only sent again when its body can be sent again
+	private static boolean isRepeatable(HttpRequest request) {
+		if (!(request instanceof HttpEntityEnclosingRequest))
+			return true;
+		HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+		return entity == null || entity.isRepeatable();
+	}
+
+	public boolean canRetry(int attempt, HttpRequest request, boolean idempotent, int status) {
+		if (attempt >= maxRetries || !isRepeatable(request))
+			return false;
+		return status == 429 || status == 503 || (idempotent && isOverloaded(status));
+	}
+
+	public boolean canRetry(int attempt, HttpRequest request, boolean idempotent, IOException e, HttpContext context) {
+		if (attempt >= maxRetries || !isRepeatable(request))
+			return false;
+		// Not transient
+		if (e instanceof UnknownHostException || e instanceof SSLException)
+			return false;
+		// The endpoint did not get the request
+		if (e instanceof ConnectException || e instanceof ConnectTimeoutException)
+			return true;
+		if (!idempotent) {
+			Object sent = context.getAttribute(HttpCoreContext.HTTP_REQ_SENT);
+			return Boolean.FALSE.equals(sent);
+		}
+		// Interrupted by the client, unless it is a socket timeout
+		return !(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException;
+	}
+}
@@ -0,0 +1,40 @@
+package nl.unimaas.ids.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic count, e.g. of rows read or statements loaded. Cheap to update from many threads.
+ */
+public class Counter {
+
+	private final String name;
+
+	private final String help;
+
+	private final LongAdder value = new LongAdder();
+
+	Counter(String name, String help) {
+		this.name = name;
+		this.help = help;
+	}
+
+	public void inc() {
+		value.increment();
+	}
+
+	public void add(long amount) {
+		value.add(amount);
+	}
+
+	public long get() {
+		return value.sum();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getHelp() {
+		return help;
+	}
+}
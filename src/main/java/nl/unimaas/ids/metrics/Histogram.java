@@ -0,0 +1,102 @@
+package nl.unimaas.ids.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations in seconds, in fixed buckets from 1ms to 10min.
+ * Quantiles are estimated with the upper bound of their bucket.
+ */
+public class Histogram {
+
+	static final double[] BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600};
+
+	private final String name;
+
+	private final String help;
+
+	// One more for the durations above the last bucket
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+
+	private final LongAdder count = new LongAdder();
+
+	private final DoubleAdder sum = new DoubleAdder();
+
+	private volatile double max = 0;
+
+	Histogram(String name, String help) {
+		this.name = name;
+		this.help = help;
+	}
+
+	public void observe(double seconds) {
+		int bucket = 0;
+		while (bucket < BUCKETS.length && seconds > BUCKETS[bucket])
+			bucket++;
+		counts.incrementAndGet(bucket);
+		count.increment();
+		sum.add(seconds);
+		if (seconds > max) {
+			synchronized (this) {
+				if (seconds > max)
+					max = seconds;
+			}
+		}
+	}
+
+	// Observe the time elapsed since start, from System.nanoTime()
+	public void observeSince(long start) {
+		observe((System.nanoTime() - start) / 1e9);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public double getSum() {
+		return sum.sum();
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	// Number of durations in each bucket, the last one for the durations above the last bucket
+	long[] getCounts() {
+		long[] bucketCounts = new long[counts.length()];
+		for (int i = 0; i < bucketCounts.length; i++)
+			bucketCounts[i] = counts.get(i);
+		return bucketCounts;
+	}
+
+	// Upper bound of the bucket of the quantile (e.g. 0.95), the max for the last bucket
+	public double getQuantile(double quantile) {
+		return getQuantile(getCounts(), max, quantile);
+	}
+
+	// Quantile of the durations counted in the buckets, e.g. since a baseline, at most the max of all the durations
+	static double getQuantile(long[] bucketCounts, double max, double quantile) {
+		long total = 0;
+		for (long bucketCount : bucketCounts)
+			total += bucketCount;
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(quantile * total);
+		long cumulative = 0;
+		for (int i = 0; i < BUCKETS.length; i++) {
+			cumulative += bucketCounts[i];
+			if (cumulative >= rank)
+				return Math.min(BUCKETS[i], max);
+		}
+		return max;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getHelp() {
+		return help;
+	}
+}
@@ -0,0 +1,219 @@
+package nl.unimaas.ids.metrics;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Counters and histograms of the run, shared by all the operations and threads.
+ * Exported as a progress line, a JSON summary and the Prometheus text format.
+ */
+public class Metrics {
+
+	private static final Map<String, Counter> counters = new ConcurrentSkipListMap<String, Counter>();
+
+	private static final Map<String, Histogram> histograms = new ConcurrentSkipListMap<String, Histogram>();
+
+	public static final Counter ROWS_READ = counter("rows_read_total", "Result rows read from the SPARQL endpoint");
+
+	public static final Counter TRIPLES_WRITTEN = counter("triples_written_total", "Statements loaded to the SPARQL endpoint or written to the output files");
+
+	public static final Counter TRIPLES_DELETED = counter("triples_deleted_total", "Statements deleted by split, expand and transform");
+
+	public static final Counter QUERIES = counter("queries_total", "SPARQL queries and updates executed");
+
+	public static final Counter QUERY_ERRORS = counter("query_errors_total", "SPARQL queries and updates failed");
+
+	public static final Counter HTTP_REQUESTS = counter("http_requests_total", "HTTP requests sent to the SPARQL endpoint");
+
+	public static final Counter BYTES_SENT = counter("bytes_sent_total", "Bytes of the HTTP request bodies sent to the SPARQL endpoint");
+
+	public static final Counter BYTES_RECEIVED = counter("bytes_received_total", "Bytes of the HTTP response bodies received from the SPARQL endpoint, before decompression");
+
+	public static final Counter HTTP_RETRIES = counter("http_retries_total", "HTTP requests sent again after a transient failure");
+
+	public static final Counter CIRCUIT_BREAKER_OPENS = counter("circuit_breaker_opens_total", "Times the requests to the SPARQL endpoint were paused after consecutive failures");
+
+	public static final Counter CONCURRENCY_DECREASES = counter("concurrency_limit_decreases_total", "Times the limit of concurrent requests was halved by --adaptive-concurrency");
+
+	public static final Counter TRANSFORM_NANOS = counter("transform_nanoseconds_total", "Time spent transforming the rows read on the client, summed over the threads");
+
+	public static final Counter SERVER_WAIT_NANOS = counter("server_wait_nanoseconds_total", "Time spent waiting for the rows from the SPARQL endpoint, summed over the threads");
+
+	public static final Counter CACHE_HITS = counter("result_cache_hits_total", "SELECT and CONSTRUCT results read from the result cache");
+
+	public static final Counter CACHE_MISSES = counter("result_cache_misses_total", "SELECT and CONSTRUCT results not in the result cache, queried from the SPARQL endpoint");
+
+	public static final Counter QUERY_PAGES = counter("query_pages_total", "Pages of the results fetched by --page-size");
+
+	public static final Counter QUERY_PAGE_RETRIES = counter("query_page_retries_total", "Pages of the results fetched again after a failure");
+
+	public static final Histogram QUERY_SECONDS = histogram("query_duration_seconds", "Duration of the SPARQL queries and updates");
+
+	public static final Histogram FLUSH_SECONDS = histogram("batch_flush_duration_seconds", "Duration of the loading of a batch or a stream of statements");
+
+	// Nothing recorded yet, the metrics since are the totals of the JVM
+	private static final Baseline JVM_START = new Baseline();
+
+	public static Counter counter(String name, String help) {
+		return counters.computeIfAbsent(name, key -> new Counter(name, help));
+	}
+
+	public static Histogram histogram(String name, String help) {
+		return histograms.computeIfAbsent(name, key -> new Histogram(name, help));
+	}
+
+	// Values at the start of a run, to report the metrics of the run only
+	public static Baseline baseline() {
+		return new Baseline();
+	}
+
+	public static double getElapsedSeconds() {
+		return JVM_START.getElapsedSeconds();
+	}
+
+	public static String progressLine() {
+		return progressLine(JVM_START);
+	}
+
+	// e.g. [120s] rows read: 2000000 (16666/s), triples written: 3500000, ..., queries: 12 (p95 2.5s), flushes: 4 (p95 10s)
+	public static String progressLine(Baseline since) {
+		double seconds = Math.max(since.getElapsedSeconds(), 0.001);
+		long rows = since.get(ROWS_READ);
+		long written = since.get(TRIPLES_WRITTEN);
+		long transform = since.get(TRANSFORM_NANOS);
+		long wait = since.get(SERVER_WAIT_NANOS);
+		long[] queries = since.getCounts(QUERY_SECONDS);
+		long[] flushes = since.getCounts(FLUSH_SECONDS);
+		StringBuilder line = new StringBuilder();
+		line.append(String.format(Locale.ROOT, "[%.0fs] rows read: %d (%.0f/s), triples written: %d (%.0f/s), triples deleted: %d",
+				seconds, rows, rows / seconds, written, written / seconds, since.get(TRIPLES_DELETED)));
+		line.append(String.format(Locale.ROOT, ", received: %.1f MB, sent: %.1f MB", since.get(BYTES_RECEIVED) / 1e6, since.get(BYTES_SENT) / 1e6));
+		line.append(String.format(Locale.ROOT, ", queries: %d (p95 %ss), flushes: %d (p95 %ss)",
+				sum(queries), format(Histogram.getQuantile(queries, QUERY_SECONDS.getMax(), 0.95)),
+				sum(flushes), format(Histogram.getQuantile(flushes, FLUSH_SECONDS.getMax(), 0.95))));
+		if (transform + wait > 0)
+			line.append(String.format(Locale.ROOT, ", client transform: %.0f%%", 100.0 * transform / (transform + wait)));
+		return line.toString();
+	}
+
+	public static String toJson() {
+		return toJson(JVM_START);
+	}
+
+	// The max of a run after a baseline is the upper bound of the bucket of its longest duration
+	public static String toJson(Baseline since) {
+		StringBuilder json = new StringBuilder("{\n");
+		json.append("  \"elapsed_seconds\": ").append(format(since.getElapsedSeconds())).append(",\n");
+		json.append("  \"counters\": {");
+		String separator = "\n";
+		for (Counter counter : counters.values()) {
+			json.append(separator).append("    \"").append(counter.getName()).append("\": ").append(since.get(counter));
+			separator = ",\n";
+		}
+		json.append("\n  },\n  \"histograms\": {");
+		separator = "\n";
+		for (Histogram histogram : histograms.values()) {
+			long[] counts = since.getCounts(histogram);
+			double max = histogram.getMax();
+			json.append(separator).append("    \"").append(histogram.getName()).append("\": {")
+					.append("\"count\": ").append(sum(counts))
+					.append(", \"sum\": ").append(format(since.getSum(histogram)))
+					.append(", \"max\": ").append(format(Histogram.getQuantile(counts, max, 1)))
+					.append(", \"p50\": ").append(format(Histogram.getQuantile(counts, max, 0.5)))
+					.append(", \"p95\": ").append(format(Histogram.getQuantile(counts, max, 0.95)))
+					.append(", \"p99\": ").append(format(Histogram.getQuantile(counts, max, 0.99))).append("}");
+			separator = ",\n";
+		}
+		return json.append("\n  }\n}\n").toString();
+	}
+
+	public static String toPrometheus() {
+		return toPrometheus(JVM_START);
+	}
+
+	// Text exposition format of Prometheus, the names are prefixed with sparql_operations_
+	public static String toPrometheus(Baseline since) {
+		StringBuilder text = new StringBuilder();
+		for (Counter counter : counters.values()) {
+			String name = "sparql_operations_" + counter.getName();
+			text.append("# HELP ").append(name).append(' ').append(counter.getHelp()).append('\n');
+			text.append("# TYPE ").append(name).append(" counter\n");
+			text.append(name).append(' ').append(since.get(counter)).append('\n');
+		}
+		for (Histogram histogram : histograms.values()) {
+			String name = "sparql_operations_" + histogram.getName();
+			long[] counts = since.getCounts(histogram);
+			text.append("# HELP ").append(name).append(' ').append(histogram.getHelp()).append('\n');
+			text.append("# TYPE ").append(name).append(" histogram\n");
+			long cumulative = 0;
+			for (int i = 0; i < Histogram.BUCKETS.length; i++) {
+				cumulative += counts[i];
+				text.append(name).append("_bucket{le=\"").append(format(Histogram.BUCKETS[i])).append("\"} ").append(cumulative).append('\n');
+			}
+			text.append(name).append("_bucket{le=\"+Inf\"} ").append(sum(counts)).append('\n');
+			text.append(name).append("_sum ").append(format(since.getSum(histogram))).append('\n');
+			text.append(name).append("_count ").append(sum(counts)).append('\n');
+		}
+		return text.toString();
+	}
+
+	private static long sum(long[] counts) {
+		long sum = 0;
+		for (long count : counts)
+			sum += count;
+		return sum;
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.6g", value).replaceAll("\\.?0+(e|$)", "$1");
+	}
+
+	/**
+	 * Values of the counters and histograms at the start of a run. The metrics of the run are the differences
+	 * with the current values, e.g. for a job of the daemon where the metrics are shared with the previous jobs.
+	 */
+	public static class Baseline {
+
+		private final long start = System.nanoTime();
+
+		private final Map<String, Long> counterValues = new HashMap<String, Long>();
+
+		private final Map<String, long[]> histogramCounts = new HashMap<String, long[]>();
+
+		private final Map<String, Double> histogramSums = new HashMap<String, Double>();
+
+		private Baseline() {
+			for (Counter counter : counters.values())
+				counterValues.put(counter.getName(), counter.get());
+			for (Histogram histogram : histograms.values()) {
+				histogramCounts.put(histogram.getName(), histogram.getCounts());
+				histogramSums.put(histogram.getName(), histogram.getSum());
+			}
+		}
+
+		public double getElapsedSeconds() {
+			return (System.nanoTime() - start) / 1e9;
+		}
+
+		// Counters and histograms created after the baseline start from 0
+		long get(Counter counter) {
+			Long before = counterValues.get(counter.getName());
+			return counter.get() - (before != null ? before : 0);
+		}
+
+		long[] getCounts(Histogram histogram) {
+			long[] counts = histogram.getCounts();
+			long[] before = histogramCounts.get(histogram.getName());
+			for (int i = 0; before != null && i < counts.length; i++)
+				counts[i] -= before[i];
+			return counts;
+		}
+
+		double getSum(Histogram histogram) {
+			Double before = histogramSums.get(histogram.getName());
+			return histogram.getSum() - (before != null ? before : 0);
+		}
+	}
+}
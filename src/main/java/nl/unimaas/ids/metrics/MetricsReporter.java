@@ -0,0 +1,94 @@
+package nl.unimaas.ids.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Once started, print the progress line every interval seconds, rewrite the Prometheus file at each progress line,
+ * and write the JSON summary and the last Prometheus file when closed.
+ * The metrics are the ones recorded since the reporter was created.
+ */
+public class MetricsReporter implements AutoCloseable {
+
+	private File metricsFile;
+
+	private File prometheusFile;
+
+	private int intervalSeconds;
+	
+	// Where the progress line is printed
+	private PrintStream out;
+
+	private Thread thread = null;
+	
+	private Metrics.Baseline baseline = Metrics.baseline();
+
+	private volatile boolean closed = false;
+
+	// 0 interval for no progress line, null files to not write them
+	public MetricsReporter(int intervalSeconds, File metricsFile, File prometheusFile, PrintStream out) {
+		this.intervalSeconds = intervalSeconds;
+		this.out = out;
+		this.metricsFile = metricsFile;
+		this.prometheusFile = prometheusFile;
+	}
+
+	// Start printing the progress line
+	public synchronized void start() {
+		if (intervalSeconds > 0 && thread == null && !closed) {
+			thread = new Thread(() -> report(intervalSeconds), "metrics-reporter");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void report(int intervalSeconds) {
+		while (!closed) {
+			try {
+				Thread.sleep(intervalSeconds * 1000L);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (closed)
+				return;
+			out.println(Metrics.progressLine(baseline));
+			writePrometheus();
+		}
+	}
+
+	private void writePrometheus() {
+		if (prometheusFile != null)
+			write(prometheusFile, Metrics.toPrometheus(baseline));
+	}
+
+	// Written to a temporary file then moved, a scraper never reads a partial file
+	private void write(File file, String content) {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		try {
+			Files.write(tmpFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			out.println("Can not write metrics to " + file + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		if (thread != null) {
+			thread.interrupt();
+			out.println(Metrics.progressLine(baseline));
+		}
+		writePrometheus();
+		if (metricsFile != null) {
+			write(metricsFile, Metrics.toJson(baseline));
+			out.println("Metrics written to " + metricsFile);
+		}
+	}
+}
@@ -0,0 +1,540 @@
+package nl.unimaas.ids.operations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import nl.unimaas.ids.metrics.Metrics;
+import nl.unimaas.ids.operations.load.BatchLoader;
+import nl.unimaas.ids.operations.load.DedupLoader;
+import nl.unimaas.ids.operations.load.DeletingLoader;
+import nl.unimaas.ids.operations.load.StatementLoader;
+import nl.unimaas.ids.operations.load.StreamingLoader;
+import nl.unimaas.ids.operations.queries.QueryPaginator;
+
+import org.eclipse.rdf4j.IsolationLevel;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
+import org.eclipse.rdf4j.query.AbstractTupleQueryResultHandler;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.RepositoryException;
+import org.eclipse.rdf4j.repository.sparql.SPARQLRepository;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.ntriples.NTriplesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared settings of the operations reading statements from the repository,
+ * transforming them and loading the result back (split and expand).
+ */
+public abstract class AbstractTransformOperation {
+
+	protected Logger logger = LoggerFactory.getLogger(AbstractTransformOperation.class.getName());
+	
+	protected Repository repo;
+	
+	// Where the progress of the operation is printed
+	protected PrintStream out = System.out;
+	
+	protected String varOutputGraph;
+	
+	protected int bufferSize;
+	
+	protected int uploadThreads = 0;
+	
+	protected int uploadQueueSize = 2;
+	
+	protected int parallelism = 1;
+	
+	protected boolean pushDown = false;
+	
+	// Subjects of the gone source rows in the FILTER of a query reading the rows left
+	private static final int RETRACT_SUBJECTS_PER_QUERY = 500;
+	
+	protected TransformCheckpoint checkpoint = null;
+	
+	// Number of slices recorded in the checkpoint, 0 for the parallelism
+	protected int checkpointSlices = 0;
+	
+	protected int commitSize = 0;
+	
+	protected IsolationLevel isolationLevel = null;
+	
+	protected int commitRetries = 3;
+	
+	// null to load batches of statements, or the format of the upload stream
+	protected RDFFormat uploadFormat = null;
+	
+	// Maximum number of distinct statements checked for duplicates, 0 to load all the statements
+	protected int dedupCapacity = 0;
+	
+	// Number of source statements deleted in each transaction
+	protected int deleteChunkSize = 10000;
+	
+	// Directory of the source rows read by the previous run, null to transform all the rows
+	protected File incrementalIndex = null;
+	
+	// null to read the rows of a slice with a single query
+	protected QueryPaginator paginator = null;
+	
+	public AbstractTransformOperation(Repository repo, String varOutputGraph, int bufferSize) {
+		this.repo = repo;
+		this.varOutputGraph = varOutputGraph;
+		this.bufferSize = bufferSize;
+	}
+	
+	public void setOutput(PrintStream out) {
+		this.out = out;
+	}
+	
+	// Number of threads loading batches in parallel. 0 loads in the reading thread
+	public void setUploadThreads(int uploadThreads) {
+		this.uploadThreads = uploadThreads;
+	}
+	
+	// Maximum number of full batches waiting for an upload stage
+	public void setUploadQueueSize(int uploadQueueSize) {
+		this.uploadQueueSize = uploadQueueSize;
+	}
+	
+	// Number of disjoint slices of the subjects read in parallel, each on its own connection
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+	
+	// Run the transformation as a SPARQL UPDATE on the triplestore when the rule can be expressed in SPARQL
+	public void setPushDown(boolean pushDown) {
+		this.pushDown = pushDown;
+	}
+	
+	// Number of statements loaded in each transaction, 0 for one transaction per batch
+	public void setCommitSize(int commitSize) {
+		this.commitSize = commitSize;
+	}
+	
+	// Isolation level of the loading transactions, null for the default of the repository
+	public void setIsolationLevel(IsolationLevel isolationLevel) {
+		this.isolationLevel = isolationLevel;
+	}
+	
+	// Number of times a failed loading transaction is tried again
+	public void setCommitRetries(int commitRetries) {
+		this.commitRetries = commitRetries;
+	}
+	
+	// batches, binary or nquads
+	public void setUploadMode(String uploadMode) {
+		switch (uploadMode) {
+		case "batches":
+			this.uploadFormat = null;
+			break;
+		case "binary":
+			this.uploadFormat = RDFFormat.BINARY;
+			break;
+		case "nquads":
+			this.uploadFormat = RDFFormat.NQUADS;
+			break;
+		default:
+			throw new IllegalArgumentException("Supported upload modes: batches, binary and nquads.");
+		}
+	}
+	
+	// Drop the statements already generated in the run, keeping up to dedupCapacity fingerprints. 0 disables the dedup
+	public void setDedupCapacity(int dedupCapacity) {
+		this.dedupCapacity = dedupCapacity;
+	}
+	
+	// Number of source statements deleted in each transaction when the transformed statements are deleted
+	public void setDeleteChunkSize(int deleteChunkSize) {
+		this.deleteChunkSize = deleteChunkSize;
+	}
+	
+	// Only transform the source rows which are not in the index of the previous run, and retract the outputs of the rows gone
+	public void setIncrementalIndex(File incrementalIndex) {
+		this.incrementalIndex = incrementalIndex;
+	}
+	
+	// Read the rows in pages of pageSize rows, 0 to read each slice with a single query
+	public void setPagination(int pageSize, int prefetch, int retries) {
+		this.paginator = pageSize > 0 ? new QueryPaginator(repo, pageSize, prefetch, retries) : null;
+	}
+	
+	// Save the progress of the rules to the checkpoint file, and skip the work already done when resuming
+	public void setCheckpoint(File checkpointFile, boolean resume) throws IOException {
+		this.checkpoint = checkpointFile != null ? new TransformCheckpoint(checkpointFile, resume, out) : null;
+	}
+	
+	// Number of slices the subjects are divided in when checkpointing, so the progress is saved after each. Each slice costs a scan of the values
+	public void setCheckpointSlices(int checkpointSlices) {
+		this.checkpointSlices = checkpointSlices;
+	}
+	
+	// Use the loading, scanning and checkpoint settings of another operation
+	protected void copySettings(AbstractTransformOperation operation) {
+		this.out = operation.out;
+		this.uploadThreads = operation.uploadThreads;
+		this.uploadQueueSize = operation.uploadQueueSize;
+		this.parallelism = operation.parallelism;
+		this.pushDown = operation.pushDown;
+		this.checkpoint = operation.checkpoint;
+		this.checkpointSlices = operation.checkpointSlices;
+		this.commitSize = operation.commitSize;
+		this.isolationLevel = operation.isolationLevel;
+		this.commitRetries = operation.commitRetries;
+		this.uploadFormat = operation.uploadFormat;
+		this.dedupCapacity = operation.dedupCapacity;
+		this.incrementalIndex = operation.incrementalIndex;
+		this.deleteChunkSize = operation.deleteChunkSize;
+		this.paginator = operation.paginator;
+	}
+	
+	// The sources deleted by a run would be seen as gone by the next run, and their outputs retracted
+	protected void checkIncremental(boolean deleteTransformedTriples) {
+		if (incrementalIndex != null && deleteTransformedTriples)
+			throw new IllegalArgumentException("--incremental-index can not be combined with deleting the transformed statements");
+	}
+	
+	protected boolean isStepDone(String rule, String step) {
+		if (checkpoint != null && checkpoint.isStepDone(rule, step)) {
+			out.println("Skipping " + step + ", already done according to the checkpoint file");
+			return true;
+		}
+		return false;
+	}
+	
+	protected void stepDone(String rule, String step) {
+		if (checkpoint != null)
+			checkpoint.stepDone(rule, step);
+	}
+	
+	protected StatementLoader newLoader() {
+		return newLoader(false);
+	}
+	
+	// With deleteSources, the loader also deletes the statements given to deleteSource() once the statements generated from them are loaded
+	protected StatementLoader newLoader(boolean deleteSources) {
+		StatementLoader loader = newUploadLoader();
+		if (dedupCapacity > 0) {
+			DedupLoader dedupLoader = new DedupLoader(loader, dedupCapacity);
+			dedupLoader.setOutput(out);
+			out.println("Dedup of up to " + dedupCapacity + " statements");
+			loader = dedupLoader;
+		}
+		if (!deleteSources)
+			return loader;
+		DeletingLoader deletingLoader = new DeletingLoader(repo, loader, deleteChunkSize);
+		deletingLoader.setCommitRetries(commitRetries, 1000);
+		deletingLoader.setOutput(out);
+		out.println("Deleting the transformed statements in chunks of " + deleteChunkSize);
+		return deletingLoader;
+	}
+	
+	// Statement of the value read, in the graph it was read from
+	protected Statement getSource(BindingSet bindingSet, String valueVariable) {
+		return repo.getValueFactory().createStatement((Resource) bindingSet.getValue("s"), (IRI) bindingSet.getValue("p"),
+				bindingSet.getValue(valueVariable), (Resource) bindingSet.getValue("g"));
+	}
+	
+	private StatementLoader newUploadLoader() {
+		if (uploadFormat != null) {
+			// A SPARQL endpoint parses the stream in the client to send INSERT DATA, batches are better
+			if (!(repo instanceof SPARQLRepository)) {
+				StreamingLoader loader = new StreamingLoader(repo, uploadFormat, commitSize > 0 ? commitSize : bufferSize);
+				loader.setIsolationLevel(isolationLevel);
+				loader.setOutput(out);
+				out.println("Streaming upload in " + uploadFormat.getName() + ", " + (commitSize > 0 ? commitSize : bufferSize) + " statements per stream");
+				return loader;
+			}
+			out.println("Streaming upload is not supported by SPARQL endpoints, loading batches instead");
+		}
+		BatchLoader loader = new BatchLoader(repo, bufferSize, uploadThreads, uploadQueueSize);
+		loader.setCommitSize(commitSize);
+		loader.setIsolationLevel(isolationLevel);
+		loader.setCommitRetries(commitRetries, 1000);
+		loader.setOutput(out);
+		if (uploadThreads > 0)
+			out.println("Upload stages: " + uploadThreads + ", max batches in flight: " + Math.max(1, uploadQueueSize));
+		return loader;
+	}
+	
+	/**
+	 * Evaluate the SELECT query built by queryForFilter and pass each binding to the handler, which adds the
+	 * statements to the loader it is given. With a parallelism above 1 the subjects are divided in disjoint slices on the hash of ?s,
+	 * the filter of each slice is given to queryForFilter and the slices are read in parallel,
+	 * so the handler must be thread safe. With a checkpoint, a slice is recorded once its statements are loaded,
+	 * and the slices recorded for the rule are not read again.
+	 * With an incremental index, only the rows not read by the previous run are passed to the handler,
+	 * and the statements generated from the rows gone since are removed.
+	 * With a paginator, the slices are read in LIMIT/OFFSET pages only if pageable: the scan must neither delete
+	 * the rows it reads nor load rows it matches, which would move the rows between the pages.
+	 */
+	protected long scan(String rule, StatementLoader loader, Function<String, String> queryForFilter,
+			BiConsumer<BindingSet, StatementLoader> handler, boolean pageable) throws RepositoryException {
+		boolean paged = paginator != null && pageable;
+		if (paginator != null && !pageable)
+			out.println("Not paged: the scan changes the statements it reads");
+		if (incrementalIndex == null)
+			return scanSlices(rule, loader, queryForFilter, bindingSet -> handler.accept(bindingSet, loader), true, paged);
+		
+		try (IncrementalIndex index = new IncrementalIndex(incrementalIndex, rule, out)) {
+			// The rows of the slices done by a failed run are not in the index, they are read again
+			long rowCount = scanSlices(rule, loader, queryForFilter, bindingSet -> {
+				if (!index.isUnchanged(bindingSet))
+					handler.accept(bindingSet, loader);
+			}, false, paged);
+			loader.awaitLoaded();
+			retractVanished(index, queryForFilter, handler, paged);
+			index.commit();
+			return rowCount;
+		}
+	}
+	
+	/**
+	 * Remove the statements generated from the rows of the previous run which are gone, unless they are also
+	 * generated from a row still there for the same subject.
+	 */
+	private void retractVanished(IncrementalIndex index, Function<String, String> queryForFilter,
+			BiConsumer<BindingSet, StatementLoader> handler, boolean paged) {
+		Model retracted = new LinkedHashModel();
+		Set<Value> subjects = new LinkedHashSet<Value>();
+		long vanishedCount = index.forEachVanished(repo.getValueFactory(), bindingSet -> {
+			handler.accept(bindingSet, new ModelLoader(retracted, true));
+			subjects.add(bindingSet.getValue("s"));
+		});
+		if (vanishedCount == 0)
+			return;
+		
+		List<Value> subjectList = new ArrayList<Value>(subjects);
+		for (int i = 0; i < subjectList.size(); i += RETRACT_SUBJECTS_PER_QUERY) {
+			StringBuilder filter = new StringBuilder(" FILTER(?s IN (");
+			for (int j = i; j < Math.min(i + RETRACT_SUBJECTS_PER_QUERY, subjectList.size()); j++)
+				filter.append(j > i ? ", " : "").append(NTriplesUtil.toNTriplesString(subjectList.get(j)));
+			filter.append(")) ");
+			scanSlice(queryForFilter.apply(filter.toString()), bindingSet -> handler.accept(bindingSet, new ModelLoader(retracted, false)), new AtomicLong(), paged);
+		}
+		
+		try (RepositoryConnection conn = repo.getConnection()) {
+			conn.begin();
+			conn.remove(retracted);
+			conn.commit();
+		}
+		Metrics.TRIPLES_DELETED.add(retracted.size());
+		out.println("Retracted " + retracted.size() + " statements generated from " + vanishedCount + " source rows gone since the previous run");
+	}
+	
+	private long scanSlices(String rule, StatementLoader loader, Function<String, String> queryForFilter,
+			Consumer<BindingSet> handler, boolean skipDoneSlices, boolean paged) throws RepositoryException {
+		long start = System.currentTimeMillis();
+		AtomicLong rowCount = new AtomicLong();
+		int sliceCount = checkpoint != null ? Math.max(parallelism, checkpointSlices) : parallelism;
+		
+		if (sliceCount <= 1) {
+			String queryString = queryForFilter.apply("");
+			out.println(queryString);
+			out.println();
+			scanSlice(queryString, handler, rowCount, paged);
+		} else {
+			List<String> sliceFilters = getSliceFilters(sliceCount);
+			// Slices depend on their count, a checkpoint written with another count does not apply
+			String sliceRule = rule + "|slices=" + sliceFilters.size();
+			out.println(queryForFilter.apply(sliceFilters.get(0)));
+			out.println();
+			out.println("Reading " + sliceFilters.size() + " slices with " + parallelism + " threads");
+			
+			ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, sliceFilters.size())));
+			try {
+				List<Future<Long>> slices = new ArrayList<Future<Long>>();
+				for (int i = 0; i < sliceFilters.size(); i++) {
+					int slice = i;
+					String queryString = queryForFilter.apply(sliceFilters.get(i));
+					if (skipDoneSlices && checkpoint != null && checkpoint.isSliceDone(sliceRule, slice)) {
+						slices.add(null);
+						continue;
+					}
+					slices.add(pool.submit(() -> {
+						long sliceRows = scanSlice(queryString, handler, rowCount, paged);
+						if (checkpoint != null) {
+							loader.awaitLoaded();
+							checkpoint.sliceDone(sliceRule, slice, loader.getLoadedCount());
+						}
+						return sliceRows;
+					}));
+				}
+				for (int i = 0; i < slices.size(); i++) {
+					if (slices.get(i) == null) {
+						out.println("Slice " + (i + 1) + "/" + slices.size() + " already done according to the checkpoint file");
+						continue;
+					}
+					long sliceRows = slices.get(i).get();
+					out.println("Slice " + (i + 1) + "/" + slices.size() + " done: " + sliceRows
+							+ " rows (" + rowCount.get() + " rows read in total)");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RepositoryException("Interrupted while reading slices", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new RepositoryException("Reading slice failed", e.getCause());
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+		
+		double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+		out.println("Read " + rowCount.get() + " rows in " + seconds + "s ("
+				+ Math.round(rowCount.get() / seconds) + " rows/s)");
+		return rowCount.get();
+	}
+	
+	protected void executeUpdate(String updateString) {
+		out.println(updateString);
+		long start = System.currentTimeMillis();
+		long queryStart = System.nanoTime();
+		try (RepositoryConnection conn = repo.getConnection()) {
+			conn.prepareUpdate(updateString).execute();
+		}
+		Metrics.QUERIES.inc();
+		Metrics.QUERY_SECONDS.observeSince(queryStart);
+		out.println("SPARQL Update done in " + (System.currentTimeMillis() - start) / 1000.0 + "s");
+	}
+	
+	// Quoted SPARQL string literal
+	protected static String sparqlString(String value) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '\\': sb.append("\\\\"); break;
+			case '"': sb.append("\\\""); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				if (c < 0x20 || c == '\u0085' || c == '\u2028' || c == '\u2029')
+					sb.append(String.format("\\u%04X", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+	
+	private long scanSlice(String queryString, Consumer<BindingSet> handler, AtomicLong rowCount, boolean paged) {
+		long queryStart = System.nanoTime();
+		long[] sliceRows = new long[1];
+		AbstractTupleQueryResultHandler timedHandler = new AbstractTupleQueryResultHandler() {
+			// Time waiting for the next row from the server, then handling it on the client
+			long waitStart = queryStart;
+			
+			@Override
+			public void handleSolution(BindingSet bindingSet) {
+				long handleStart = System.nanoTime();
+				Metrics.SERVER_WAIT_NANOS.add(handleStart - waitStart);
+				handler.accept(bindingSet);
+				waitStart = System.nanoTime();
+				Metrics.TRANSFORM_NANOS.add(waitStart - handleStart);
+				Metrics.ROWS_READ.inc();
+				sliceRows[0]++;
+				rowCount.incrementAndGet();
+			}
+		};
+		try (RepositoryConnection conn = repo.getConnection()) {
+			if (paged)
+				paginator.evaluate(conn, queryString, timedHandler);
+			else
+				conn.prepareTupleQuery(queryString).evaluate(timedHandler);
+		}
+		Metrics.QUERIES.inc();
+		Metrics.QUERY_SECONDS.observeSince(queryStart);
+		return sliceRows[0];
+	}
+	
+	// FILTER on the first hex digits of MD5(STR(?s)), each slice gets the digits equal to its index modulo the slice count
+	static List<String> getSliceFilters(int slices) {
+		int digits = slices <= 16 ? 1 : 2;
+		int hashValues = digits == 1 ? 16 : 256;
+		slices = Math.min(slices, hashValues);
+		
+		List<String> filters = new ArrayList<String>();
+		for (int slice = 0; slice < slices; slice++) {
+			StringBuilder values = new StringBuilder();
+			for (int v = slice; v < hashValues; v += slices) {
+				if (values.length() > 0)
+					values.append(", ");
+				values.append('"').append(String.format("%0" + digits + "x", v)).append('"');
+			}
+			filters.add("FILTER(SUBSTR(MD5(STR(?s)), 1, " + digits + ") IN (" + values + ")).");
+		}
+		return filters;
+	}
+	
+	// Adds the statements to a model, or removes them from it
+	private static class ModelLoader implements StatementLoader {
+		
+		private Model model;
+		
+		private boolean add;
+		
+		ModelLoader(Model model, boolean add) {
+			this.model = model;
+			this.add = add;
+		}
+		
+		@Override
+		public void add(Resource subject, IRI predicate, Value object, Resource context) {
+			synchronized (model) {
+				if (add)
+					model.add(subject, predicate, object, context);
+				else
+					model.remove(subject, predicate, object, context);
+			}
+		}
+		
+		@Override
+		public void add(Statement statement) {
+			add(statement.getSubject(), statement.getPredicate(), statement.getObject(), statement.getContext());
+		}
+		
+		@Override
+		public void awaitLoaded() {
+		}
+		
+		@Override
+		public long getAddedCount() {
+			return model.size();
+		}
+		
+		@Override
+		public void awaitLoaded(long position) {
+		}
+		
+		@Override
+		public long getLoadedCount() {
+			return model.size();
+		}
+		
+		@Override
+		public void close() {
+		}
+	}
+}
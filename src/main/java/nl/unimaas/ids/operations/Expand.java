@@ -2,239 +2,174 @@ package nl.unimaas.ids.operations;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.URL;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
 
-import org.apache.commons.io.FileUtils;
+import nl.unimaas.ids.operations.load.StatementLoader;
+import nl.unimaas.ids.operations.transform.ExpansionCache;
+import nl.unimaas.ids.operations.transform.PrefixInference;
+import nl.unimaas.ids.operations.transform.PrefixInference.Expansion;
+import nl.unimaas.ids.operations.transform.PrefixRegistry;
+
 import org.eclipse.rdf4j.model.IRI;
-import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.Statement;
 import org.eclipse.rdf4j.model.ValueFactory;
-import org.eclipse.rdf4j.model.util.ModelBuilder;
-import org.eclipse.rdf4j.query.BindingSet;
 import org.eclipse.rdf4j.query.MalformedQueryException;
-import org.eclipse.rdf4j.query.TupleQuery;
-import org.eclipse.rdf4j.query.TupleQueryResult;
-import org.eclipse.rdf4j.query.Update;
 import org.eclipse.rdf4j.repository.Repository;
-import org.eclipse.rdf4j.repository.RepositoryConnection;
 import org.eclipse.rdf4j.repository.RepositoryException;
-import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
-public class Expand {
+public class Expand extends AbstractTransformOperation {
 	
-protected Logger logger = LoggerFactory.getLogger(Expand.class.getName());
+	private String prefixRegistry = null;
 	
-	private Repository repo;
+	private int expandCacheSize = 100000;
 	
-	private String varOutputGraph;
-	
-	private int expandBufferSize;
+	private File expandCacheFile = null;
 	
 	public Expand(Repository repo, String varOutputGraph, int expandBufferSize) {
-		this.repo = repo;
-		this.varOutputGraph = varOutputGraph;
-		this.expandBufferSize = expandBufferSize;
-		System.out.println("Expand buffer size: " + expandBufferSize);
+		super(repo, varOutputGraph, expandBufferSize);
+		logger = LoggerFactory.getLogger(Expand.class.getName());
 
 	}
 	
+	// File path or URL of the prefix registry used by "infer", null for the bundled registry
+	public void setPrefixRegistry(String prefixRegistry) {
+		this.prefixRegistry = prefixRegistry;
+	}
+	
+	// Maximum number of values kept in the expansion cache of "infer". 0 disables the cache
+	public void setExpandCacheSize(int expandCacheSize) {
+		this.expandCacheSize = expandCacheSize;
+	}
+	
+	// File where the expansion cache is saved at the end of a run and read at the start of the next
+	public void setExpandCacheFile(File expandCacheFile) {
+		this.expandCacheFile = expandCacheFile;
+	}
+	
+	// The expansions depend on the registry and the predicate namespace, a cache file written with others is ignored
+	private ExpansionCache openExpansionCache(String propertyToExpand, String uriExpansionPredicatePrefix) throws IOException {
+		ExpansionCache cache = new ExpansionCache(expandCacheSize, prefixRegistry + "|" + propertyToExpand + "|" + uriExpansionPredicatePrefix);
+		if (expandCacheFile != null)
+			out.println("Expansion cache entries read from " + expandCacheFile + ": " + cache.load(expandCacheFile, repo.getValueFactory()));
+		return cache;
+	}
+	
 	public void executeExpand(String classToExpand,
 			String propertyToExpand, boolean deleteExpandtedTriples,
 			String uriExpansion, String uriExpansionPredicatePrefix) throws RepositoryException,
 			MalformedQueryException, IOException {
 		
-		String queryString = "SELECT ?s ?p ?toExpand ?g WHERE {"
-				+ "    GRAPH ?g {" + "    	?s a <" + classToExpand + "> ;"
-				+ "      ?p ?toExpand ." + "    	FILTER(?p = <"
-				+ propertyToExpand + ">).  } }";
-
-		System.out.println(queryString);
-		System.out.println();
-
-		RepositoryConnection conn = repo.getConnection();
-
-		TupleQuery query = conn.prepareTupleQuery(queryString);
-		TupleQueryResult selectResults = query.evaluate();
-
+		out.println("Expand buffer size: " + bufferSize);
+		checkIncremental(deleteExpandtedTriples);
+		
+		String rule = "expand|" + classToExpand + "|" + propertyToExpand + "|" + uriExpansion + "|" + uriExpansionPredicatePrefix
+				+ "|" + prefixRegistry + "|" + varOutputGraph;
+		
+		// The values are deleted with the loading, or by a SPARQL DELETE after a SPARQL UPDATE
+		boolean deleteWithUpdate = false;
+		if (!isStepDone(rule, "inserted")) {
+			if (pushDown && !"infer".equals(uriExpansion) && incrementalIndex == null) {
+				out.println("Execution path: server-side SPARQL UPDATE");
+				executePushDownExpand(classToExpand, propertyToExpand, uriExpansion);
+				deleteWithUpdate = true;
+			} else {
+				out.println("Execution path: client-side (" + (!pushDown ? "--push-down not set"
+						: incrementalIndex != null ? "incremental index needs the values" : "infer needs the prefix registry") + ")");
+				executeClientExpand(rule, classToExpand, propertyToExpand, uriExpansion, uriExpansionPredicatePrefix, deleteExpandtedTriples);
+				// The values expanded are deleted in chunks with the loading
+				if (deleteExpandtedTriples)
+					stepDone(rule, "deleted");
+			}
+			stepDone(rule, "inserted");
+		} else {
+			// Inserted by a previous run, the delete is recorded when done with the loading
+			deleteWithUpdate = true;
+		}
+		
+		// Only reached when all the expanded statements are loaded by the SPARQL UPDATE
+		if (deleteExpandtedTriples && deleteWithUpdate && !isStepDone(rule, "deleted")) {
+			String deleteQueryString = "DELETE { " + "GRAPH ?g {"
+					+ "?s ?p ?o." + "} " + "}WHERE {" + "GRAPH ?g {"
+					+ "?s a <" + classToExpand + "> ;" + "?p ?o ."
+					+ "FILTER(?p = <" + propertyToExpand + ">). " + getNotExpandedFilter(uriExpansion, "?o") + "} } ";
+
+			out.println();
+			executeUpdate(deleteQueryString);
+			stepDone(rule, "deleted");
+		}
+	}
+	
+	// Read the values, expand them and load the expanded statements. With deleteExpandtedTriples, the values are deleted once expanded
+	private void executeClientExpand(String rule, String classToExpand, String propertyToExpand,
+			String uriExpansion, String uriExpansionPredicatePrefix, boolean deleteExpandtedTriples) throws IOException {
 		ValueFactory f = repo.getValueFactory();
 
 		// If graph not defined in params, then we use the graph from the
 		// statement
-		IRI graphIri = null;
-		boolean graphFromParam = false;
-		if (varOutputGraph != null) {
-			graphFromParam = true;
-			graphIri = f.createIRI(varOutputGraph);
-		}
-
-		ModelBuilder builder = new ModelBuilder();
-		Model bulkUpdate = builder.build();
-		Map<String, String> registery = null;
-		Map<String, String> prefixToReplace = null;
+		IRI outputGraphIri = varOutputGraph != null ? f.createIRI(varOutputGraph) : null;
 
-		if (uriExpansion != null && uriExpansion.equals("infer")) {
-			// Identifier resolution
+		// Identifier resolution
+		PrefixInference prefixInference = "infer".equals(uriExpansion)
+				? new PrefixInference(f, PrefixRegistry.get(prefixRegistry, out), propertyToExpand, uriExpansionPredicatePrefix)
+				: null;
+		ExpansionCache cache = prefixInference != null && expandCacheSize > 0
+				? openExpansionCache(propertyToExpand, uriExpansionPredicatePrefix)
+				: null;
 
-			File registeryFile = new File("registery.json");
-			//if (!registeryFile.exists()) {
-				FileUtils.copyURLToFile(new URL("http://prefix.cc/context"),
-						new File("registery.json"));
-			//}
-
-			ObjectMapper mapper = new ObjectMapper();
-			registery = new HashMap<String, String>();
-			JsonNode node = mapper.readTree(registeryFile);
-			JsonNode context = node.get("@context");
-			Iterator<Map.Entry<String, JsonNode>> iter = context.fields();
-
-			int regCount = 0;
-			while (iter.hasNext()) {
-				Map.Entry<String, JsonNode> entry = iter.next();
-				registery.put(entry.getKey(), entry.getValue().textValue());
-				regCount++;
-			}
-
-			System.out.println("Registery build finished, total items: "
-					+ regCount);
-
-			// Some prefixes are not covered by PrefixCommons at the moment and will be added here.
-			prefixToReplace = new HashMap<String, String>();
-			prefixToReplace.put("keggcompound", "kegg");
-			prefixToReplace.put("keggdrug", "kegg");
-			prefixToReplace.put("drugbank", "drugbank");
-			prefixToReplace.put("uniprotkb", "uniprot");
-			prefixToReplace.put("clinicaltrials.gov", "clinicaltrials");
-			prefixToReplace.put("drugsproductdatabase(dpd)", "dpd");
-			prefixToReplace.put("nationaldrugcodedirectory", "ndc");
-			prefixToReplace.put("therapeutictargetsdatabase", "ttd");
-			prefixToReplace.put("fdadruglabelatdailymed", "dailymed");
-			prefixToReplace.put("chebi:chebi", "chebi");
-			prefixToReplace.put("pubchemcompound", "b2rpubchem");
-		}
-
-		int count = 0;
-		int accum = 0;
-
-		Map<String, String> availablePref = new HashMap<String, String>();
+		StatementLoader loader = newLoader(deleteExpandtedTriples);
 
 		try {
-			while (selectResults.hasNext()) {
-				BindingSet bindingSet = selectResults.next();
+			// Not paged, the expanded values are loaded under the property read (also by "infer" for a value without prefix)
+			scan(rule, loader, sliceFilter -> "SELECT ?s ?p ?toExpand ?g WHERE {"
+					+ "    GRAPH ?g {" + "    	?s a <" + classToExpand + "> ;"
+					+ "      ?p ?toExpand ." + "    	FILTER(?p = <"
+					+ propertyToExpand + ">). " + getNotExpandedFilter(uriExpansion, "?toExpand") + sliceFilter + " } }",
+					(bindingSet, out) -> {
 
 				IRI subjectIri = f.createIRI(bindingSet.getValue("s").stringValue());
 				IRI predicateIri = f.createIRI(bindingSet.getValue("p").stringValue());
 				String stringToExpand = bindingSet.getValue("toExpand").stringValue();
 				// Use graph IRI directly from the data, if no graph URI provided
-				if (!graphFromParam) {
-					graphIri = f.createIRI(bindingSet.getValue("g").stringValue());
-				}
+				IRI graphIri = outputGraphIri != null ? outputGraphIri : f.createIRI(bindingSet.getValue("g").stringValue());
 				
+				Statement expanded;
 				if (uriExpansion != null) {
 					if (!uriExpansion.equals("infer")) {
 						stringToExpand = uriExpansion + stringToExpand;
-						bulkUpdate.add(subjectIri, predicateIri,
+						expanded = f.createStatement(subjectIri, predicateIri,
 								f.createIRI(stringToExpand), graphIri);
 
-					} else if (uriExpansion.equals("infer")) {
-
-						if (stringToExpand.indexOf("(") != -1) {
-							stringToExpand = stringToExpand.substring(0,
-									stringToExpand.indexOf("("));
-						}
-
-						if (stringToExpand.contains(":")) {
-
-							int p = 0;
-
-							if (stringToExpand.contains("url")) {
-								p = stringToExpand.indexOf(":");
-							} else {
-								p = stringToExpand.lastIndexOf(":");
-							}
-
-							String prefix = stringToExpand.substring(0, p)
-									.toLowerCase().replace(" ", "").trim();
-							String id = stringToExpand.substring(p + 1);
-
-							availablePref.put(prefix, "");
-
-							if (prefixToReplace.containsKey(prefix)) {
-								prefix = prefixToReplace.get(prefix);
-							}
-
-							if (registery.containsKey(prefix)) {
-
-								stringToExpand = registery.get(prefix) + id;
-								
-								if(uriExpansionPredicatePrefix != null) {
-									
-									predicateIri = f.createIRI(uriExpansionPredicatePrefix
-											+ "x-" + prefix);	
-								}else {
-									predicateIri = f.createIRI(propertyToExpand
-											.substring(0, propertyToExpand
-													.lastIndexOf("/") + 1)
-											+ "x-" + prefix);
-								}
-								
-								bulkUpdate.add(subjectIri, predicateIri,
-										f.createIRI(stringToExpand),
-										graphIri);
-							} else {
-								
-								if(uriExpansionPredicatePrefix != null) {
-									predicateIri = f.createIRI(uriExpansionPredicatePrefix
-											+ "x-ref");
-								}else {	
-									predicateIri = f.createIRI(propertyToExpand
-											.substring(0, propertyToExpand
-													.lastIndexOf("/") + 1)
-											+ "x-ref");
-								}
-								
-								bulkUpdate.add(subjectIri, predicateIri,
-										f.createLiteral(stringToExpand),
-										graphIri);
-							}
-							
-						} else {
-							bulkUpdate.add(subjectIri, predicateIri,
-									f.createLiteral(stringToExpand),
-									graphIri);
-						} // if(stringToExpand.contains(":"))
+					} else {
+						Expansion expansion = cache != null
+								? cache.get(stringToExpand, value -> prefixInference.infer(predicateIri, value))
+								: prefixInference.infer(predicateIri, stringToExpand);
+						expanded = f.createStatement(subjectIri, expansion.getPredicate(),
+								expansion.getObject(), graphIri);
 					} // if(!uriExpansion.equals("infer"))
 					
 				} else {
-					bulkUpdate.add(subjectIri, predicateIri,
+					expanded = f.createStatement(subjectIri, predicateIri,
 							f.createLiteral(stringToExpand), graphIri);
 				} // if(uriExpansion != null)
-				count++;
-
+				out.add(expanded);
 				
-				if ((count > expandBufferSize)) {
-					conn.add(bulkUpdate, graphIri);
-					bulkUpdate = builder.build();
-
-					accum += count;
-					System.out.println("Updated triples: " + accum);
-					count = 0;
-
-				} else if ((count <= expandBufferSize) && !selectResults.hasNext()) {
-					conn.add(bulkUpdate, graphIri);
-					accum += count;
-					System.out.println("Total updated triples: " + accum);
-				}
-			} // while results
+				// A value left as it is, e.g. without prefix, is not deleted
+				Statement source = getSource(bindingSet, "toExpand");
+				if (deleteExpandtedTriples && !expanded.equals(source))
+					out.deleteSource(source);
+			}, false);
+			// Load the last batch and wait for the upload stages
+			loader.close();
+			
+			if (cache != null) {
+				out.println("Expansion cache " + cache.getStats());
+				if (expandCacheFile != null)
+					cache.save(expandCacheFile);
+			}
 			
 			// TODO: print the content of the cross references available in the dataset, Michel asked for it.
 			
-			// Iterator it = availablePref.entrySet().iterator();
+			// Iterator it = prefixInference.getAvailablePrefixes().entrySet().iterator();
 			// while (it.hasNext()) {
 			// Map.Entry pair = (Map.Entry)it.next();
 			// System.out.println(pair.getKey());
@@ -242,24 +177,29 @@ protected Logger logger = LoggerFactory.getLogger(Expand.class.getName());
 			// }
 
 		} finally {
-			selectResults.close();
-			if (deleteExpandtedTriples) {
-				String deleteQueryString = "DELETE { " + "GRAPH ?g {"
-						+ "?s ?p ?o." + "} " + "}WHERE {" + "GRAPH ?g {"
-						+ "?s a <" + classToExpand + "> ;" + "?p ?o ."
-						+ "FILTER(?p = <" + propertyToExpand + ">). } } ";
-
-				System.out.println();
-				System.out.println(deleteQueryString);
-
-				Update update = conn.prepareUpdate(deleteQueryString);
-				update.execute();
-			}
-			conn.close();
+			loader.close();
 		}
-		
+	}
 	
+	/**
+	 * With a fixed prefix, the values already expanded (loaded by a previous run in the graph read) are not expanded again.
+	 * Empty for "infer" and the copy as plain literal, which give the same statements when run again.
+	 */
+	private static String getNotExpandedFilter(String uriExpansion, String variable) {
+		if (uriExpansion == null || uriExpansion.equals("infer"))
+			return "";
+		return "FILTER(!STRSTARTS(STR(" + variable + "), " + sparqlString(uriExpansion) + ")). ";
+	}
+	
+	// Fixed prefix expansion (or copy as plain literal without prefix) as one SPARQL UPDATE
+	private void executePushDownExpand(String classToExpand, String propertyToExpand, String uriExpansion) {
+		String graph = varOutputGraph != null ? "<" + varOutputGraph + ">" : "?g";
+		String expanded = uriExpansion != null ? "IRI(CONCAT(" + sparqlString(uriExpansion) + ", STR(?toExpand)))" : "STR(?toExpand)";
+		executeUpdate("INSERT { GRAPH " + graph + " { ?s ?p ?expanded } } WHERE {"
+				+ "    GRAPH ?g {" + "    	?s a <" + classToExpand + "> ;"
+				+ "      ?p ?toExpand ." + "    	FILTER(?p = <"
+				+ propertyToExpand + ">). " + getNotExpandedFilter(uriExpansion, "?toExpand") + " }"
+				+ " BIND(" + expanded + " AS ?expanded) }");
 	}
-
 
 }
@@ -0,0 +1,171 @@
+package nl.unimaas.ids.operations;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import nl.unimaas.ids.operations.load.FingerprintSet;
+
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.impl.MapBindingSet;
+import org.eclipse.rdf4j.rio.ntriples.NTriplesUtil;
+
+/**
+ * Source rows (e.g. subject, property, value and graph) read by a rule in the previous run, to only transform
+ * the new or changed rows and find the rows that disappeared. The rows are saved in a gzipped tab separated file
+ * of N-Triples values per rule, only their fingerprints are held in memory. The file of the previous run
+ * is only replaced by commit(), a failed run leaves it unchanged.
+ */
+public class IncrementalIndex implements AutoCloseable {
+
+	private static final int MAX_ROWS = 1 << 28;
+
+	private File file;
+
+	private File tmpFile;
+
+	// Rows of the previous run, marked when they are read again
+	private FingerprintSet previousRows = new FingerprintSet(MAX_ROWS);
+
+	// Variables of the rows written, sorted, set by the first row
+	private List<String> variables = null;
+
+	private Writer writer;
+
+	private long unchangedCount = 0;
+
+	private long changedCount = 0;
+
+	private boolean committed = false;
+
+	private PrintStream out;
+
+	public IncrementalIndex(File directory, String rule, PrintStream out) {
+		this.out = out;
+		directory.mkdirs();
+		String name = FingerprintSet.toHex(FingerprintSet.fingerprint(rule));
+		this.file = new File(directory, name + ".tsv.gz");
+		this.tmpFile = new File(directory, name + ".tsv.gz.tmp");
+		try {
+			if (file.exists())
+				readRows((rowVariables, row) -> previousRows.add(FingerprintSet.fingerprint(row)));
+			writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(tmpFile.toPath())), StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			throw new IllegalStateException("Can not open incremental index " + file, e);
+		}
+		out.println("Incremental index " + file + ": " + previousRows.size() + " source rows from the previous run");
+	}
+
+	// Record the row for the next run, true if it was already read by the previous run
+	public boolean isUnchanged(BindingSet bindingSet) {
+		String[] row;
+		synchronized (this) {
+			if (variables == null) {
+				variables = new ArrayList<String>(bindingSet.getBindingNames());
+				Collections.sort(variables);
+				write(variables.toArray(new String[variables.size()]));
+			}
+			row = new String[variables.size()];
+		}
+		for (int i = 0; i < row.length; i++) {
+			Value value = bindingSet.getValue(variables.get(i));
+			row[i] = value != null ? NTriplesUtil.toNTriplesString(value) : "";
+		}
+		boolean unchanged = previousRows.mark(FingerprintSet.fingerprint(row));
+		synchronized (this) {
+			write(row);
+			if (unchanged)
+				unchangedCount++;
+			else
+				changedCount++;
+		}
+		return unchanged;
+	}
+
+	// Pass the rows of the previous run which were not read again, returns their count
+	public long forEachVanished(ValueFactory f, Consumer<BindingSet> consumer) {
+		long[] vanishedCount = {0};
+		if (!file.exists())
+			return 0;
+		try {
+			readRows((rowVariables, row) -> {
+				if (previousRows.isMarked(FingerprintSet.fingerprint(row)))
+					return;
+				MapBindingSet bindingSet = new MapBindingSet();
+				for (int i = 0; i < row.length; i++) {
+					if (!row[i].isEmpty())
+						bindingSet.addBinding(rowVariables.get(i), NTriplesUtil.parseValue(row[i], f));
+				}
+				consumer.accept(bindingSet);
+				vanishedCount[0]++;
+			});
+		} catch (IOException e) {
+			throw new IllegalStateException("Can not read incremental index " + file, e);
+		}
+		return vanishedCount[0];
+	}
+
+	// Replace the rows of the previous run by the rows read by this run
+	public synchronized void commit() {
+		try {
+			writer.close();
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new IllegalStateException("Can not write incremental index " + file, e);
+		}
+		committed = true;
+		out.println("Incremental index: " + unchangedCount + " unchanged source rows skipped, " + changedCount + " new or changed source rows transformed");
+	}
+
+	// Without commit, the index of the previous run is kept
+	@Override
+	public synchronized void close() {
+		if (committed)
+			return;
+		try {
+			writer.close();
+		} catch (IOException e) {
+			// The temporary file is deleted anyway
+		}
+		tmpFile.delete();
+	}
+
+	private void write(String[] row) {
+		try {
+			writer.write(String.join("\t", row));
+			writer.write('\n');
+		} catch (IOException e) {
+			throw new IllegalStateException("Can not write incremental index " + tmpFile, e);
+		}
+	}
+
+	// The first line is the variables, N-Triples escape the tabs and line breaks of the values
+	private void readRows(BiConsumer<List<String>, String[]> consumer) throws IOException {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(file.toPath())), StandardCharsets.UTF_8))) {
+			String line = reader.readLine();
+			if (line == null)
+				return;
+			List<String> rowVariables = Arrays.asList(line.split("\t", -1));
+			while ((line = reader.readLine()) != null)
+				consumer.accept(rowVariables, line.split("\t", -1));
+		}
+	}
+}
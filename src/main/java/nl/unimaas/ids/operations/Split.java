@@ -1,49 +1,33 @@
 package nl.unimaas.ids.operations;
 
+import nl.unimaas.ids.operations.load.StatementLoader;
+import nl.unimaas.ids.operations.transform.FragmentSplitter;
+
 import org.eclipse.rdf4j.model.IRI;
 import org.eclipse.rdf4j.model.ValueFactory;
-import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Value;
 import org.eclipse.rdf4j.query.MalformedQueryException;
-import org.eclipse.rdf4j.query.TupleQuery;
 import org.eclipse.rdf4j.query.TupleQueryResult;
-import org.eclipse.rdf4j.query.Update;
 import org.eclipse.rdf4j.repository.Repository;
 import org.eclipse.rdf4j.repository.RepositoryConnection;
 import org.eclipse.rdf4j.repository.RepositoryException;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.Reader;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.regex.Pattern;
-
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
-import org.eclipse.rdf4j.model.*;
-import org.eclipse.rdf4j.model.util.*;
-import org.slf4j.Logger;
+
 import org.slf4j.LoggerFactory;
 
 /**
  * A class to upload to GraphDB SPARQL endpoint
  */
-public class Split {
-
-	protected Logger logger = LoggerFactory.getLogger(Split.class.getName());
-	
-	private Repository repo;
-	
-	private String varOutputGraph;
-	
-	private int splitBufferSize;
+public class Split extends AbstractTransformOperation {
 	
+	private static final String REGEX_META_CHARS = "^$.|?*+()[]{}";
+
 	public Split(Repository repo, String varOutputGraph, int splitBufferSize) {
-		this.repo = repo;
-		this.varOutputGraph = varOutputGraph;
-		this.splitBufferSize = splitBufferSize;
-		System.out.println("Split buffer size: " + splitBufferSize);
+		super(repo, varOutputGraph, splitBufferSize);
+		logger = LoggerFactory.getLogger(Split.class.getName());
 
 		// With SPARQL executors
 		// sparqlSelectExecutor =
@@ -54,6 +38,7 @@ public class Split {
 		// endpointUrl, username, password, variables);
 	}
 	
+	// The split file is a rules file of the transform operation, where a line with a delimiter is split:DELIMITER trim:" strip-parenthetical
 	public void executeSplitFromFile(String splitFile,boolean deleteSplittedTriples) throws IOException {
 		
 		logger.info("Split through file");
@@ -62,147 +47,162 @@ public class Split {
 		
 		if(sFile.exists()) {
 			logger.info("Reading split file");
-			try (
-		            Reader reader = Files.newBufferedReader(Paths.get(splitFile));
-		            CSVParser csvParser = new CSVParser(reader, CSVFormat.DEFAULT.withDelimiter('\t'));
-		        ) {
-		            for (CSVRecord csvRecord : csvParser) {
-		                // Accessing Values by Column Index
-		                String classToSplit = csvRecord.get(0);
-		                String propertyToSplit = csvRecord.get(1);
-		                String splitDelimiter = csvRecord.get(2);
-	
-		                this.executeSplit(classToSplit, propertyToSplit, splitDelimiter, "\"", deleteSplittedTriples);
-		                
-		            }
-		        }
+			Transform transform = new Transform(repo, varOutputGraph, bufferSize);
+			transform.copySettings(this);
+			transform.executeRulesFile(splitFile, deleteSplittedTriples);
 		}else {
 			logger.info("Split file does not exist");
 		}
         
 	}
 
-	public TupleQueryResult executeSplit(String classToSplit,
+	public void executeSplit(String classToSplit,
 			String propertyToSplit, String splitDelimiter,
 			String splitQuote, boolean deleteSplittedTriples) 
 			throws RepositoryException,
 			MalformedQueryException, IOException {
 				
-		String delim = splitDelimiter;
-			
-		String queryString = "";
-				
-		if(splitDelimiter.equals(",\"")) {
-			delim = ",(?=\")";
-		}
+		out.println("Split buffer size: " + bufferSize);
+		checkIncremental(deleteSplittedTriples);
 		
-		queryString = "SELECT ?s ?p ?toSplit ?g WHERE {"
-				+ "    GRAPH ?g {" + "    	?s a <" + classToSplit + "> ;"
-				+ "      ?p ?toSplit ." + "    	FILTER(?p = <"
-				+ propertyToSplit + ">)." 
-				+ "FILTER(regex(?toSplit, '"+ delim + "'))" + "    } }";
+		// Delimiter and quote rules are compiled once for all the values
+		FragmentSplitter splitter = new FragmentSplitter(splitDelimiter, splitQuote);
+		String rule = "split|" + classToSplit + "|" + propertyToSplit + "|" + splitDelimiter + "|" + splitQuote + "|" + varOutputGraph;
 		
+		// The values are deleted with the loading, or by a SPARQL DELETE after a SPARQL UPDATE
+		boolean deleteWithUpdate = false;
+		if (!isStepDone(rule, "inserted")) {
+			String pushDownUnsupported = !pushDown ? "--push-down not set"
+					: incrementalIndex != null ? "incremental index needs the values"
+					: getPushDownUnsupportedReason(splitDelimiter, splitQuote);
+			if (pushDownUnsupported == null) {
+				out.println("Execution path: server-side SPARQL UPDATE");
+				executePushDownSplit(classToSplit, propertyToSplit, splitDelimiter, splitQuote, splitter);
+				deleteWithUpdate = true;
+			} else {
+				out.println("Execution path: client-side (" + pushDownUnsupported + ")");
+				executeClientSplit(rule, classToSplit, propertyToSplit, splitter, deleteSplittedTriples);
+				// The values split are deleted in chunks with the loading
+				if (deleteSplittedTriples)
+					stepDone(rule, "deleted");
+			}
+			stepDone(rule, "inserted");
+		} else {
+			// Inserted by a previous run, the delete is recorded when done with the loading
+			deleteWithUpdate = true;
+		}
 		
-		System.out.println(queryString);
-		System.out.println();
-
-		RepositoryConnection conn = repo.getConnection();
-
-		TupleQuery query = conn.prepareTupleQuery(queryString);
-		TupleQueryResult selectResults = query.evaluate();
-
+		// Only reached when all the fragments are loaded by the SPARQL UPDATE
+		if (deleteSplittedTriples && deleteWithUpdate && !isStepDone(rule, "deleted")) {
+			String deleteQueryString = "DELETE { " + "GRAPH ?g {"
+					+ "?s ?p ?o." + "} " + "}WHERE {" + "GRAPH ?g {"
+					+ "?s a <" + classToSplit + "> ;" + "?p ?o ."
+					+ "FILTER(?p = <" + propertyToSplit + ">)."
+					+ "FILTER(regex(?o, '" + splitDelimiter + "'))} } ";
+
+			out.println();
+			executeUpdate(deleteQueryString);
+			stepDone(rule, "deleted");
+		}
+	}
+	
+	// Read the values, split them and load the fragments. With deleteSplittedTriples, the values split are deleted once their fragments are loaded
+	private void executeClientSplit(String rule, String classToSplit, String propertyToSplit, FragmentSplitter splitter,
+			boolean deleteSplittedTriples) {
 		ValueFactory f = repo.getValueFactory();
 
 		// If graph not defined in params, then we use the graph from the
 		// statement
-		IRI graphIri = null;
-		boolean graphFromParam = false;
-		if (varOutputGraph != null) {
-			graphFromParam = true;
-			graphIri = f.createIRI(varOutputGraph);
-		}
-
-		ModelBuilder builder = new ModelBuilder();
-		Model bulkUpdate = builder.build();
+		IRI outputGraphIri = varOutputGraph != null ? f.createIRI(varOutputGraph) : null;
 
-		int count = 0;
-		int accum = 0;
+		StatementLoader loader = newLoader(deleteSplittedTriples);
 
 		try {
-			while (selectResults.hasNext()) {
-				BindingSet bindingSet = selectResults.next();
+			// The fragments are not read by the scan, which is paged unless the values split are deleted
+			scan(rule, loader, sliceFilter -> "SELECT ?s ?p ?toSplit ?g WHERE {"
+					+ "    GRAPH ?g {" + "    	?s a <" + classToSplit + "> ;"
+					+ "      ?p ?toSplit ." + "    	FILTER(?p = <"
+					+ propertyToSplit + ">)." 
+					+ "FILTER(regex(?toSplit, '"+ splitter.getSelectPattern() + "'))" + sliceFilter + "    } }", 
+					(bindingSet, out) -> {
 
 				IRI subjectIri = f.createIRI(bindingSet.getValue("s").stringValue());
 				IRI predicateIri = f.createIRI(bindingSet.getValue("p").stringValue());
 				String stringToSplit = bindingSet.getValue("toSplit").stringValue();
 				// Use graph IRI directly from the data, if no graph URI provided
-				if (!graphFromParam) {
-					graphIri = f.createIRI(bindingSet.getValue("g").stringValue());
-				}
-
-		    	String[] splitFragments = stringToSplit.split(delim);
-
-				if(delim.equals("|")) {
-			    	splitFragments = stringToSplit.split(Pattern.quote(delim));
-				}
-
-				
-		    	for (String splitFragment: splitFragments) {          
-			
-						if(!splitQuote.equals(" ")) {
-							splitFragment = splitFragment.replaceAll("^"+splitQuote+"|"+splitQuote+"$", "");				
-						}
-				
-						if(splitFragment.indexOf("(") != -1) {
-		    					splitFragment = splitFragment.substring(0,splitFragment.indexOf("("));
-		    				}
-	
-						bulkUpdate.add(subjectIri, predicateIri,
-									f.createLiteral(splitFragment), graphIri);
-						count++;
-					
-				} // for loop
-				
-				if ((count > splitBufferSize)) {
-					conn.add(bulkUpdate, graphIri);
-					bulkUpdate = builder.build();
-
-					accum += count;
-					System.out.println("Updated triples: " + accum);
-					count = 0;
-
-				} else if ((count <= splitBufferSize) && !selectResults.hasNext()) {
-					conn.add(bulkUpdate, graphIri);
-					accum += count;
-					System.out.println("Total updated triples: " + accum);
-				}
-			} // while results
-			// print the content of the cross references available in pharmgkb
-			// Iterator it = availablePref.entrySet().iterator();
-			// while (it.hasNext()) {
-			// Map.Entry pair = (Map.Entry)it.next();
-			// System.out.println(pair.getKey());
-			// it.remove(); // avoids a ConcurrentModificationException
-			// }
-
+				IRI graphIri = outputGraphIri != null ? outputGraphIri : f.createIRI(bindingSet.getValue("g").stringValue());
+
+				splitter.split(stringToSplit, splitFragment -> out.add(subjectIri, predicateIri,
+						f.createLiteral(splitFragment), graphIri));
+				// A fragment never contains the delimiter, it is never the value split
+				if (deleteSplittedTriples)
+					out.deleteSource(getSource(bindingSet, "toSplit"));
+			}, !deleteSplittedTriples);
 		} finally {
-			selectResults.close();
-			if (deleteSplittedTriples) {
-				String deleteQueryString = "DELETE { " + "GRAPH ?g {"
-						+ "?s ?p ?o." + "} " + "}WHERE {" + "GRAPH ?g {"
-						+ "?s a <" + classToSplit + "> ;" + "?p ?o ."
-						+ "FILTER(?p = <" + propertyToSplit + ">)."
-						+ "FILTER(regex(?o, '" + splitDelimiter + "'))} } ";
-
-				System.out.println();
-				System.out.println(deleteQueryString);
-
-				Update update = conn.prepareUpdate(deleteQueryString);
-				update.execute();
-			}
-			conn.close();
+			// Load the last batch, wait for the upload stages and the deletes
+			loader.close();
+		}
+	}
+	
+	// A single char delimiter and quote can be handled with SPARQL regex functions, null if the rule can be pushed down
+	static String getPushDownUnsupportedReason(String splitDelimiter, String splitQuote) {
+		if (splitDelimiter.length() != 1)
+			return "delimiter is not a single char";
+		char d = splitDelimiter.charAt(0);
+		if (d != '|' && (REGEX_META_CHARS.indexOf(d) != -1 || d == '\\' || d == '\''))
+			return "delimiter can not be used in a SPARQL regex";
+		if (!splitQuote.equals(" ") && splitQuote.length() > 0) {
+			if (splitQuote.length() != 1)
+				return "quote is not a single char";
+			if (REGEX_META_CHARS.indexOf(splitQuote.charAt(0)) != -1 || "\\'\n\r\u0085\u2028\u2029".indexOf(splitQuote.charAt(0)) != -1)
+				return "quote can not be used in a SPARQL regex";
+		}
+		return null;
+	}
+	
+	/**
+	 * Insert the fragments with one SPARQL UPDATE. Fragment i of a value is extracted with a regex skipping i delimiters,
+	 * for i in a VALUES block up to the highest number of delimiters in a value. Like the client-side split,
+	 * trailing empty fragments are dropped, quotes are stripped and fragments are cut at the first "(".
+	 */
+	private void executePushDownSplit(String classToSplit, String propertyToSplit, String splitDelimiter, String splitQuote,
+			FragmentSplitter splitter) {
+		String pattern = "GRAPH ?g {" + "    	?s a <" + classToSplit + "> ;"
+				+ "      ?p ?toSplit ." + "    	FILTER(?p = <" + propertyToSplit + ">)." 
+				+ "FILTER(regex(?toSplit, '"+ splitter.getSelectPattern() + "'))" + "    }";
+		String d = splitDelimiter.equals("|") ? "\\|" : splitDelimiter;
+		String notD = "[^" + splitDelimiter + "]";
+		
+		int maxDelimiters = 0;
+		String maxQueryString = "SELECT (MAX(STRLEN(STR(?toSplit)) - STRLEN(REPLACE(STR(?toSplit), " + sparqlString(d) + ", \"\"))) AS ?max) WHERE { " + pattern + " }";
+		out.println(maxQueryString);
+		try (RepositoryConnection conn = repo.getConnection();
+				TupleQueryResult result = conn.prepareTupleQuery(maxQueryString).evaluate()) {
+			Value max = result.hasNext() ? result.next().getValue("max") : null;
+			if (max != null)
+				maxDelimiters = ((Literal) max).intValue();
 		}
-		return selectResults;
+		
+		StringBuilder indexes = new StringBuilder();
+		for (int i = 0; i <= maxDelimiters; i++)
+			indexes.append(i).append(' ');
+		String skipFragments = "CONCAT(" + sparqlString("^(" + notD + "*" + d + "){") + ", STR(?i), \"}\")";
+		String graph = varOutputGraph != null ? "<" + varOutputGraph + ">" : "?g";
+		
+		String updateString = "INSERT { GRAPH " + graph + " { ?s ?p ?fragment } } WHERE { " + pattern
+				+ " VALUES ?i { " + indexes + "}"
+				// Skip trailing empty fragments: something else than delimiters after fragment i
+				+ " FILTER(REGEX(STR(?toSplit), CONCAT(" + skipFragments + ", " + sparqlString(".*" + notD) + "), \"s\"))"
+				+ " BIND(REPLACE(STR(?toSplit), CONCAT(" + skipFragments + ", " + sparqlString("(" + notD + "*).*$") + "), \"$2\", \"s\") AS ?rawFragment)";
+		if (!splitQuote.equals(" ") && splitQuote.length() > 0) {
+			// Like Java $, also strip a quote before a final line terminator
+			updateString += " BIND(REPLACE(?rawFragment, " + sparqlString("^" + splitQuote + "|" + splitQuote + "(\r\n|[\n\r\u0085\u2028\u2029])?$") + ", \"$1\") AS ?unquoted)";
+		} else {
+			updateString += " BIND(?rawFragment AS ?unquoted)";
+		}
+		updateString += " BIND(IF(CONTAINS(?unquoted, \"(\"), STRBEFORE(?unquoted, \"(\"), ?unquoted) AS ?fragment) }";
+		
+		executeUpdate(updateString);
 	}
 
 }
@@ -0,0 +1,217 @@
+package nl.unimaas.ids.operations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.unimaas.ids.operations.load.StatementLoader;
+import nl.unimaas.ids.operations.transform.PrefixInference.Expansion;
+import nl.unimaas.ids.operations.transform.PrefixRegistry;
+import nl.unimaas.ids.operations.transform.TransformRule;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.repository.Repository;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Apply the split, trim, strip-parenthetical and expand rules of a rules file.
+ * The rules on the same class and property are applied in one scan of the values, in the order of the file:
+ * each rule applies to the value read, or to the values produced from it by the previous rules.
+ * A line of the former split file is not chained with the other rules, it runs on its own scan with the split operation.
+ */
+public class Transform extends AbstractTransformOperation {
+
+	private String prefixRegistry = null;
+
+	private int expandCacheSize = 100000;
+
+	public Transform(Repository repo, String varOutputGraph, int bufferSize) {
+		super(repo, varOutputGraph, bufferSize);
+		logger = LoggerFactory.getLogger(Transform.class.getName());
+	}
+
+	// File path or URL of the prefix registry used by expand-curie, null for the bundled registry
+	public void setPrefixRegistry(String prefixRegistry) {
+		this.prefixRegistry = prefixRegistry;
+	}
+
+	// Maximum number of values kept in the expansion cache of each expand-curie rule. 0 disables the cache
+	public void setExpandCacheSize(int expandCacheSize) {
+		this.expandCacheSize = expandCacheSize;
+	}
+
+	// Tab separated rules: class, property and transformations. Empty lines and lines starting with # are ignored
+	public static List<TransformRule> readRules(String rulesFile) throws IOException {
+		List<TransformRule> rules = new ArrayList<TransformRule>();
+		try (
+				Reader reader = Files.newBufferedReader(Paths.get(rulesFile));
+				CSVParser csvParser = new CSVParser(reader, CSVFormat.DEFAULT.withDelimiter('\t')
+						.withQuote(null).withCommentMarker('#').withIgnoreEmptyLines());
+		) {
+			for (CSVRecord csvRecord : csvParser) {
+				List<String> columns = new ArrayList<String>();
+				for (String column : csvRecord)
+					columns.add(column);
+				rules.add(TransformRule.parse(columns));
+			}
+		}
+		return rules;
+	}
+
+	public void executeRulesFile(String rulesFile, boolean deleteTransformedTriples) throws IOException {
+		if (rulesFile == null)
+			throw new IllegalArgumentException("The transform operation needs a --rules-file");
+		if (!new File(rulesFile).exists())
+			throw new IllegalArgumentException("Rules file \"" + rulesFile + "\" does not exist");
+		executeRules(readRules(rulesFile), deleteTransformedTriples);
+	}
+
+	public void executeRules(List<TransformRule> rules, boolean deleteTransformedTriples) throws IOException {
+		out.println("Transform buffer size: " + bufferSize);
+		checkIncremental(deleteTransformedTriples);
+		ValueFactory f = repo.getValueFactory();
+		PrefixRegistry registry = null;
+
+		// Rules grouped by class and property, in the order of their first rule. The split file lines stay alone
+		Map<String, List<TransformRule>> groups = new LinkedHashMap<String, List<TransformRule>>();
+		for (int i = 0; i < rules.size(); i++) {
+			TransformRule rule = rules.get(i);
+			if (rule.isExpansion() && registry == null)
+				registry = PrefixRegistry.get(prefixRegistry, out);
+			rule.prepare(f, registry, expandCacheSize);
+			String groupKey = rule.isSplitFileLine() ? "split-file-line|" + i : rule.getClassToTransform() + "|" + rule.getProperty();
+			if (!groups.containsKey(groupKey))
+				groups.put(groupKey, new ArrayList<TransformRule>());
+			groups.get(groupKey).add(rule);
+		}
+		out.println(rules.size() + " rules in " + groups.size() + " scans");
+
+		// One loader for all the groups, created by the first group needing it
+		StatementLoader loader = null;
+		try {
+			for (List<TransformRule> group : groups.values()) {
+				TransformRule first = group.get(0);
+				if (group.size() == 1 && first.isLegacySplit()) {
+					// Same as the former split file, which can be pushed down
+					out.println();
+					out.println("Splitting " + first.getProperty() + " of " + first.getClassToTransform());
+					Split split = new Split(repo, varOutputGraph, bufferSize);
+					split.copySettings(this);
+					split.executeSplit(first.getClassToTransform(), first.getProperty(), first.getDelimiter(), "\"", deleteTransformedTriples);
+					continue;
+				}
+				StringBuilder rule = new StringBuilder("transform|" + prefixRegistry + "|" + varOutputGraph);
+				for (TransformRule groupRule : group)
+					rule.append('|').append(groupRule);
+
+				out.println();
+				out.println("Transforming " + first.getProperty() + " of " + first.getClassToTransform() + " with " + group.size() + " rules");
+				if (!isStepDone(rule.toString(), "inserted")) {
+					if (loader == null)
+						loader = newLoader(deleteTransformedTriples);
+					executeGroup(rule.toString(), group, loader, deleteTransformedTriples);
+					// The values transformed are deleted in chunks with the loading
+					if (deleteTransformedTriples)
+						stepDone(rule.toString(), "deleted");
+					stepDone(rule.toString(), "inserted");
+				}
+			}
+		} finally {
+			if (loader != null)
+				loader.close();
+		}
+	}
+
+	// Read the values of the property once and apply the rules of the group to each
+	private void executeGroup(String rule, List<TransformRule> group, StatementLoader loader, boolean deleteTransformedTriples) {
+		ValueFactory f = repo.getValueFactory();
+		TransformRule first = group.get(0);
+		IRI outputGraphIri = varOutputGraph != null ? f.createIRI(varOutputGraph) : null;
+
+		// Not paged, the transformed values are loaded under the property read
+		scan(rule, loader, sliceFilter -> "SELECT ?s ?p ?value ?g WHERE {"
+				+ "    GRAPH ?g {" + "    	?s a <" + first.getClassToTransform() + "> ;"
+				+ "      ?p ?value ." + "    	FILTER(?p = <" + first.getProperty() + ">)."
+				+ getValuesFilter(group, "?value") + getNotExpandedFilter(group, "?value") + sliceFilter + "    } }",
+				(bindingSet, out) -> {
+			IRI subjectIri = f.createIRI(bindingSet.getValue("s").stringValue());
+			IRI predicateIri = f.createIRI(bindingSet.getValue("p").stringValue());
+			// Use graph IRI directly from the data, if no graph URI provided
+			IRI graphIri = outputGraphIri != null ? outputGraphIri : f.createIRI(bindingSet.getValue("g").stringValue());
+
+			// The value read, then the values produced by the rules. A value is consumed when a rule applied to it
+			List<String> values = new ArrayList<String>();
+			List<Boolean> consumed = new ArrayList<Boolean>();
+			List<Statement> outputs = new ArrayList<Statement>();
+			values.add(bindingSet.getValue("value").stringValue());
+			consumed.add(false);
+			for (TransformRule groupRule : group) {
+				int count = values.size();
+				for (int i = 0; i < count; i++) {
+					String value = values.get(i);
+					if (consumed.get(i) || !groupRule.appliesTo(value))
+						continue;
+					consumed.set(i, true);
+					if (groupRule.isExpansion()) {
+						groupRule.transform(value, transformed -> {
+							Expansion expansion = groupRule.expand(predicateIri, transformed);
+							outputs.add(f.createStatement(subjectIri, expansion.getPredicate(), expansion.getObject(), graphIri));
+						});
+					} else {
+						groupRule.transform(value, transformed -> {
+							values.add(transformed);
+							consumed.add(false);
+						});
+					}
+				}
+			}
+
+			// When the transformed statements are deleted, the intermediate values a rule applied to are not loaded
+			for (int i = 1; i < values.size(); i++) {
+				if (!deleteTransformedTriples || !consumed.get(i))
+					outputs.add(f.createStatement(subjectIri, predicateIri, f.createLiteral(values.get(i)), graphIri));
+			}
+			for (Statement output : outputs)
+				out.add(output);
+
+			// The value read is deleted if a rule applied to it, unless it is also an output
+			Statement source = getSource(bindingSet, "value");
+			if (deleteTransformedTriples && consumed.get(0) && !outputs.contains(source))
+				out.deleteSource(source);
+		}, false);
+		loader.awaitLoaded();
+	}
+
+	// The values loaded by the expand-prefix rules of the group, e.g. by a previous run in the graph read, are not transformed again
+	private static String getNotExpandedFilter(List<TransformRule> group, String variable) {
+		StringBuilder filter = new StringBuilder();
+		for (TransformRule rule : group) {
+			if (rule.getExpandPrefix() != null)
+				filter.append("FILTER(!STRSTARTS(STR(").append(variable).append("), ").append(sparqlString(rule.getExpandPrefix())).append(")).");
+		}
+		return filter.toString();
+	}
+
+	// FILTER on the values some rule of the group applies to, empty if a rule applies to all the values
+	private static String getValuesFilter(List<TransformRule> group, String variable) {
+		StringBuilder filter = new StringBuilder();
+		for (TransformRule rule : group) {
+			if (rule.getSelectPattern() == null)
+				return "";
+			filter.append(filter.length() == 0 ? "FILTER(" : " || ")
+					.append("regex(").append(variable).append(", '").append(rule.getSelectPattern()).append("')");
+		}
+		return filter.append(")").toString();
+	}
+}
@@ -0,0 +1,64 @@
+package nl.unimaas.ids.operations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Progress of split and expand rules, saved to a properties file each time a slice
+ * or a step of a rule is done so an interrupted run can be resumed.
+ * Rules are identified by a key built from all the parameters changing their output.
+ */
+public class TransformCheckpoint {
+	
+	private File file;
+	
+	private Properties state = new Properties();
+	
+	public TransformCheckpoint(File file, boolean resume, PrintStream out) throws IOException {
+		this.file = file;
+		if (resume && file.exists()) {
+			try (InputStream in = Files.newInputStream(file.toPath())) {
+				state.load(in);
+			}
+			out.println("Resuming from " + file + ": " + state.size() + " entries");
+		}
+	}
+	
+	public synchronized boolean isSliceDone(String rule, int slice) {
+		return state.containsKey(rule + "|slice." + slice);
+	}
+	
+	// The statements of the slice are loaded, loadedCount is the total loaded for the rule so far
+	public synchronized void sliceDone(String rule, int slice, long loadedCount) {
+		state.setProperty(rule + "|slice." + slice, Long.toString(loadedCount));
+		save();
+	}
+	
+	public synchronized boolean isStepDone(String rule, String step) {
+		return state.containsKey(rule + "|" + step);
+	}
+	
+	public synchronized void stepDone(String rule, String step) {
+		state.setProperty(rule + "|" + step, Long.toString(System.currentTimeMillis()));
+		save();
+	}
+	
+	// Written to a temporary file then moved, a crash never leaves a partial state file
+	private void save() {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		try {
+			try (OutputStream out = Files.newOutputStream(tmpFile.toPath())) {
+				state.store(out, "data2services-sparql-operations split and expand progress");
+			}
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new IllegalStateException("Can not write checkpoint file " + file, e);
+		}
+	}
+}
@@ -0,0 +1,368 @@
+package nl.unimaas.ids.operations.load;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.unimaas.ids.http.RetryPolicy;
+import nl.unimaas.ids.metrics.Metrics;
+
+import org.eclipse.rdf4j.IsolationLevel;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.RepositoryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Accumulates statements in fixed-size batches and loads them to the repository.
+ * With upload threads the batches go through a bounded queue to the upload stages,
+ * so the caller keeps reading while a batch is loaded and at most
+ * maxInFlightBatches full batches are held in memory. The batches can be loaded out of order,
+ * the statements count as loaded once all the batches submitted before theirs are loaded too.
+ */
+public class BatchLoader implements StatementLoader {
+
+	protected Logger logger = LoggerFactory.getLogger(BatchLoader.class.getName());
+	
+	// Marks the end of the stream for an upload stage
+	private static final Batch END_OF_STREAM = new Batch(new LinkedHashModel(), 0);
+	
+	private Repository repo;
+	
+	private int batchSize;
+	
+	private BlockingQueue<Batch> queue = null;
+	
+	private List<Thread> uploaders = new ArrayList<Thread>();
+	
+	// Connection used to load batches in the calling thread when there is no upload stage
+	private RepositoryConnection conn = null;
+	
+	private Model batch;
+	
+	private AtomicLong loadedCount = new AtomicLong();
+	
+	// Statements in the batches submitted so far, guarded by this
+	private long submittedCount = 0;
+	
+	// Statements submitted before the first batch not loaded yet, guarded by loadedLock
+	private long loadedPosition = 0;
+	
+	// Start to end position of the batches loaded before a batch submitted earlier, guarded by loadedLock
+	private Map<Long, Long> loadedAhead = new HashMap<Long, Long>();
+	
+	// Notified each time a batch is loaded
+	private final Object loadedLock = new Object();
+	
+	private volatile Throwable failure = null;
+	
+	private boolean closed = false;
+	
+	private long start = System.currentTimeMillis();
+	
+	// Statements per transaction, 0 for one transaction per batch
+	private int commitSize = 0;
+	
+	// null for the default isolation level of the repository
+	private IsolationLevel isolationLevel = null;
+	
+	private int commitRetries = 3;
+	
+	private long retryDelay = 1000;
+	
+	// Where the progress of the loads is printed
+	private PrintStream out = System.out;
+	
+	public BatchLoader(Repository repo, int batchSize, int uploadThreads, int maxInFlightBatches) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		this.repo = repo;
+		this.batchSize = batchSize;
+		this.batch = new LinkedHashModel();
+		
+		if (uploadThreads > 0) {
+			queue = new ArrayBlockingQueue<Batch>(Math.max(1, maxInFlightBatches));
+			for (int i = 0; i < uploadThreads; i++) {
+				Thread uploader = new Thread(this::upload, "upload-stage-" + i);
+				uploader.setDaemon(true);
+				uploader.start();
+				uploaders.add(uploader);
+			}
+		}
+	}
+	
+	public void setOutput(PrintStream out) {
+		this.out = out;
+	}
+	
+	// Number of statements committed in each transaction, 0 commits each batch in one transaction
+	public void setCommitSize(int commitSize) {
+		this.commitSize = commitSize;
+	}
+	
+	public void setIsolationLevel(IsolationLevel isolationLevel) {
+		this.isolationLevel = isolationLevel;
+	}
+	
+	// A failed transaction is rolled back and the batch is sent again after about retryDelay milliseconds, doubled after each failure
+	public void setCommitRetries(int commitRetries, long retryDelay) {
+		this.commitRetries = commitRetries;
+		this.retryDelay = retryDelay;
+	}
+	
+	@Override
+	public void add(Resource subject, IRI predicate, Value object, Resource context) {
+		add(repo.getValueFactory().createStatement(subject, predicate, object, context));
+	}
+	
+	@Override
+	public synchronized void add(Statement statement) {
+		if (closed)
+			throw new IllegalStateException("Loader already closed");
+		checkFailure();
+		batch.add(statement);
+		if (batch.size() >= batchSize) {
+			submit(batch);
+			batch = new LinkedHashModel();
+		}
+	}
+	
+	@Override
+	public long getLoadedCount() {
+		return loadedCount.get();
+	}
+	
+	// Load the current partial batch and wait until all the batches submitted before the call are loaded
+	@Override
+	public void awaitLoaded() {
+		long target;
+		synchronized (this) {
+			if (closed)
+				throw new IllegalStateException("Loader already closed");
+			checkFailure();
+			if (!batch.isEmpty()) {
+				submit(batch);
+				batch = new LinkedHashModel();
+			}
+			target = submittedCount;
+		}
+		awaitLoaded(target);
+	}
+	
+	@Override
+	public synchronized long getAddedCount() {
+		return submittedCount + (batch != null ? batch.size() : 0);
+	}
+	
+	// Also called after close, by a DeletingLoader waiting for the last batch
+	@Override
+	public void awaitLoaded(long position) {
+		try {
+			synchronized (loadedLock) {
+				while (loadedPosition < position) {
+					checkFailure();
+					loadedLock.wait(1000);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RepositoryException("Interrupted while waiting for the upload stages", e);
+		}
+		checkFailure();
+	}
+	
+	// Load the last partial batch and wait for the upload stages to finish
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			if (failure == null && !batch.isEmpty())
+				submit(batch);
+			batch = null;
+			if (queue != null) {
+				if (failure != null)
+					queue.clear();
+				for (int i = 0; i < uploaders.size(); i++)
+					enqueue(END_OF_STREAM);
+				for (Thread uploader : uploaders)
+					uploader.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RepositoryException("Interrupted while waiting for the upload stages", e);
+		} finally {
+			if (conn != null)
+				conn.close();
+		}
+		checkFailure();
+		out.println("Total updated triples: " + loadedCount.get());
+		printThroughput(out, "batches", loadedCount.get(), start);
+	}
+	
+	private void submit(Model model) {
+		Batch submitted = new Batch(model, submittedCount);
+		submittedCount += model.size();
+		if (queue == null) {
+			if (conn == null)
+				conn = repo.getConnection();
+			load(conn, submitted);
+		} else {
+			try {
+				enqueue(submitted);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RepositoryException("Interrupted while submitting a batch", e);
+			}
+		}
+	}
+	
+	// Blocks while the queue is full, giving up if an upload stage failed in the meantime
+	private void enqueue(Batch batch) throws InterruptedException {
+		while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+			if (batch != END_OF_STREAM)
+				checkFailure();
+			else if (failure != null)
+				queue.clear();
+		}
+	}
+	
+	private void load(RepositoryConnection connection, Batch batch) {
+		Model model = batch.model;
+		long flushStart = System.nanoTime();
+		if (commitSize <= 0 || model.size() <= commitSize) {
+			commit(connection, model);
+		} else {
+			List<Statement> transaction = new ArrayList<Statement>(commitSize);
+			for (Statement statement : model) {
+				transaction.add(statement);
+				if (transaction.size() == commitSize) {
+					commit(connection, transaction);
+					transaction.clear();
+				}
+			}
+			if (!transaction.isEmpty())
+				commit(connection, transaction);
+		}
+		Metrics.FLUSH_SECONDS.observeSince(flushStart);
+		Metrics.TRIPLES_WRITTEN.add(model.size());
+		out.println("Updated triples: " + loadedCount.addAndGet(model.size()));
+		synchronized (loadedLock) {
+			long end = batch.start + model.size();
+			if (batch.start != loadedPosition) {
+				loadedAhead.put(batch.start, end);
+			} else {
+				loadedPosition = end;
+				// The batches submitted after this one and already loaded
+				Long next;
+				while ((next = loadedAhead.remove(loadedPosition)) != null)
+					loadedPosition = next;
+			}
+			loadedLock.notifyAll();
+		}
+	}
+	
+	private void commit(RepositoryConnection connection, Iterable<Statement> statements) {
+		for (int attempt = 0; ; attempt++) {
+			try {
+				if (isolationLevel != null)
+					connection.begin(isolationLevel);
+				else
+					connection.begin();
+				connection.add(statements);
+				connection.commit();
+				return;
+			} catch (RepositoryException e) {
+				if (connection.isActive())
+					rollbackQuietly(connection);
+				if (attempt >= commitRetries)
+					throw e;
+				long delay = RetryPolicy.getDelay(retryDelay, attempt);
+				logger.warn("Commit failed, retrying in " + delay + "ms (" + (attempt + 1) + "/" + commitRetries + "): " + e.getMessage());
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new RepositoryException("Interrupted while waiting to retry a commit", ie);
+				}
+			}
+		}
+	}
+	
+	private void rollbackQuietly(RepositoryConnection connection) {
+		try {
+			connection.rollback();
+		} catch (RepositoryException e) {
+			logger.warn("Rollback failed: " + e.getMessage());
+		}
+	}
+	
+	// Upload stage: load batches from the queue on its own connection
+	private void upload() {
+		try (RepositoryConnection uploadConn = repo.getConnection()) {
+			while (true) {
+				Batch batch = queue.take();
+				if (batch == END_OF_STREAM)
+					break;
+				if (failure == null)
+					load(uploadConn, batch);
+			}
+		} catch (Throwable e) {
+			logger.error("Upload stage failed", e);
+			if (failure == null)
+				failure = e;
+			synchronized (loadedLock) {
+				loadedLock.notifyAll();
+			}
+			// Keep consuming so the reading stage and close() never block on a full queue
+			drainUntilEnd();
+		}
+	}
+	
+	private void drainUntilEnd() {
+		try {
+			while (queue.take() != END_OF_STREAM) {
+				// discard
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	static void printThroughput(PrintStream out, String mode, long loaded, long start) {
+		double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+		out.println("Loaded " + loaded + " triples in " + seconds + "s (" + Math.round(loaded / seconds) + " triples/s, upload mode: " + mode + ")");
+	}
+	
+	private void checkFailure() {
+		if (failure != null)
+			throw new RepositoryException("Loading batch to the SPARQL endpoint failed", failure);
+	}
+	
+	// Statements of a batch, with the number of statements submitted before it
+	private static class Batch {
+		
+		private final Model model;
+		
+		private final long start;
+		
+		Batch(Model model, long start) {
+			this.model = model;
+			this.start = start;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package nl.unimaas.ids.operations.load;
+
+import java.io.PrintStream;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+
+/**
+ * Drops the statements already added before they reach the loader.
+ * A 128-bit fingerprint of each statement is kept in a FingerprintSet, so the memory is
+ * bounded by the capacity (32 bytes per statement at most). When the set is full,
+ * the new statements are passed on without being checked.
+ */
+public class DedupLoader implements StatementLoader {
+
+	private StatementLoader loader;
+
+	private FingerprintSet fingerprints;
+
+	private long suppressedCount = 0;
+
+	private boolean closed = false;
+
+	// Where the progress of the loads is printed
+	private PrintStream out = System.out;
+
+	public DedupLoader(StatementLoader loader, int capacity) {
+		this.loader = loader;
+		this.fingerprints = new FingerprintSet(capacity);
+	}
+
+	public void setOutput(PrintStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void add(Resource subject, IRI predicate, Value object, Resource context) {
+		if (isNew(subject, predicate, object, context))
+			loader.add(subject, predicate, object, context);
+	}
+
+	@Override
+	public void add(Statement statement) {
+		if (isNew(statement.getSubject(), statement.getPredicate(), statement.getObject(), statement.getContext()))
+			loader.add(statement);
+	}
+
+	@Override
+	public void awaitLoaded() {
+		loader.awaitLoaded();
+	}
+
+	@Override
+	public long getAddedCount() {
+		return loader.getAddedCount();
+	}
+
+	@Override
+	public void awaitLoaded(long position) {
+		loader.awaitLoaded(position);
+	}
+
+	@Override
+	public long getLoadedCount() {
+		return loader.getLoadedCount();
+	}
+
+	public synchronized long getSuppressedCount() {
+		return suppressedCount;
+	}
+
+	@Override
+	public void close() {
+		loader.close();
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			long uncheckedCount = fingerprints.getOverflowCount();
+			out.println("Duplicate statements suppressed: " + suppressedCount + " (" + fingerprints.size() + " distinct statements"
+					+ (uncheckedCount > 0 ? ", table full: " + uncheckedCount + " statements not checked" : "") + ")");
+		}
+	}
+
+	private boolean isNew(Resource subject, IRI predicate, Value object, Resource context) {
+		// toString distinguishes URIs, blank nodes and literals with their datatype or language
+		if (fingerprints.add(FingerprintSet.fingerprint(subject.toString(), predicate.toString(), object.toString(),
+				context != null ? context.toString() : null)))
+			return true;
+		synchronized (this) {
+			suppressedCount++;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,303 @@
+package nl.unimaas.ids.operations.load;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import nl.unimaas.ids.http.RetryPolicy;
+import nl.unimaas.ids.metrics.Metrics;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.RepositoryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the statements with another loader, and deletes the source statements they are generated from
+ * in chunks of chunkSize statements, each in its own transaction (DELETE DATA for a SPARQL endpoint),
+ * while the reading and loading go on. A chunk is only deleted once the batches holding the statements
+ * added before it are loaded, so an interrupted run never loses a value. The chunks wait for the batches
+ * to fill up, they never make the loader send a partial batch. At most 2 chunks wait for the deletion thread
+ * while it deletes, more while it waits for the loader.
+ */
+public class DeletingLoader implements StatementLoader {
+
+	protected Logger logger = LoggerFactory.getLogger(DeletingLoader.class.getName());
+
+	private static final Chunk END_OF_STREAM = new Chunk(new ArrayList<Statement>(), 0);
+
+	// Chunks waiting while the deletion thread deletes, before deleteSource blocks
+	private static final int MAX_WAITING_CHUNKS = 2;
+
+	private Repository repo;
+
+	private StatementLoader loader;
+
+	private int chunkSize;
+
+	private List<Statement> chunk;
+
+	// Bounded by MAX_WAITING_CHUNKS, unless the deletion thread waits for the loader
+	private BlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+
+	private Thread deleter;
+
+	// Statements in the chunks submitted so far, guarded by this
+	private long submittedCount = 0;
+
+	private volatile long deletedCount = 0;
+
+	// Notified each time a chunk is deleted, or the deletion thread starts or stops waiting for the loader
+	private final Object deletedLock = new Object();
+
+	// True while the deletion thread waits for the statements generated from its chunk, guarded by deletedLock
+	private boolean waitingForLoader = false;
+
+	private volatile Throwable failure = null;
+
+	private boolean closed = false;
+
+	private long start = System.currentTimeMillis();
+
+	private int commitRetries = 0;
+
+	private long retryDelay = 1000;
+
+	// Where the progress of the loads is printed
+	private PrintStream out = System.out;
+
+	public DeletingLoader(Repository repo, StatementLoader loader, int chunkSize) {
+		if (chunkSize < 1)
+			throw new IllegalArgumentException("Delete chunk size must be at least 1");
+		this.repo = repo;
+		this.loader = loader;
+		this.chunkSize = chunkSize;
+		this.chunk = new ArrayList<Statement>(chunkSize);
+		deleter = new Thread(this::deleteChunks, "delete-stage");
+		deleter.setDaemon(true);
+		deleter.start();
+	}
+
+	public void setOutput(PrintStream out) {
+		this.out = out;
+	}
+
+	// A failed deletion is rolled back and the chunk is sent again after about retryDelay milliseconds, doubled after each failure
+	public void setCommitRetries(int commitRetries, long retryDelay) {
+		this.commitRetries = commitRetries;
+		this.retryDelay = retryDelay;
+	}
+
+	@Override
+	public void add(Resource subject, IRI predicate, Value object, Resource context) {
+		loader.add(subject, predicate, object, context);
+	}
+
+	@Override
+	public void add(Statement statement) {
+		loader.add(statement);
+	}
+
+	// Delete the statement once the statements added before are loaded, they must be added first
+	@Override
+	public synchronized void deleteSource(Statement statement) {
+		if (closed)
+			throw new IllegalStateException("Loader already closed");
+		checkFailure();
+		chunk.add(statement);
+		if (chunk.size() >= chunkSize)
+			submit();
+	}
+
+	// Wait until the statements added and deleted before the call are loaded and deleted
+	@Override
+	public void awaitLoaded() {
+		long target;
+		synchronized (this) {
+			if (closed)
+				throw new IllegalStateException("Loader already closed");
+			checkFailure();
+			if (!chunk.isEmpty())
+				submit();
+			target = submittedCount;
+		}
+		loader.awaitLoaded();
+		try {
+			synchronized (deletedLock) {
+				while (deletedCount < target) {
+					checkFailure();
+					deletedLock.wait(1000);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RepositoryException("Interrupted while waiting for the delete stage", e);
+		}
+		checkFailure();
+	}
+
+	@Override
+	public long getAddedCount() {
+		return loader.getAddedCount();
+	}
+
+	@Override
+	public void awaitLoaded(long position) {
+		loader.awaitLoaded(position);
+	}
+
+	@Override
+	public long getLoadedCount() {
+		return loader.getLoadedCount();
+	}
+
+	public long getDeletedCount() {
+		return deletedCount;
+	}
+
+	// The chunk is deleted once the statements added so far are loaded
+	private void submit() {
+		submittedCount += chunk.size();
+		queue.add(new Chunk(chunk, loader.getAddedCount()));
+		chunk = new ArrayList<Statement>(chunkSize);
+		// The reading waits while the deletion is behind, but not for the loader: the reading fills its batches
+		try {
+			synchronized (deletedLock) {
+				while (queue.size() > MAX_WAITING_CHUNKS && !waitingForLoader) {
+					checkFailure();
+					deletedLock.wait(1000);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RepositoryException("Interrupted while submitting statements to delete", e);
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Close the loader, loading the last batch, then delete the last chunks and wait for the deletion thread.
+	 * After a failure of the loader, the statements left are not deleted.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			try {
+				if (failure == null && !chunk.isEmpty())
+					submit();
+			} finally {
+				chunk = null;
+				loader.close();
+			}
+		} catch (RuntimeException e) {
+			// The deletion thread may wait for statements which will never be loaded
+			deleter.interrupt();
+			throw e;
+		} finally {
+			if (failure != null)
+				queue.clear();
+			queue.add(END_OF_STREAM);
+			try {
+				deleter.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RepositoryException("Interrupted while waiting for the delete stage", e);
+			}
+		}
+		checkFailure();
+		double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+		out.println("Deleted " + deletedCount + " statements in " + seconds + "s ("
+				+ Math.round(deletedCount / seconds) + " statements/s)");
+	}
+
+	// Deleting the chunk again is harmless, the statements deleted by the failed transaction are already gone
+	private void delete(RepositoryConnection conn, List<Statement> statements) throws InterruptedException {
+		for (int attempt = 0; ; attempt++) {
+			try {
+				conn.begin();
+				conn.remove(statements);
+				conn.commit();
+				return;
+			} catch (RepositoryException e) {
+				if (conn.isActive()) {
+					try {
+						conn.rollback();
+					} catch (RepositoryException re) {
+						logger.warn("Rollback failed: " + re.getMessage());
+					}
+				}
+				if (attempt >= commitRetries)
+					throw e;
+				long delay = RetryPolicy.getDelay(retryDelay, attempt);
+				logger.warn("Delete failed, retrying in " + delay + "ms (" + (attempt + 1) + "/" + commitRetries + "): " + e.getMessage());
+				Thread.sleep(delay);
+			}
+		}
+	}
+
+	private void deleteChunks() {
+		try (RepositoryConnection conn = repo.getConnection()) {
+			while (true) {
+				Chunk next = queue.take();
+				if (next == END_OF_STREAM)
+					return;
+				// The statements generated from these are loaded first
+				setWaitingForLoader(true);
+				try {
+					loader.awaitLoaded(next.position);
+				} finally {
+					setWaitingForLoader(false);
+				}
+				delete(conn, next.statements);
+				Metrics.TRIPLES_DELETED.add(next.statements.size());
+				deletedCount += next.statements.size();
+				out.println("Deleted triples: " + deletedCount);
+				synchronized (deletedLock) {
+					deletedLock.notifyAll();
+				}
+			}
+		} catch (Throwable e) {
+			logger.error("Delete stage failed", e);
+			failure = e;
+			queue.clear();
+			synchronized (deletedLock) {
+				deletedLock.notifyAll();
+			}
+		}
+	}
+
+	private void setWaitingForLoader(boolean waiting) {
+		synchronized (deletedLock) {
+			waitingForLoader = waiting;
+			deletedLock.notifyAll();
+		}
+	}
+
+	private void checkFailure() {
+		if (failure != null)
+			throw new RepositoryException("Deleting the transformed statements failed", failure);
+	}
+
+	// Statements to delete once the loader loaded the statements added before the position
+	private static class Chunk {
+
+		private final List<Statement> statements;
+
+		private final long position;
+
+		Chunk(List<Statement> statements, long position) {
+			this.statements = statements;
+			this.position = position;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package nl.unimaas.ids.operations.load;
+
+import java.util.BitSet;
+
+/**
+ * Set of 128-bit fingerprints in an open addressing table of longs, growing up to maxSize fingerprints
+ * (16 bytes per slot, at least 2 slots per fingerprint). A fingerprint can be marked, e.g. once it is seen again.
+ * Thread safe.
+ */
+public class FingerprintSet {
+
+	private static final int MAX_SIZE = 1 << 28;
+
+	private int maxSize;
+
+	// Pairs of longs, 0 0 is an empty slot
+	private long[] table;
+
+	private BitSet marks;
+
+	private int mask;
+
+	private int size = 0;
+
+	private long overflowCount = 0;
+
+	public FingerprintSet(int maxSize) {
+		if (maxSize < 1 || maxSize > MAX_SIZE)
+			throw new IllegalArgumentException("Number of fingerprints must be between 1 and " + MAX_SIZE);
+		this.maxSize = maxSize;
+		allocate(Math.min(1 << 10, Integer.highestOneBit(maxSize * 2 - 1) << 1));
+	}
+
+	/**
+	 * Fingerprint of the strings, e.g. the values of a statement. Two halves of 64 bits hashed with different
+	 * multipliers and mixed with the MurmurHash3 finalizer. Not cryptographic, but collisions are negligible.
+	 */
+	public static long[] fingerprint(String... parts) {
+		long h1 = 0x9E3779B97F4A7C15L;
+		long h2 = 0xC2B2AE3D27D4EB4FL;
+		for (String part : parts) {
+			String s = part != null ? part : "";
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				h1 = (h1 ^ c) * 0x100000001B3L;
+				h2 = (h2 ^ c) * 0xFF51AFD7ED558CCDL + 0x2545F4914F6CDD1DL;
+			}
+			// Separator between the parts
+			h1 = (h1 ^ 0x10000) * 0x100000001B3L;
+			h2 = (h2 ^ 0x10000) * 0xFF51AFD7ED558CCDL + 0x2545F4914F6CDD1DL;
+		}
+		h1 = mix(h1 ^ h2 >>> 29);
+		h2 = mix(h2 + h1);
+		if (h1 == 0 && h2 == 0)
+			h2 = 1;
+		return new long[] {h1, h2};
+	}
+
+	// Hexadecimal form of a fingerprint, e.g. for a file name
+	public static String toHex(long[] fingerprint) {
+		return String.format("%016x%016x", fingerprint[0], fingerprint[1]);
+	}
+
+	/**
+	 * Add the fingerprint, false if it was already in the set.
+	 * When the set is full the fingerprint is not added, true is returned and the overflow count incremented.
+	 */
+	public synchronized boolean add(long[] fingerprint) {
+		int slot = find(fingerprint);
+		if (table[slot * 2] != 0 || table[slot * 2 + 1] != 0)
+			return false;
+		if (size >= maxSize) {
+			overflowCount++;
+			return true;
+		}
+		table[slot * 2] = fingerprint[0];
+		table[slot * 2 + 1] = fingerprint[1];
+		size++;
+		if (size * 2L > mask + 1 && (mask + 1) * 2L <= Integer.highestOneBit(maxSize * 2 - 1) << 1)
+			allocate((mask + 1) * 2);
+		return true;
+	}
+
+	// Mark the fingerprint, false if it is not in the set
+	public synchronized boolean mark(long[] fingerprint) {
+		int slot = find(fingerprint);
+		if (table[slot * 2] == 0 && table[slot * 2 + 1] == 0)
+			return false;
+		marks.set(slot);
+		return true;
+	}
+
+	public synchronized boolean isMarked(long[] fingerprint) {
+		return marks.get(find(fingerprint));
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	// Fingerprints not added because the set was full
+	public synchronized long getOverflowCount() {
+		return overflowCount;
+	}
+
+	// Slot of the fingerprint, or the empty slot where it would be added
+	private int find(long[] fingerprint) {
+		int slot = (int) fingerprint[0] & mask;
+		while (true) {
+			long a = table[slot * 2];
+			long b = table[slot * 2 + 1];
+			if ((a == 0 && b == 0) || (a == fingerprint[0] && b == fingerprint[1]))
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private void allocate(int slots) {
+		long[] previousTable = table;
+		BitSet previousMarks = marks;
+		table = new long[slots * 2];
+		marks = new BitSet(slots);
+		mask = slots - 1;
+		if (previousTable == null)
+			return;
+		for (int slot = 0; slot < previousTable.length / 2; slot++) {
+			long[] fingerprint = {previousTable[slot * 2], previousTable[slot * 2 + 1]};
+			if (fingerprint[0] == 0 && fingerprint[1] == 0)
+				continue;
+			int newSlot = find(fingerprint);
+			table[newSlot * 2] = fingerprint[0];
+			table[newSlot * 2 + 1] = fingerprint[1];
+			if (previousMarks.get(slot))
+				marks.set(newSlot);
+		}
+	}
+
+	// Finalizer of MurmurHash3
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
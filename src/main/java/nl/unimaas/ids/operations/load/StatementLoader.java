@@ -0,0 +1,38 @@
+package nl.unimaas.ids.operations.load;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+
+/**
+ * Loads the statements generated by split and expand to the repository.
+ * Implementations are thread safe, statements can be added from several reading threads.
+ */
+public interface StatementLoader extends AutoCloseable {
+	
+	public void add(Resource subject, IRI predicate, Value object, Resource context);
+	
+	public void add(Statement statement);
+	
+	// Delete a statement the added statements are generated from, once they are loaded. Only supported by a DeletingLoader
+	public default void deleteSource(Statement statement) {
+		throw new UnsupportedOperationException("Deleting the source statements needs a DeletingLoader");
+	}
+	
+	// Wait until all the statements added before the call are loaded
+	public void awaitLoaded();
+	
+	// Number of statements added so far, a position to wait for with awaitLoaded(position)
+	public long getAddedCount();
+	
+	// Wait until the statements added before the position are loaded, without sending the current partial batch
+	public void awaitLoaded(long position);
+	
+	public long getLoadedCount();
+	
+	// Load the remaining statements, wait for the upload stages to finish and print the throughput
+	@Override
+	public void close();
+	
+}
@@ -0,0 +1,319 @@
+package nl.unimaas.ids.operations.load;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import nl.unimaas.ids.metrics.Metrics;
+
+import org.eclipse.rdf4j.IsolationLevel;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.RepositoryException;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.RDFWriter;
+import org.eclipse.rdf4j.rio.Rio;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the statements to an RDF stream (e.g. binary RDF or N-Quads) read by an upload thread
+ * sending it to the repository as it is produced, with chunked transfer for an HTTPRepository.
+ * No batch is held in memory, only the chunks of the pipe. A new stream, and transaction,
+ * is started every streamSize statements.
+ */
+public class StreamingLoader implements StatementLoader {
+
+	protected Logger logger = LoggerFactory.getLogger(StreamingLoader.class.getName());
+
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	private static final int MAX_CHUNKS_IN_FLIGHT = 16;
+
+	private Repository repo;
+
+	private RDFFormat format;
+
+	private long streamSize;
+
+	private IsolationLevel isolationLevel = null;
+
+	private RepositoryConnection conn = null;
+
+	// Current stream, null between streams
+	private ChunkPipe pipe = null;
+	private RDFWriter writer = null;
+	private Thread uploader = null;
+	private long streamCount = 0;
+
+	private volatile long loadedCount = 0;
+
+	// Notified each time a stream is loaded, or failed
+	private final Object loadedLock = new Object();
+
+	private volatile Throwable failure = null;
+
+	private boolean closed = false;
+
+	private long start = System.currentTimeMillis();
+
+	// Where the progress of the loads is printed
+	private PrintStream out = System.out;
+
+	public StreamingLoader(Repository repo, RDFFormat format, long streamSize) {
+		if (streamSize < 1)
+			throw new IllegalArgumentException("Stream size must be at least 1");
+		this.repo = repo;
+		this.format = format;
+		this.streamSize = streamSize;
+	}
+
+	public void setOutput(PrintStream out) {
+		this.out = out;
+	}
+
+	// null for the default isolation level of the repository
+	public void setIsolationLevel(IsolationLevel isolationLevel) {
+		this.isolationLevel = isolationLevel;
+	}
+
+	@Override
+	public void add(Resource subject, IRI predicate, Value object, Resource context) {
+		add(repo.getValueFactory().createStatement(subject, predicate, object, context));
+	}
+
+	@Override
+	public synchronized void add(Statement statement) {
+		if (closed)
+			throw new IllegalStateException("Loader already closed");
+		checkFailure();
+		if (writer == null)
+			startStream();
+		try {
+			writer.handleStatement(statement);
+		} catch (RuntimeException e) {
+			// Writing fails when the upload stopped, endStream reports why
+			endStream();
+			throw e;
+		}
+		if (++streamCount >= streamSize)
+			endStream();
+	}
+
+	@Override
+	public synchronized void awaitLoaded() {
+		if (closed)
+			throw new IllegalStateException("Loader already closed");
+		endStream();
+	}
+
+	@Override
+	public synchronized long getAddedCount() {
+		return loadedCount + (writer != null ? streamCount : 0);
+	}
+
+	// Waits for the streams ending every streamSize statements, or at close
+	@Override
+	public void awaitLoaded(long position) {
+		try {
+			synchronized (loadedLock) {
+				while (loadedCount < position) {
+					checkFailure();
+					loadedLock.wait(1000);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RepositoryException("Interrupted while waiting for the upload stream", e);
+		}
+	}
+
+	@Override
+	public long getLoadedCount() {
+		return loadedCount;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			endStream();
+		} finally {
+			if (conn != null)
+				conn.close();
+		}
+		out.println("Total updated triples: " + loadedCount);
+		BatchLoader.printThroughput(out, format.getName(), loadedCount, start);
+	}
+
+	private void startStream() {
+		if (conn == null)
+			conn = repo.getConnection();
+		pipe = new ChunkPipe();
+		streamCount = 0;
+		RepositoryConnection uploadConn = conn;
+		ChunkPipe uploadPipe = pipe;
+		uploader = new Thread(() -> {
+			try {
+				if (isolationLevel != null)
+					uploadConn.begin(isolationLevel);
+				else
+					uploadConn.begin();
+				uploadConn.add(uploadPipe.input, "", format);
+				uploadConn.commit();
+			} catch (Throwable e) {
+				logger.error("Streaming upload failed", e);
+				failure = e;
+				if (uploadConn.isActive())
+					uploadConn.rollback();
+				synchronized (loadedLock) {
+					loadedLock.notifyAll();
+				}
+			} finally {
+				// Unblock the writer if the upload stopped before the end of the stream
+				uploadPipe.readerDone = true;
+			}
+		}, "upload-stream");
+		uploader.setDaemon(true);
+		uploader.start();
+		writer = Rio.createWriter(format, new BufferedOutputStream(pipe.output, CHUNK_SIZE));
+		writer.startRDF();
+	}
+
+	// Finish the current stream and wait until the repository confirmed it
+	private void endStream() {
+		if (writer == null)
+			return;
+		// The flush is the end of the stream and the commit by the repository
+		long flushStart = System.nanoTime();
+		try {
+			if (failure == null)
+				writer.endRDF();
+		} finally {
+			pipe.end();
+			writer = null;
+		}
+		try {
+			uploader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RepositoryException("Interrupted while waiting for the upload stream", e);
+		}
+		checkFailure();
+		Metrics.FLUSH_SECONDS.observeSince(flushStart);
+		Metrics.TRIPLES_WRITTEN.add(streamCount);
+		synchronized (loadedLock) {
+			loadedCount += streamCount;
+			loadedLock.notifyAll();
+		}
+		out.println("Updated triples: " + loadedCount);
+	}
+
+	private void checkFailure() {
+		if (failure != null)
+			throw new RepositoryException("Streaming statements to the SPARQL endpoint failed", failure);
+	}
+
+	/**
+	 * Bounded pipe of byte chunks between the writing thread and the upload thread.
+	 * Unlike PipedInputStream, it does not depend on the writing thread staying alive.
+	 */
+	private static class ChunkPipe {
+
+		private static final byte[] END = new byte[0];
+
+		private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(MAX_CHUNKS_IN_FLIGHT);
+
+		private volatile boolean readerDone = false;
+
+		final OutputStream output = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte) b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if (len > 0)
+					put(Arrays.copyOfRange(b, off, off + len));
+			}
+
+			@Override
+			public void close() {
+				end();
+			}
+		};
+		
+		private boolean ended = false;
+		
+		// Mark the end of the stream for the reader
+		void end() {
+			if (ended)
+				return;
+			ended = true;
+			try {
+				put(END);
+			} catch (IOException e) {
+				// Reader already gone, nothing to signal
+			}
+		}
+
+		private void put(byte[] chunk) throws IOException {
+			try {
+				while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+					if (readerDone)
+						throw new IOException("Upload stream closed");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while writing to the upload stream", e);
+			}
+		}
+
+		final InputStream input = new InputStream() {
+			private byte[] chunk = null;
+			private int position = 0;
+
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				if (chunk == null || position == chunk.length) {
+					if (chunk == END)
+						return -1;
+					try {
+						chunk = chunks.take();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while reading the upload stream", e);
+					}
+					position = 0;
+					if (chunk == END)
+						return -1;
+				}
+				int n = Math.min(len, chunk.length - position);
+				System.arraycopy(chunk, position, b, off, n);
+				position += n;
+				return n;
+			}
+		};
+	}
+}
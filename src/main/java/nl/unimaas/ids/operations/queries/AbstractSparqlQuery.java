@@ -1,24 +1,41 @@
 package nl.unimaas.ids.operations.queries;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
+import java.util.zip.GZIPOutputStream;
 import java.util.regex.Pattern;
 
+import nl.unimaas.ids.metrics.Metrics;
+import nl.unimaas.ids.operations.QueryOperations;
+
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.filefilter.DirectoryFileFilter;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.commons.io.filefilter.RegexFileFilter;
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultFormat;
 import org.eclipse.rdf4j.repository.Repository;
 import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.rio.RDFFormat;
 import org.jsoup.Jsoup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,6 +49,38 @@ public abstract class AbstractSparqlQuery implements SparqlExecutorInterface {
 	String varOutputGraph;
 	String varServiceUrl;
 	
+	private int queryParallelism = 1;
+	
+	private boolean parallelUpdates = false;
+	
+	private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+	
+	protected RDFFormat constructFormat = RDFFormat.TURTLE;
+	
+	protected TupleQueryResultFormat selectFormat = TupleQueryResultFormat.TSV;
+	
+	private boolean gzipOutput = false;
+	
+	private File checkpointFile = null;
+	
+	private boolean resume = false;
+	
+	// Values of the ?_name placeholders set with --var, besides the input, output and service URL
+	private Map<String, String> variables = new HashMap<String, String>();
+	
+	private ResultCache resultCache = null;
+	
+	// null to send the SELECT and CONSTRUCT queries at once
+	private QueryPaginator paginator = null;
+	
+	// Where the results without output file and the progress are printed
+	private PrintStream out = System.out;
+	
+	private Map<QueryOperations, SparqlExecutorInterface> executors = new HashMap<QueryOperations, SparqlExecutorInterface>();
+	
+	// Shared with the executors of the other operations
+	private static final ThreadLocal<ByteArrayOutputStream> capturedStdout = new ThreadLocal<ByteArrayOutputStream>();
+	
 	public AbstractSparqlQuery(Repository repo, String varInputGraph, String varOutputGraph, String varServiceUrl) {
 		this.repo = repo;
 		
@@ -42,89 +91,346 @@ public abstract class AbstractSparqlQuery implements SparqlExecutorInterface {
 
 	// Executed when files are provided. Execute from single file from URL or file path, or multiple files from directory
 	public void executeFiles(String filePath) throws Exception {
+		List<QueryTask> tasks = new ArrayList<QueryTask>();
 		
-		try (RepositoryConnection conn = repo.getConnection()) {
-			if (filePath.startsWith("https://github.com/")) {
-				// Crawl a given path in a github repository to execute .rq files
-				logger.info("Crawling GitHub page: " + filePath);
-				ArrayList<URL> queryList = crawlGithubToGetQueries(filePath);
-				for (URL queryUrl : queryList) {
-					logger.info("Executing GitHub URL: " + queryUrl.toString());
-					executeFromUrl(conn, queryUrl);
+		if (filePath.startsWith("https://github.com/")) {
+			// Crawl a given path in a github repository to execute .rq files
+			logger.info("Crawling GitHub page: " + filePath);
+			ArrayList<URL> queryList = crawlGithubToGetQueries(filePath);
+			for (URL queryUrl : queryList) {
+				logger.info("Reading GitHub URL: " + queryUrl.toString());
+				addTasksFromUrl(tasks, queryUrl);
+			}
+		} else if (filePath.matches("^(http|https|ftp)://.*$")) {
+			// If user provide a URL
+			addTasksFromUrl(tasks, new URL(filePath));
+		} else {
+			// File or dir path provided
+			File inputFile = new File(filePath);
+			if(!inputFile.exists())
+				throw new IllegalArgumentException("Input file \"" + inputFile.getAbsolutePath() + "\" does not exist");
+			if(!inputFile.canRead())
+				throw new SecurityException("Can not read from input file \"" + inputFile.getAbsolutePath() + "\"");
+			
+			// if input file is a directory 
+			if (inputFile.isDirectory()) {
+				Collection<File> files = FileUtils.listFiles(
+						inputFile,
+						new RegexFileFilter(".*\\.(rq|sparql)"),
+						DirectoryFileFilter.DIRECTORY
+				);
+				List<File> fileList = new ArrayList<File>(files);
+				Collections.sort(fileList);
+				// Recursively iterate over files in the directory in the alphabetical order
+				Iterator<File> iterator = fileList.iterator();
+				while (iterator.hasNext()) {
+					File f = iterator.next();
+					String queryString = resolveVariables(FileUtils.readFileToString(f, "UTF-8"));
+					tasks.add(new QueryTask(tasks.size(), f.getPath(), queryString, f.getPath()));
 				}
-			} else if (filePath.matches("^(http|https|ftp)://.*$")) {
-				// If user provide a URL
-				executeFromUrl(conn, new URL(filePath));
-			} else {
-				// File or dir path provided
-				File inputFile = new File(filePath);
-				if(!inputFile.exists())
-					throw new IllegalArgumentException("Input file \"" + inputFile.getAbsolutePath() + "\" does not exist");
-				if(!inputFile.canRead())
-					throw new SecurityException("Can not read from input file \"" + inputFile.getAbsolutePath() + "\"");
 				
-				// if input file is a directory 
-				if (inputFile.isDirectory()) {
-					Collection<File> files = FileUtils.listFiles(
-							inputFile,
-							new RegexFileFilter(".*\\.(rq|sparql)"),
-							DirectoryFileFilter.DIRECTORY
-					);
-					List<File> fileList = new ArrayList<File>(files);
-					Collections.sort(fileList);
-					// Recursively iterate over files in the directory in the alphabetical order
-					Iterator<File> iterator = fileList.iterator();
-					while (iterator.hasNext()) {
-						File f = iterator.next();
-						String queryString = resolveVariables(FileUtils.readFileToString(f, "UTF-8"));
-						executeQuery(conn, queryString, f.getPath());
+			} else if (FilenameUtils.getExtension(inputFile.getName()).equals("yaml")) { 
+				// If input file is YAML we parse it to execute provided queries
+				tasks.addAll(parseQueriesYaml(inputFile, inputFile.getPath(), tasks.size()));
+			} else {
+				// Single file provided
+				String queryString = resolveVariables(FileUtils.readFileToString(inputFile, "UTF-8"));
+				tasks.add(new QueryTask(tasks.size(), inputFile.getPath(), queryString, inputFile.getPath()));
+			}
+		}
+		
+		executeTasks(tasks);
+		//repo.shutDown();
+	}
+	
+	// Values of ?_name placeholders, they take precedence over --var-inputGraph, --var-outputGraph and --var-serviceUrl
+	public void setVariables(Map<String, String> variables) {
+		this.variables = variables != null ? new HashMap<String, String>(variables) : new HashMap<String, String>();
+	}
+	
+	// Cache of the SELECT and CONSTRUCT results, null to always query the endpoint
+	public void setResultCache(ResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+	
+	protected ResultCache getResultCache() {
+		return resultCache;
+	}
+	
+	// Fetch the SELECT and CONSTRUCT results in pages of pageSize rows, 0 to send the queries at once
+	public void setPagination(int pageSize, int prefetch, int retries) {
+		this.paginator = pageSize > 0 ? new QueryPaginator(repo, pageSize, prefetch, retries) : null;
+	}
+	
+	protected QueryPaginator getPaginator() {
+		return paginator;
+	}
+	
+	public void setOutput(PrintStream out) {
+		this.out = out;
+	}
+	
+	// Number of queries executed at the same time, each on its own connection
+	public void setQueryParallelism(int queryParallelism) {
+		this.queryParallelism = queryParallelism;
+	}
+	
+	// Updates may depend on each other, they are only executed in parallel when explicitly allowed
+	public void setParallelUpdates(boolean parallelUpdates) {
+		this.parallelUpdates = parallelUpdates;
+	}
+	
+	// False for operations modifying the repository
+	protected boolean isReadOnly() {
+		return true;
+	}
+	
+	// Where results without output file are written: the output, or the buffer of the query when running in parallel
+	protected OutputStream getStdout() {
+		ByteArrayOutputStream buffer = capturedStdout.get();
+		return buffer != null ? buffer : out;
+	}
+	
+	// Buffered stream to the file outputFilepath.extension, or to the stdout when no output file, compressed if asked. Closing it does not close the stdout
+	protected OutputStream openOutput(String outputFilepath, String extension) throws IOException {
+		OutputStream out;
+		if (outputFilepath == null) {
+			out = new BufferedOutputStream(new CloseShieldOutputStream(getStdout()), OUTPUT_BUFFER_SIZE);
+		} else {
+			Path path = Paths.get(outputFilepath + "." + extension + (gzipOutput ? ".gz" : ""));
+			out = new BufferedOutputStream(Channels.newOutputStream(FileChannel.open(path,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)), OUTPUT_BUFFER_SIZE);
+		}
+		if (gzipOutput)
+			out = new BufferedOutputStream(new GZIPOutputStream(out, 1 << 16), 1 << 16);
+		return out;
+	}
+	
+	// none or gzip
+	public void setOutputCompression(String outputCompression) {
+		switch (outputCompression) {
+		case "none":
+			this.gzipOutput = false;
+			break;
+		case "gzip":
+			this.gzipOutput = true;
+			break;
+		default:
+			throw new IllegalArgumentException("Supported output compressions: none and gzip.");
+		}
+	}
+	
+	// tsv, csv, json or binary
+	public void setSelectFormat(String selectFormat) {
+		switch (selectFormat) {
+		case "tsv":
+			this.selectFormat = TupleQueryResultFormat.TSV;
+			break;
+		case "csv":
+			this.selectFormat = TupleQueryResultFormat.CSV;
+			break;
+		case "json":
+			this.selectFormat = TupleQueryResultFormat.JSON;
+			break;
+		case "binary":
+			this.selectFormat = TupleQueryResultFormat.BINARY;
+			break;
+		default:
+			throw new IllegalArgumentException("Supported SELECT formats: tsv, csv, json and binary.");
+		}
+	}
+	
+	// turtle, ntriples, nquads or binary
+	public void setConstructFormat(String constructFormat) {
+		switch (constructFormat) {
+		case "turtle":
+			this.constructFormat = RDFFormat.TURTLE;
+			break;
+		case "ntriples":
+			this.constructFormat = RDFFormat.NTRIPLES;
+			break;
+		case "nquads":
+			this.constructFormat = RDFFormat.NQUADS;
+			break;
+		case "binary":
+			this.constructFormat = RDFFormat.BINARY;
+			break;
+		default:
+			throw new IllegalArgumentException("Supported CONSTRUCT formats: turtle, ntriples, nquads and binary.");
+		}
+	}
+	
+	// The executors of the other operations write their results like this one
+	private void copyOutputSettings(AbstractSparqlQuery executor) {
+		executor.constructFormat = constructFormat;
+		executor.selectFormat = selectFormat;
+		executor.gzipOutput = gzipOutput;
+		executor.resultCache = resultCache;
+		executor.paginator = paginator;
+		executor.out = out;
+	}
+	
+	// Queries executed by other operations than the one of the executor, when set in the YAML file
+	private SparqlExecutorInterface getExecutor(QueryTask task) throws Exception {
+		if (task.getOperation() == null)
+			return this;
+		SparqlExecutorInterface executor = executors.get(task.getOperation());
+		if (executor == null) {
+			executor = SparqlQueryFactory.getSparqlExecutor(task.getOperation(), repo, varInputGraph, varOutputGraph, varServiceUrl);
+			copyOutputSettings((AbstractSparqlQuery) executor);
+			executors.put(task.getOperation(), executor);
+		}
+		return executor;
+	}
+	
+	// Queries successful in a previous run are not executed again when resuming from the checkpoint file
+	public void setCheckpoint(File checkpointFile, boolean resume) {
+		this.checkpointFile = checkpointFile;
+		this.resume = resume;
+	}
+	
+	// Execute the queries in their order, or on a pool of connections following their dependencies, then print the report
+	private void executeTasks(List<QueryTask> tasks) throws Exception {
+		int threads = Math.min(queryParallelism, tasks.size());
+		boolean dependencies = false;
+		boolean readOnly = true;
+		for (QueryTask task : tasks) {
+			dependencies |= !task.getDependsOn().isEmpty();
+			readOnly &= ((AbstractSparqlQuery) getExecutor(task)).isReadOnly();
+		}
+		// Without depends_on, the updates may depend on any previous query
+		if (!dependencies && threads > 1 && !readOnly && !parallelUpdates) {
+			out.println("Executing updates one after the other, use --parallel-updates or depends_on to execute them in parallel");
+			threads = 1;
+		}
+		// Executed one after the other, the next queries are skipped after a failure
+		if (!dependencies && threads <= 1) {
+			for (int i = 1; i < tasks.size(); i++)
+				tasks.get(i).setDependsOn(Collections.singletonList(tasks.get(i - 1).getId()));
+		}
+		
+		long start = System.currentTimeMillis();
+		if (threads > 1)
+			out.println("Executing " + tasks.size() + " queries on " + threads + " connections");
+		
+		// One connection per worker, closed when all the queries are done
+		List<RepositoryConnection> connections = Collections.synchronizedList(new ArrayList<RepositoryConnection>());
+		ThreadLocal<RepositoryConnection> workerConnection = ThreadLocal.withInitial(() -> {
+			RepositoryConnection conn = repo.getConnection();
+			connections.add(conn);
+			return conn;
+		});
+		boolean captureStdout = threads > 1;
+		QueryScheduler scheduler = new QueryScheduler(threads);
+		scheduler.setOutput(out);
+		scheduler.setCheckpoint(checkpointFile, resume);
+		try {
+			scheduler.run(tasks, task -> {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				if (captureStdout)
+					capturedStdout.set(buffer);
+				try {
+					executeTask(workerConnection.get(), task);
+				} catch (RuntimeException e) {
+					// Failed to open the connection
+					task.failed(0, e);
+				} finally {
+					capturedStdout.remove();
+					// Print the results of a query in one piece
+					synchronized (out) {
+						out.write(buffer.toByteArray(), 0, buffer.size());
+						out.flush();
 					}
-					
-				} else if (FilenameUtils.getExtension(inputFile.getName()).equals("yaml")) { 
-					// If input file is YAML we parse it to execute provided queries
-					parseQueriesYaml(conn, inputFile);
-				} else {
-					// Single file provided
-					String queryString = resolveVariables(FileUtils.readFileToString(inputFile, "UTF-8"));
-					executeQuery(conn, queryString, inputFile.getPath());
 				}
-			}
+			});
+		} finally {
+			for (RepositoryConnection conn : connections)
+				conn.close();
+		}
+		
+		if (tasks.size() > 1)
+			printReport(tasks, System.currentTimeMillis() - start);
+		
+		for (QueryTask task : tasks) {
+			if (task.getStatus() == QueryTask.Status.FAILED)
+				throw new Exception("Query " + task.getName() + " failed", task.getError());
+		}
+	}
+	
+	private boolean executeTask(RepositoryConnection conn, QueryTask task) {
+		long start = System.currentTimeMillis();
+		try {
+			((AbstractSparqlQuery) getExecutor(task)).executeTimedQuery(conn, task.getQueryString(), task.getOutputFilepath());
+			task.succeeded(System.currentTimeMillis() - start);
+			return true;
+		} catch (Exception e) {
+			logger.error("Query " + task.getName() + " failed: " + e.getMessage());
+			task.failed(System.currentTimeMillis() - start, e);
+			return false;
+		}
+	}
+	
+	// Execute the query, recording its duration and failure in the metrics
+	private void executeTimedQuery(RepositoryConnection conn, String queryString, String outputFilepath) throws Exception {
+		long start = System.nanoTime();
+		try {
+			executeQuery(conn, queryString, outputFilepath);
+			// The next results may differ from the cached ones
+			if (!isReadOnly() && resultCache != null)
+				resultCache.dataChanged();
 		} catch (Exception e) {
+			Metrics.QUERY_ERRORS.inc();
 			throw e;
+		} finally {
+			Metrics.QUERIES.inc();
+			Metrics.QUERY_SECONDS.observeSince(start);
 		}
-		//repo.shutDown();
 	}
 	
-	// We replace ?_var with the corresponding value
-	private String resolveVariables(String query) {
-		//scanForVariables(query);
-		query = query.replaceAll("\\?_input", varInputGraph);
-		query = query.replaceAll("\\?_output", varOutputGraph);
-		query = query.replaceAll("\\?_serviceUrl", varServiceUrl);
-		logger.info("    SPARQL query after replace all: " + query);
-	    return query;
+	private void printReport(List<QueryTask> tasks, long wallTime) {
+		out.println();
+		out.println("Queries executed in " + (wallTime / 1000.0) + "s:");
+		for (QueryTask task : tasks)
+			out.println(task);
+	}
+	
+	// We replace ?_var with the corresponding value, with the template of the query parsed once
+	public String resolveVariables(String query) {
+		query = QueryTemplate.get(query).resolve(getVariableValues());
+		if (logger.isDebugEnabled())
+			logger.debug("    SPARQL query after resolving the variables: " + query);
+		return query;
 	}
 	
-	// TO REMOVE? Scan files to check for the variables
+	// ?_input and ?_inputGraph, ?_output and ?_outputGraph, ?_serviceUrl, then the --var values
+	private Map<String, String> getVariableValues() {
+		Map<String, String> values = new HashMap<String, String>();
+		if (varInputGraph != null) {
+			values.put("input", varInputGraph);
+			values.put("inputGraph", varInputGraph);
+		}
+		if (varOutputGraph != null) {
+			values.put("output", varOutputGraph);
+			values.put("outputGraph", varOutputGraph);
+		}
+		if (varServiceUrl != null)
+			values.put("serviceUrl", varServiceUrl);
+		values.putAll(variables);
+		return values;
+	}
+	
+	// Names of the ?_name placeholders of the query
 	public ArrayList<String> scanForVariables(String query) {
-		ArrayList<String> queryVariables = new ArrayList<String>();
-		Pattern p = Pattern.compile("<\\?_(.*?)>");
-	    Matcher m = p.matcher(query);
-	    
-	    logger.info("    VARIABLES of the query:");
-	    while (m.find()) {
-	    	// Get first group. Use m.group(0) for the whole match expression
-	    	logger.info(m.group(1));
-	        queryVariables.add(m.group(1));
-	    }
-	    return queryVariables;
+		ArrayList<String> queryVariables = new ArrayList<String>(QueryTemplate.get(query).getVariables());
+		logger.info("    VARIABLES of the query: " + queryVariables);
+		return queryVariables;
 	}
 	
 	// Execute a single SPARQL query string
 	public void executeSingleQuery(String queryString) throws Exception {
 		try (RepositoryConnection conn = repo.getConnection()) {
 			queryString = resolveVariables(queryString);
-			executeQuery(conn, queryString, null);
+			executeTimedQuery(conn, queryString, null);
 			
 		} catch (Exception e) {
 			throw e;
@@ -132,34 +438,67 @@ public abstract class AbstractSparqlQuery implements SparqlExecutorInterface {
 		//repo.shutDown();
 	}
 		
-	private void executeFromUrl(RepositoryConnection conn, URL url) throws Exception {
+	private void addTasksFromUrl(List<QueryTask> tasks, URL url) throws Exception {
 		File urlFile = File.createTempFile("data2services-sparql-operations-", null); // generate a .tmp
 		FileUtils.copyURLToFile(url, urlFile);
 		
 		if (url.toString().endsWith(".yaml")) {
 			// If input file is YAML we parse it to execute provided queries
-			parseQueriesYaml(conn, urlFile);
+			tasks.addAll(parseQueriesYaml(urlFile, url.toString(), tasks.size()));
 			
 		} else {	
 			String queryString = resolveVariables(FileUtils.readFileToString(urlFile, "UTF-8"));				
-			logger.info("Executing single file from URL: " + url.toString());
-			executeQuery(conn, queryString, null);
+			tasks.add(new QueryTask(tasks.size(), url.toString(), queryString, null));
 		}
 	}
 
-	// Execute queries from a YAML file.
+	/**
+	 * Read queries from a YAML file, the first one is numbered firstIndex in the report.
+	 * An entry of the queries list is a query string, or a map with the query and optionally
+	 * its id, the ids it depends_on (a string or a list) and its operation (select, construct or update).
+	 */
 	@SuppressWarnings("unchecked")
-	public void parseQueriesYaml(RepositoryConnection conn, File inputFile) throws Exception {
+	public List<QueryTask> parseQueriesYaml(File inputFile, String name, int firstIndex) throws Exception {
 		logger.info("Parsing YAML...");
 		Yaml yaml = new Yaml();
-		Map<String, Object> yamlFile = (Map<String, Object>)yaml.load(new FileInputStream(inputFile));
+		Map<String, Object> yamlFile;
+		try (FileInputStream in = new FileInputStream(inputFile)) {
+			yamlFile = (Map<String, Object>)yaml.load(in);
+		}
 		
-		List<String> queries = (List<String>)yamlFile.get("queries");
+		List<QueryTask> tasks = new ArrayList<QueryTask>();
+		List<Object> queries = (List<Object>)yamlFile.get("queries");
 		int queryCount = 0;
-		for(String query : queries) {
-			String queryString = resolveVariables(query);
-			executeQuery(conn, queryString, FilenameUtils.removeExtension(inputFile.getPath()) + "_query_" + queryCount++);
-		}		
+		for(Object query : queries) {
+			Map<String, Object> entry = query instanceof Map ? (Map<String, Object>) query : Collections.singletonMap("query", query);
+			if (entry.get("query") == null)
+				throw new IllegalArgumentException("No query in entry " + queryCount + " of " + name);
+			
+			String queryString = resolveVariables(entry.get("query").toString());
+			QueryTask task = new QueryTask(firstIndex + queryCount, name + "#" + queryCount,
+					queryString, FilenameUtils.removeExtension(inputFile.getPath()) + "_query_" + queryCount++);
+			if (entry.get("id") != null)
+				task.setId(entry.get("id").toString());
+			
+			Object dependsOn = entry.get("depends_on");
+			if (dependsOn instanceof List) {
+				List<String> dependencies = new ArrayList<String>();
+				for (Object dependency : (List<Object>) dependsOn)
+					dependencies.add(dependency.toString());
+				task.setDependsOn(dependencies);
+			} else if (dependsOn != null) {
+				task.setDependsOn(Collections.singletonList(dependsOn.toString()));
+			}
+			
+			if (entry.get("operation") != null) {
+				QueryOperations operation = QueryOperations.valueOf(entry.get("operation").toString());
+				if (operation != QueryOperations.select && operation != QueryOperations.construct && operation != QueryOperations.update)
+					throw new IllegalArgumentException("Operation of query " + task.getId() + " must be select, construct or update");
+				task.setOperation(operation);
+			}
+			tasks.add(task);
+		}
+		return tasks;
 	}
 	
 	public ArrayList<URL> crawlGithubToGetQueries(String githubUrl) throws IOException {
@@ -0,0 +1,319 @@
+package nl.unimaas.ids.operations.queries;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import nl.unimaas.ids.http.RetryPolicy;
+import nl.unimaas.ids.metrics.Metrics;
+
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.query.GraphQueryResult;
+import org.eclipse.rdf4j.query.MalformedQueryException;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.TupleQueryResult;
+import org.eclipse.rdf4j.query.TupleQueryResultHandler;
+import org.eclipse.rdf4j.query.algebra.Distinct;
+import org.eclipse.rdf4j.query.algebra.Extension;
+import org.eclipse.rdf4j.query.algebra.MultiProjection;
+import org.eclipse.rdf4j.query.algebra.Order;
+import org.eclipse.rdf4j.query.algebra.Projection;
+import org.eclipse.rdf4j.query.algebra.ProjectionElem;
+import org.eclipse.rdf4j.query.algebra.ProjectionElemList;
+import org.eclipse.rdf4j.query.algebra.Reduced;
+import org.eclipse.rdf4j.query.algebra.Slice;
+import org.eclipse.rdf4j.query.algebra.TupleExpr;
+import org.eclipse.rdf4j.query.algebra.UnaryTupleOperator;
+import org.eclipse.rdf4j.query.parser.ParsedGraphQuery;
+import org.eclipse.rdf4j.query.parser.ParsedQuery;
+import org.eclipse.rdf4j.query.parser.ParsedTupleQuery;
+import org.eclipse.rdf4j.query.parser.QueryParserUtil;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.RepositoryException;
+import org.eclipse.rdf4j.rio.RDFHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches the results of a SELECT or CONSTRUCT query in pages of LIMIT rows at increasing OFFSETs,
+ * so that no single request has to produce the whole result.
+ * Without ORDER BY, the query is ordered by its variables to get the same order for every page.
+ * The first page is passed to the handler as it is read, while the next pages are fetched in parallel, each on its own
+ * connection, and held in memory until their turn: at most prefetch - 1 pages of pageSize rows are buffered.
+ * A failed page is fetched again on its own, from its first row not passed yet. The pages are passed in their order, as a single result.
+ * The query is sent as is when it already has a LIMIT or an OFFSET, or when it can not be parsed.
+ */
+public class QueryPaginator {
+
+	private static final Logger logger = LoggerFactory.getLogger(QueryPaginator.class.getName());
+
+	private static final long RETRY_DELAY = 1000;
+
+	private Repository repo;
+
+	private int pageSize;
+
+	private int prefetch;
+
+	private int retries;
+
+	/**
+	 * Pages of pageSize rows, which must not be larger than the maximum number of results returned by the endpoint.
+	 * Up to prefetch pages are fetched at the same time, a failed page is tried again up to retries times.
+	 */
+	public QueryPaginator(Repository repo, int pageSize, int prefetch, int retries) {
+		if (pageSize <= 0)
+			throw new IllegalArgumentException("The page size must be greater than 0");
+		this.repo = repo;
+		this.pageSize = pageSize;
+		this.prefetch = Math.max(1, prefetch);
+		this.retries = retries;
+	}
+
+	// Results of the SELECT query passed to the handler, conn executes the query when it can not be paged
+	public void evaluate(RepositoryConnection conn, String query, TupleQueryResultHandler handler) {
+		PagedQuery paged = getPagedQuery(query);
+		if (paged == null) {
+			conn.prepareTupleQuery(query).evaluate(handler);
+			return;
+		}
+		handler.startQueryResult(paged.bindingNames);
+		fetchPages(paged, (pageConn, pageQuery, first, rows) -> {
+			try (TupleQueryResult result = pageConn.prepareTupleQuery(pageQuery).evaluate()) {
+				while (result.hasNext())
+					rows.accept(result.next());
+			}
+		}, handler::handleSolution);
+		handler.endQueryResult();
+	}
+
+	// Statements of the CONSTRUCT query passed to the handler, with the namespaces of the first page
+	public void evaluate(RepositoryConnection conn, String query, RDFHandler handler) {
+		PagedQuery paged = getPagedQuery(query);
+		if (paged == null) {
+			conn.prepareGraphQuery(query).evaluate(handler);
+			return;
+		}
+		handler.startRDF();
+		// Passed by the thread of the handler, before the first statement
+		Map<String, String> namespaces = new LinkedHashMap<String, String>();
+		fetchPages(paged, (pageConn, pageQuery, first, rows) -> {
+			try (GraphQueryResult result = pageConn.prepareGraphQuery(pageQuery).evaluate()) {
+				if (first)
+					namespaces.putAll(result.getNamespaces());
+				while (result.hasNext())
+					rows.accept(result.next());
+			}
+		}, (Statement statement) -> {
+			if (!namespaces.isEmpty()) {
+				for (Map.Entry<String, String> namespace : namespaces.entrySet())
+					handler.handleNamespace(namespace.getKey(), namespace.getValue());
+				namespaces.clear();
+			}
+			handler.handleStatement(statement);
+		});
+		handler.endRDF();
+	}
+
+	// Fetch the pages until one is not full, keeping up to prefetch pages in progress. Without a page fetched ahead, the page is streamed
+	private <T> void fetchPages(PagedQuery paged, PageFetcher<T> fetcher, Consumer<T> consumer) {
+		AtomicInteger threadCount = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, prefetch - 1), runnable -> {
+			Thread thread = new Thread(runnable, "query-page-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		Queue<Future<List<T>>> pages = new ArrayDeque<Future<List<T>>>();
+		// The pages in progress after the last one complete in the background, they are not retried
+		AtomicBoolean cancelled = new AtomicBoolean();
+		try {
+			// The first page is read by this thread
+			int nextPage = 1;
+			for (; nextPage < prefetch; nextPage++)
+				pages.add(submitPage(executor, paged, nextPage, fetcher, cancelled));
+			for (int page = 0; ; page++) {
+				Future<List<T>> buffered = page > 0 ? pages.poll() : null;
+				long rowCount;
+				if (buffered == null) {
+					rowCount = streamPage(paged, page, fetcher, consumer, cancelled);
+				} else {
+					List<T> rows = getPage(buffered);
+					for (T row : rows)
+						consumer.accept(row);
+					rowCount = rows.size();
+				}
+				logger.info("Page " + (page + 1) + ": " + rowCount + " rows");
+				// The pages in progress after the last one are empty
+				if (rowCount < pageSize)
+					break;
+				if (prefetch > 1)
+					pages.add(submitPage(executor, paged, nextPage++, fetcher, cancelled));
+			}
+		} finally {
+			cancelled.set(true);
+			executor.shutdown();
+		}
+	}
+
+	private <T> Future<List<T>> submitPage(ExecutorService executor, PagedQuery paged, int page, PageFetcher<T> fetcher,
+			AtomicBoolean cancelled) {
+		return executor.submit(() -> {
+			List<T> rows = new ArrayList<T>();
+			fetchPage(paged, page, fetcher, rows::add, cancelled);
+			return rows;
+		});
+	}
+
+	private <T> long streamPage(PagedQuery paged, int page, PageFetcher<T> fetcher, Consumer<T> consumer, AtomicBoolean cancelled) {
+		try {
+			return fetchPage(paged, page, fetcher, consumer, cancelled);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new QueryEvaluationException("Interrupted while waiting for a page", e);
+		}
+	}
+
+	/**
+	 * Pass the rows of the page to the consumer and return their number. A failed page is fetched again after about 1s,
+	 * then twice longer at each retry, from its first row not passed yet.
+	 */
+	private <T> long fetchPage(PagedQuery paged, int page, PageFetcher<T> fetcher, Consumer<T> consumer, AtomicBoolean cancelled)
+			throws InterruptedException {
+		long[] rowCount = new long[1];
+		for (int attempt = 0; ; attempt++) {
+			String pageQuery = paged.orderedQuery + "\nLIMIT " + (pageSize - rowCount[0]) + " OFFSET " + ((long) page * pageSize + rowCount[0]);
+			try (RepositoryConnection conn = repo.getConnection()) {
+				fetcher.fetch(conn, pageQuery, page == 0, row -> {
+					consumer.accept(row);
+					rowCount[0]++;
+				});
+				Metrics.QUERY_PAGES.inc();
+				return rowCount[0];
+			} catch (RepositoryException | QueryEvaluationException e) {
+				if (attempt >= retries || cancelled.get())
+					throw e;
+				Metrics.QUERY_PAGE_RETRIES.inc();
+				long delay = RetryPolicy.getDelay(RETRY_DELAY, attempt);
+				logger.warn("Page " + (page + 1) + " failed after " + rowCount[0] + " rows, retrying in " + delay + "ms (" + (attempt + 1) + "/" + retries + "): " + e.getMessage());
+				Thread.sleep(delay);
+				if (cancelled.get())
+					throw e;
+			}
+		}
+	}
+
+	private static <T> List<T> getPage(Future<List<T>> page) {
+		try {
+			return page.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new QueryEvaluationException("Interrupted while waiting for a page", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new QueryEvaluationException(e.getCause());
+		}
+	}
+
+	/**
+	 * The query with an ORDER BY, to which the LIMIT and OFFSET of a page are appended, and the names of its bindings.
+	 * null when the query is sent as is.
+	 */
+	static PagedQuery getPagedQuery(String query) {
+		ParsedQuery parsed;
+		try {
+			parsed = QueryParserUtil.parseQuery(QueryLanguage.SPARQL, query, null);
+		} catch (MalformedQueryException e) {
+			logger.info("Query not paged, it can not be parsed: " + e.getMessage());
+			return null;
+		}
+		if (!(parsed instanceof ParsedTupleQuery) && !(parsed instanceof ParsedGraphQuery))
+			return null;
+		// [Slice] [Distinct|Reduced] Projection|MultiProjection [Extension] [Order] ...
+		// The first projection is the one of the query, a projection below it is a subquery
+		TupleExpr expr = parsed.getTupleExpr();
+		while (expr instanceof Slice || expr instanceof Distinct || expr instanceof Reduced) {
+			if (expr instanceof Slice) {
+				logger.info("Query not paged, it has a LIMIT or an OFFSET");
+				return null;
+			}
+			expr = ((UnaryTupleOperator) expr).getArg();
+		}
+		// A CONSTRUCT with several triples in its template has a projection for each
+		List<ProjectionElemList> projections;
+		if (expr instanceof Projection) {
+			projections = Collections.singletonList(((Projection) expr).getProjectionElemList());
+		} else if (expr instanceof MultiProjection) {
+			projections = ((MultiProjection) expr).getProjections();
+		} else {
+			logger.info("Query not paged, its form is not supported");
+			return null;
+		}
+		TupleExpr arg = ((UnaryTupleOperator) expr).getArg();
+		while (arg instanceof Extension)
+			arg = ((Extension) arg).getArg();
+
+		// SELECT results are ordered by their columns, CONSTRUCT solutions by the variables of the template
+		boolean construct = parsed instanceof ParsedGraphQuery;
+		Set<String> bindingNames = new LinkedHashSet<String>();
+		Set<String> orderVariables = new LinkedHashSet<String>();
+		for (ProjectionElemList projection : projections) {
+			for (ProjectionElem elem : projection.getElements()) {
+				bindingNames.add(elem.getTargetName());
+				String variable = construct ? elem.getSourceName() : elem.getTargetName();
+				if (!variable.startsWith("_const_") && !variable.startsWith("_anon_"))
+					orderVariables.add(variable);
+			}
+		}
+		StringBuilder orderedQuery = new StringBuilder(query);
+		if (!(arg instanceof Order)) {
+			if (orderVariables.isEmpty()) {
+				logger.info("Query not paged, it has no variable to order the results");
+				return null;
+			}
+			orderedQuery.append("\nORDER BY");
+			for (String variable : orderVariables)
+				orderedQuery.append(" ?").append(variable);
+		}
+		// e.g. a VALUES block at the end of the query
+		try {
+			QueryParserUtil.parseQuery(QueryLanguage.SPARQL, orderedQuery + "\nLIMIT 1", null);
+		} catch (MalformedQueryException e) {
+			logger.info("Query not paged, ORDER BY and LIMIT can not be appended: " + e.getMessage());
+			return null;
+		}
+		return new PagedQuery(orderedQuery.toString(), new ArrayList<String>(bindingNames));
+	}
+
+	static class PagedQuery {
+
+		final String orderedQuery;
+
+		final List<String> bindingNames;
+
+		PagedQuery(String orderedQuery, List<String> bindingNames) {
+			this.orderedQuery = orderedQuery;
+			this.bindingNames = bindingNames;
+		}
+	}
+
+	// Pass the rows of a page to the consumer, the first page also passes the namespaces of a CONSTRUCT
+	private interface PageFetcher<T> {
+		void fetch(RepositoryConnection conn, String pageQuery, boolean first, Consumer<T> rows);
+	}
+}
@@ -0,0 +1,185 @@
+package nl.unimaas.ids.operations.queries;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Execute query tasks as soon as the queries they depend on succeeded, on a pool of threads.
+ * Tasks ready at the same time start in the order of their index, queries depending on a failed query are skipped.
+ */
+public class QueryScheduler {
+	
+	private int threads;
+	
+	private File checkpointFile = null;
+	
+	private boolean resume = false;
+	
+	private PrintStream out = System.out;
+	
+	public QueryScheduler(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+	
+	public void setOutput(PrintStream out) {
+		this.out = out;
+	}
+	
+	// Ids of the successful queries are appended to the checkpoint file. When resuming, they are not executed again
+	public void setCheckpoint(File checkpointFile, boolean resume) {
+		this.checkpointFile = checkpointFile;
+		this.resume = resume;
+	}
+	
+	/**
+	 * Execute the tasks with the runner, which records the status of each task.
+	 * @throws IllegalArgumentException if an id is duplicated, a dependency is unknown or the dependencies contain a cycle
+	 */
+	public void run(List<QueryTask> tasks, Consumer<QueryTask> runner) throws IOException, InterruptedException {
+		Map<String, QueryTask> tasksById = new HashMap<String, QueryTask>();
+		for (QueryTask task : tasks) {
+			if (tasksById.put(task.getId(), task) != null)
+				throw new IllegalArgumentException("Duplicate query id: " + task.getId());
+		}
+		Map<QueryTask, List<QueryTask>> dependents = new HashMap<QueryTask, List<QueryTask>>();
+		Map<QueryTask, Integer> waitingFor = new HashMap<QueryTask, Integer>();
+		for (QueryTask task : tasks) {
+			dependents.put(task, new ArrayList<QueryTask>());
+			waitingFor.put(task, task.getDependsOn().size());
+		}
+		for (QueryTask task : tasks) {
+			for (String dependency : task.getDependsOn()) {
+				QueryTask dependencyTask = tasksById.get(dependency);
+				if (dependencyTask == null)
+					throw new IllegalArgumentException("Query " + task.getId() + " depends on unknown query " + dependency);
+				dependents.get(dependencyTask).add(task);
+			}
+		}
+		checkAcyclic(tasks, dependents, waitingFor);
+		
+		Set<String> completed = readCheckpoint();
+		
+		PriorityQueue<QueryTask> ready = new PriorityQueue<QueryTask>((a, b) -> Integer.compare(a.getIndex(), b.getIndex()));
+		for (QueryTask task : tasks) {
+			if (waitingFor.get(task) == 0)
+				ready.add(task);
+		}
+		
+		BlockingQueue<QueryTask> done = new LinkedBlockingQueue<QueryTask>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try (Writer checkpoint = checkpointFile != null ? Files.newBufferedWriter(checkpointFile.toPath(), StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, resume ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING) : null) {
+			int running = 0;
+			int finished = 0;
+			while (finished < tasks.size()) {
+				while (!ready.isEmpty() && running < threads) {
+					QueryTask task = ready.poll();
+					if (completed.contains(task.getId())) {
+						task.resumed();
+						done.add(task);
+					} else {
+						executor.submit(() -> {
+							try {
+								runner.accept(task);
+							} finally {
+								done.add(task);
+							}
+						});
+					}
+					running++;
+				}
+				
+				QueryTask task = done.take();
+				running--;
+				finished++;
+				if (task.getStatus() == QueryTask.Status.SUCCESS && checkpoint != null) {
+					checkpoint.write(task.getId() + "\n");
+					checkpoint.flush();
+				}
+				
+				if (task.getStatus() == QueryTask.Status.SUCCESS || task.getStatus() == QueryTask.Status.RESUMED) {
+					for (QueryTask dependent : dependents.get(task)) {
+						int remaining = waitingFor.get(dependent) - 1;
+						waitingFor.put(dependent, remaining);
+						if (remaining == 0)
+							ready.add(dependent);
+					}
+				} else {
+					finished += skipDependents(task, dependents, task.getId());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	// Mark everything downstream of a failed task as skipped, returns the number of tasks skipped
+	private int skipDependents(QueryTask task, Map<QueryTask, List<QueryTask>> dependents, String failedId) {
+		int skipped = 0;
+		for (QueryTask dependent : dependents.get(task)) {
+			if (dependent.getStatus() == QueryTask.Status.PENDING) {
+				dependent.skipped("depends on failed query " + failedId);
+				skipped += 1 + skipDependents(dependent, dependents, failedId);
+			}
+		}
+		return skipped;
+	}
+	
+	// Kahn's algorithm: a task is never ready if it is in a cycle
+	private void checkAcyclic(List<QueryTask> tasks, Map<QueryTask, List<QueryTask>> dependents, Map<QueryTask, Integer> waitingFor) {
+		Map<QueryTask, Integer> remaining = new HashMap<QueryTask, Integer>(waitingFor);
+		List<QueryTask> ready = new ArrayList<QueryTask>();
+		for (QueryTask task : tasks) {
+			if (remaining.get(task) == 0)
+				ready.add(task);
+		}
+		int sorted = 0;
+		while (!ready.isEmpty()) {
+			QueryTask task = ready.remove(ready.size() - 1);
+			sorted++;
+			for (QueryTask dependent : dependents.get(task)) {
+				int count = remaining.get(dependent) - 1;
+				remaining.put(dependent, count);
+				if (count == 0)
+					ready.add(dependent);
+			}
+		}
+		if (sorted < tasks.size()) {
+			List<String> cycle = new ArrayList<String>();
+			for (QueryTask task : tasks) {
+				if (remaining.get(task) > 0)
+					cycle.add(task.getId());
+			}
+			throw new IllegalArgumentException("Cycle in the query dependencies between: " + cycle);
+		}
+	}
+	
+	private Set<String> readCheckpoint() throws IOException {
+		Set<String> completed = new HashSet<String>();
+		if (resume && checkpointFile != null && checkpointFile.exists()) {
+			for (String line : Files.readAllLines(checkpointFile.toPath(), StandardCharsets.UTF_8)) {
+				if (!line.isEmpty())
+					completed.add(line);
+			}
+			out.println("Resuming from " + checkpointFile + ": " + completed.size() + " queries already done");
+		}
+		return completed;
+	}
+}
@@ -0,0 +1,130 @@
+package nl.unimaas.ids.operations.queries;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.unimaas.ids.operations.QueryOperations;
+
+/**
+ * A query to execute, with the outcome of its execution for the final report.
+ */
+public class QueryTask {
+	
+	public enum Status {
+		PENDING,
+		SUCCESS,
+		FAILED,
+		// A query it depends on failed
+		SKIPPED,
+		// Done in a previous run, read from the checkpoint file
+		RESUMED
+	}
+	
+	private int index;
+	
+	private String id;
+	
+	private List<String> dependsOn = new ArrayList<String>();
+	
+	// null to use the operation of the executor
+	private QueryOperations operation = null;
+	
+	private String name;
+	
+	private String queryString;
+	
+	private String outputFilepath;
+	
+	private volatile Status status = Status.PENDING;
+	
+	private volatile long wallTime = 0;
+	
+	private volatile Throwable error = null;
+	
+	public QueryTask(int index, String name, String queryString, String outputFilepath) {
+		this.index = index;
+		this.id = name;
+		this.name = name;
+		this.queryString = queryString;
+		this.outputFilepath = outputFilepath;
+	}
+	
+	public int getIndex() {
+		return index;
+	}
+	
+	// Identifies the query in depends_on and in the checkpoint file. Default: the name
+	public String getId() {
+		return id;
+	}
+	
+	public void setId(String id) {
+		this.id = id;
+	}
+	
+	public List<String> getDependsOn() {
+		return dependsOn;
+	}
+	
+	public void setDependsOn(List<String> dependsOn) {
+		this.dependsOn = dependsOn;
+	}
+	
+	public QueryOperations getOperation() {
+		return operation;
+	}
+	
+	public void setOperation(QueryOperations operation) {
+		this.operation = operation;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public String getQueryString() {
+		return queryString;
+	}
+	
+	public String getOutputFilepath() {
+		return outputFilepath;
+	}
+	
+	public Status getStatus() {
+		return status;
+	}
+	
+	public long getWallTime() {
+		return wallTime;
+	}
+	
+	public Throwable getError() {
+		return error;
+	}
+	
+	void succeeded(long wallTime) {
+		this.wallTime = wallTime;
+		this.status = Status.SUCCESS;
+	}
+	
+	void failed(long wallTime, Throwable error) {
+		this.wallTime = wallTime;
+		this.error = error;
+		this.status = Status.FAILED;
+	}
+	
+	void skipped(String reason) {
+		this.error = new Exception(reason);
+		this.status = Status.SKIPPED;
+	}
+	
+	void resumed() {
+		this.status = Status.RESUMED;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%4d  %-8s %10.3fs  %s%s", index, status, wallTime / 1000.0, id.equals(name) ? name : name + " [" + id + "]",
+				error != null ? "  (" + (status == Status.SKIPPED ? error.getMessage() : error.toString().split("\\R", 2)[0]) + ")" : "");
+	}
+}
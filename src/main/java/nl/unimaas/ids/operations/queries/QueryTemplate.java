@@ -0,0 +1,183 @@
+package nl.unimaas.ids.operations.queries;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * A query with ?_name placeholders, parsed once into the text between the placeholders,
+ * so that it is resolved by appending the parts without any regex.
+ * A placeholder in an IRI, e.g. &lt;?_outputGraph&gt;, is replaced by the value as is, which must be valid in an IRI.
+ * In a string literal, e.g. "?_delimiter", it is replaced by the value with the quotes and backslashes escaped.
+ * Elsewhere it is replaced by an RDF term: &lt;value&gt; for an absolute IRI, the number or boolean, or a string literal.
+ * A placeholder in a comment, or without value, is left unchanged, ?_name is also a valid SPARQL variable.
+ */
+public class QueryTemplate {
+
+	private static final int MAX_CACHED_TEMPLATES = 1000;
+
+	private static final Map<String, QueryTemplate> templates = new ConcurrentHashMap<String, QueryTemplate>();
+
+	private static final Pattern ABSOLUTE_IRI = Pattern.compile("^[a-zA-Z][a-zA-Z0-9+.-]*:[^<>\"{}|^`\\\\\\s]*$");
+
+	private static final Pattern NUMBER_OR_BOOLEAN = Pattern.compile("^([+-]?([0-9]+(\\.[0-9]*)?|\\.[0-9]+)([eE][+-]?[0-9]+)?|true|false)$");
+
+	// Text before each placeholder, then the text after the last one
+	private List<String> parts = new ArrayList<String>();
+
+	private List<String> names = new ArrayList<String>();
+
+	private List<Position> positions = new ArrayList<Position>();
+
+	private int length;
+
+	// Where a placeholder is, which decides how its value is written
+	private enum Position { TERM, IRI, STRING }
+
+	private QueryTemplate(String query) {
+		this.length = query.length();
+		int start = 0;
+		// Closing quote while in a string literal
+		String quote = null;
+		boolean inIri = false;
+		int i = 0;
+		while (i < query.length()) {
+			char c = query.charAt(i);
+			if (quote != null) {
+				if (query.startsWith(quote, i)) {
+					i += quote.length();
+					quote = null;
+					continue;
+				} else if (c == '\\') {
+					i += 2;
+					continue;
+				}
+			} else if (inIri) {
+				inIri = c != '>';
+			} else if (c == '#') {
+				// Comment to the end of the line
+				while (i < query.length() && query.charAt(i) != '\n' && query.charAt(i) != '\r')
+					i++;
+				continue;
+			} else if (c == '"' || c == '\'') {
+				quote = query.startsWith("" + c + c + c, i) ? "" + c + c + c : "" + c;
+				i += quote.length();
+				continue;
+			} else if (c == '<' && isIriStart(query, i)) {
+				inIri = true;
+				i++;
+				continue;
+			}
+			int end = i;
+			if (query.startsWith("?_", i)) {
+				end = i + 2;
+				while (end < query.length() && isNameChar(query.charAt(end)))
+					end++;
+			}
+			if (end > i + 2) {
+				parts.add(query.substring(start, i));
+				names.add(query.substring(i + 2, end));
+				positions.add(quote != null ? Position.STRING : inIri ? Position.IRI : Position.TERM);
+				start = end;
+				i = end;
+			} else {
+				i++;
+			}
+		}
+		parts.add(query.substring(start));
+	}
+
+	// Template of the query, parsed on first use
+	public static QueryTemplate get(String query) {
+		QueryTemplate template = templates.get(query);
+		if (template == null) {
+			template = new QueryTemplate(query);
+			if (templates.size() >= MAX_CACHED_TEMPLATES)
+				templates.clear();
+			templates.put(query, template);
+		}
+		return template;
+	}
+
+	// Names of the placeholders, without ?_, in their order of first appearance
+	public List<String> getVariables() {
+		Set<String> variables = new LinkedHashSet<String>(names);
+		return new ArrayList<String>(variables);
+	}
+
+	public String resolve(Map<String, String> values) {
+		if (names.isEmpty())
+			return parts.get(0);
+		StringBuilder sb = new StringBuilder(length + 64 * names.size());
+		for (int i = 0; i < names.size(); i++) {
+			sb.append(parts.get(i));
+			String name = names.get(i);
+			String value = values.get(name);
+			if (value == null)
+				sb.append("?_").append(name);
+			else if (positions.get(i) == Position.IRI)
+				sb.append(checkIri(name, value));
+			else if (positions.get(i) == Position.STRING)
+				appendEscaped(sb, value);
+			else
+				appendTerm(sb, value);
+		}
+		return sb.append(parts.get(names.size())).toString();
+	}
+
+	private static boolean isNameChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+	}
+
+	// An IRI between < and > without spaces, e.g. <?_outputGraph> or <http://example.org/?_name>, not a comparison
+	private static boolean isIriStart(String query, int start) {
+		int end = start + 1;
+		while (end < query.length() && isIriChar(query.charAt(end)))
+			end++;
+		return end < query.length() && query.charAt(end) == '>';
+	}
+
+	private static boolean isIriChar(char c) {
+		return c > ' ' && "<>\"{}|^`\\".indexOf(c) == -1;
+	}
+
+	private static String checkIri(String name, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (!isIriChar(value.charAt(i)))
+				throw new IllegalArgumentException("Value of ?_" + name + " can not be used in an IRI: " + value);
+		}
+		return value;
+	}
+
+	private static void appendTerm(StringBuilder sb, String value) {
+		if (ABSOLUTE_IRI.matcher(value).matches()) {
+			sb.append('<').append(value).append('>');
+		} else if (NUMBER_OR_BOOLEAN.matcher(value).matches()) {
+			sb.append(value);
+		} else {
+			sb.append('"');
+			appendEscaped(sb, value);
+			sb.append('"');
+		}
+	}
+
+	// Value in a string literal between any quotes
+	private static void appendEscaped(StringBuilder sb, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '\\': sb.append("\\\\"); break;
+			case '"': sb.append("\\\""); break;
+			case '\'': sb.append("\\'"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default: sb.append(c);
+			}
+		}
+	}
+}
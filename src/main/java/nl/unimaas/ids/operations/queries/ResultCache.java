@@ -0,0 +1,266 @@
+package nl.unimaas.ids.operations.queries;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import nl.unimaas.ids.metrics.Metrics;
+
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryResults;
+import org.eclipse.rdf4j.query.TupleQueryResultHandler;
+import org.eclipse.rdf4j.query.resultio.QueryResultIO;
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultFormat;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.RDFHandler;
+import org.eclipse.rdf4j.rio.RDFParser;
+import org.eclipse.rdf4j.rio.Rio;
+
+/**
+ * Results of SELECT and CONSTRUCT queries saved on disk in the binary formats of RDF4J, one file per query.
+ * A result is found by the endpoint, the repository, the query without comments and extra spaces, and the dataset version.
+ * Results older than the TTL are not used, and the oldest results are deleted when the cache exceeds its maximum size.
+ */
+public class ResultCache {
+
+	private static final String COUNT_QUERY = "SELECT (COUNT(*) AS ?n) WHERE { ?s ?p ?o }";
+
+	private File directory;
+
+	private long ttlMillis;
+
+	private long maxSize;
+
+	private String endpoint;
+
+	private volatile String version;
+
+	// Repository to probe the version again after an update, null for a version given by the user
+	private Repository probedRepo = null;
+
+	private PrintStream out = System.out;
+
+	/**
+	 * TTL in seconds, 0 for results that do not expire. Maximum size in bytes.
+	 * The version tags the state of the data, e.g. a release, null if it is not known.
+	 */
+	public ResultCache(File directory, long ttlSeconds, long maxSize, String endpointUrl, String repositoryId, String version) {
+		directory.mkdirs();
+		if (!directory.isDirectory())
+			throw new IllegalArgumentException("Can not create the cache directory " + directory);
+		this.directory = directory;
+		this.ttlMillis = ttlSeconds * 1000;
+		this.maxSize = maxSize;
+		this.endpoint = endpointUrl + "|" + repositoryId;
+		this.version = version;
+	}
+
+	public void setOutput(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Version of the data from the number of statements of the repository, counted by the store with a SPARQL query
+	 * (the size of a SPARQLConnection reads all the statements). A change keeping the same number of statements
+	 * is not detected, the TTL still applies.
+	 */
+	public void probeVersion(Repository repo) {
+		try (RepositoryConnection conn = repo.getConnection()) {
+			List<BindingSet> count = QueryResults.asList(conn.prepareTupleQuery(COUNT_QUERY).evaluate());
+			Value n = count.isEmpty() ? null : count.get(0).getValue("n");
+			version = "statements:" + (n != null ? n.stringValue() : "unknown");
+		}
+		probedRepo = repo;
+		out.println("Dataset version of the result cache: " + version);
+	}
+
+	// After an update, the probed version is probed again
+	public void dataChanged() {
+		if (probedRepo != null)
+			probeVersion(probedRepo);
+	}
+
+	// Pass the cached results of the SELECT query to the handler, false if they are not cached
+	public boolean getTuples(String query, TupleQueryResultHandler handler, ValueFactory f) throws IOException {
+		File file = getFile(query, TupleQueryResultFormat.BINARY.getDefaultFileExtension());
+		if (!isFresh(file))
+			return false;
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()), 1 << 16)) {
+			QueryResultIO.parseTuple(in, TupleQueryResultFormat.BINARY, handler, f);
+		}
+		Metrics.CACHE_HITS.inc();
+		return true;
+	}
+
+	// Pass the cached statements of the CONSTRUCT query to the handler, false if they are not cached
+	public boolean getStatements(String query, RDFHandler handler) throws IOException {
+		File file = getFile(query, RDFFormat.BINARY.getDefaultFileExtension());
+		if (!isFresh(file))
+			return false;
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()), 1 << 16)) {
+			RDFParser parser = Rio.createParser(RDFFormat.BINARY);
+			parser.setRDFHandler(handler);
+			parser.parse(in, "");
+		}
+		Metrics.CACHE_HITS.inc();
+		return true;
+	}
+
+	// Entry where the results of the query are written, saved by commit
+	public Entry newEntry(String query, boolean construct) throws IOException {
+		Metrics.CACHE_MISSES.inc();
+		String extension = construct ? RDFFormat.BINARY.getDefaultFileExtension() : TupleQueryResultFormat.BINARY.getDefaultFileExtension();
+		return new Entry(getFile(query, extension));
+	}
+
+	/**
+	 * Query without comments, and with one space between the tokens.
+	 * The strings and IRIs are kept as they are.
+	 */
+	static String normalize(String query) {
+		StringBuilder sb = new StringBuilder(query.length());
+		boolean space = false;
+		int i = 0;
+		while (i < query.length()) {
+			char c = query.charAt(i);
+			int end = i + 1;
+			if (c == '#') {
+				// Comment to the end of the line
+				while (end < query.length() && query.charAt(end) != '\n' && query.charAt(end) != '\r')
+					end++;
+				space = true;
+				i = end;
+				continue;
+			} else if (Character.isWhitespace(c)) {
+				space = true;
+				i = end;
+				continue;
+			} else if (c == '"' || c == '\'') {
+				String quote = query.startsWith("" + c + c + c, i) ? "" + c + c + c : "" + c;
+				end = i + quote.length();
+				while (end < query.length() && !query.startsWith(quote, end))
+					end += query.charAt(end) == '\\' ? 2 : 1;
+				end = Math.min(end + quote.length(), query.length());
+			} else if (c == '<' && end < query.length() && !Character.isWhitespace(query.charAt(end))) {
+				// An IRI, or a comparison: stops at the first space
+				while (end < query.length() && query.charAt(end) != '>' && !Character.isWhitespace(query.charAt(end)))
+					end++;
+				if (end < query.length() && query.charAt(end) == '>')
+					end++;
+			}
+			if (space && sb.length() > 0)
+				sb.append(' ');
+			space = false;
+			sb.append(query, i, end);
+			i = end;
+		}
+		return sb.toString();
+	}
+
+	private File getFile(String query, String extension) {
+		String key = endpoint + "\n" + version + "\n" + normalize(query);
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder();
+			for (byte b : hash)
+				name.append(String.format("%02x", b));
+			return new File(directory, name + "." + extension);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private boolean isFresh(File file) {
+		if (!file.exists())
+			return false;
+		if (ttlMillis > 0 && System.currentTimeMillis() - file.lastModified() > ttlMillis) {
+			file.delete();
+			return false;
+		}
+		return true;
+	}
+
+	// Delete the oldest results until the cache fits in its maximum size
+	private synchronized void evict() {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(".brt") || name.endsWith(".brf"));
+		if (files == null)
+			return;
+		long size = 0;
+		for (File file : files)
+			size += file.length();
+		if (size <= maxSize)
+			return;
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		int evicted = 0;
+		for (int i = 0; i < files.length && size > maxSize; i++) {
+			size -= files[i].length();
+			if (files[i].delete())
+				evicted++;
+		}
+		out.println("Result cache: " + evicted + " oldest results deleted to fit in " + maxSize + " bytes");
+	}
+
+	/**
+	 * Results written to a temporary file while they are received, moved to the cache by commit.
+	 * Closing without commit, e.g. when the query failed, deletes the temporary file.
+	 */
+	public class Entry implements AutoCloseable {
+
+		private File file;
+
+		private File tmpFile;
+
+		private OutputStream out;
+
+		private boolean committed = false;
+
+		private Entry(File file) throws IOException {
+			this.file = file;
+			this.tmpFile = File.createTempFile(file.getName(), ".tmp", directory);
+			this.out = new BufferedOutputStream(Files.newOutputStream(tmpFile.toPath()), 1 << 16);
+		}
+
+		public TupleQueryResultHandler getTupleWriter() {
+			return QueryResultIO.createTupleWriter(TupleQueryResultFormat.BINARY, out);
+		}
+
+		public RDFHandler getRDFWriter() {
+			return Rio.createWriter(RDFFormat.BINARY, out);
+		}
+
+		public void commit() throws IOException {
+			out.close();
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			committed = true;
+			evict();
+		}
+
+		@Override
+		public void close() {
+			if (committed)
+				return;
+			try {
+				out.close();
+			} catch (IOException e) {
+				// The temporary file is deleted anyway
+			}
+			tmpFile.delete();
+		}
+	}
+}
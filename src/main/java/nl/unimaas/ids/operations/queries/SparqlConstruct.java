@@ -1,17 +1,20 @@
 package nl.unimaas.ids.operations.queries;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
-import org.eclipse.rdf4j.model.Model;
-import org.eclipse.rdf4j.query.GraphQueryResult;
+import nl.unimaas.ids.metrics.Metrics;
+
+import org.eclipse.rdf4j.model.Statement;
 import org.eclipse.rdf4j.query.MalformedQueryException;
-import org.eclipse.rdf4j.query.QueryResults;
 import org.eclipse.rdf4j.repository.Repository;
 import org.eclipse.rdf4j.repository.RepositoryConnection;
 import org.eclipse.rdf4j.repository.RepositoryException;
-import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.RDFHandler;
+import org.eclipse.rdf4j.rio.RDFHandlerException;
+import org.eclipse.rdf4j.rio.RDFWriter;
 import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.rio.helpers.RDFHandlerWrapper;
 import org.slf4j.LoggerFactory;
 
 /**
@@ -28,20 +31,46 @@ public class SparqlConstruct extends AbstractSparqlQuery {
 		logger.info("Executing CONSTRUCT query:");
 		logger.info(queryString);
 		
-		// Query the SPARQL endpoint
-		GraphQueryResult graphResult = conn.prepareGraphQuery(queryString).evaluate();
-		logger.info("SPARQL endpoint query done");
+		long start = System.currentTimeMillis();
+		long[] statementCount = new long[1];
 		
-		// Convert query results to a RDF4J model
-		Model resultModel = QueryResults.asModel(graphResult);
-		logger.info("Model generated");
+		ResultCache resultCache = getResultCache();
 		
-		// Write the model to a file (for each rq file executed)
-		if (outputFilepath == null) {
-			Rio.write(resultModel, System.out, RDFFormat.TURTLE);
-		} else {
-			Rio.write(resultModel, new FileOutputStream(outputFilepath + ".ttl"), RDFFormat.TURTLE); // TODO: fix the name definition
+		// Write the statements to a file (for each rq file executed) as they are received from the SPARQL endpoint
+		try (OutputStream out = openOutput(outputFilepath, constructFormat.getDefaultFileExtension())) {
+			RDFWriter writer = Rio.createWriter(constructFormat, out);
+			RDFHandler countingWriter = new RDFHandlerWrapper(writer) {
+				@Override
+				public void handleStatement(Statement st) throws RDFHandlerException {
+					statementCount[0]++;
+					Metrics.TRIPLES_WRITTEN.inc();
+					super.handleStatement(st);
+				}
+			};
+			if (resultCache != null && resultCache.getStatements(queryString, countingWriter)) {
+				logger.info("Statements read from the result cache");
+			} else {
+				// Also written to the cache as they are received
+				try (ResultCache.Entry entry = resultCache != null ? resultCache.newEntry(queryString, true) : null) {
+					RDFHandler handler = new RDFHandlerWrapper(entry != null
+							? new RDFHandler[] {countingWriter, entry.getRDFWriter()} : new RDFHandler[] {countingWriter}) {
+						@Override
+						public void handleStatement(Statement st) throws RDFHandlerException {
+							Metrics.ROWS_READ.inc();
+							super.handleStatement(st);
+						}
+					};
+					// In pages when --page-size is set
+					if (getPaginator() != null)
+						getPaginator().evaluate(conn, queryString, handler);
+					else
+						conn.prepareGraphQuery(queryString).evaluate(handler);
+					if (entry != null)
+						entry.commit();
+				}
+			}
 		}
+		logger.info(statementCount[0] + " statements written in " + (System.currentTimeMillis() - start) / 1000.0 + "s");
 		
 		//conn.add(f, null, Rio.getParserFormatForFileName(f.getName()).get());
 	}
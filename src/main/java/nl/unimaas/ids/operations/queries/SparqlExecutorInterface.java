@@ -2,7 +2,10 @@ package nl.unimaas.ids.operations.queries;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import org.eclipse.rdf4j.query.MalformedQueryException;
 import org.eclipse.rdf4j.repository.RepositoryConnection;
@@ -16,7 +19,27 @@ public interface SparqlExecutorInterface {
 	
 	public void executeQuery(RepositoryConnection conn, String queryString, String outputFilepath) throws RepositoryException, MalformedQueryException, IOException ;
 		
-	public void parseQueriesYaml(RepositoryConnection conn, File inputFile) throws Exception ;
+	public List<QueryTask> parseQueriesYaml(File inputFile, String name, int firstIndex) throws Exception ;
+	
+	public void setQueryParallelism(int queryParallelism) ;
+	
+	public void setParallelUpdates(boolean parallelUpdates) ;
+	
+	public void setCheckpoint(File checkpointFile, boolean resume) ;
+	
+	public void setConstructFormat(String constructFormat) ;
+	
+	public void setSelectFormat(String selectFormat) ;
+	
+	public void setOutputCompression(String outputCompression) ;
+	
+	public void setVariables(Map<String, String> variables) ;
+	
+	public void setResultCache(ResultCache resultCache) ;
+	
+	public void setPagination(int pageSize, int prefetch, int retries) ;
+	
+	public void setOutput(PrintStream out) ;
 	
 	public ArrayList<String> scanForVariables(String query) ;
 
@@ -1,11 +1,17 @@
 package nl.unimaas.ids.operations.queries;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
 
+import nl.unimaas.ids.metrics.Metrics;
+
+import org.eclipse.rdf4j.query.BindingSet;
 import org.eclipse.rdf4j.query.MalformedQueryException;
-import org.eclipse.rdf4j.query.TupleQuery;
+import org.eclipse.rdf4j.query.QueryResultHandlerException;
 import org.eclipse.rdf4j.query.TupleQueryResultHandler;
-import org.eclipse.rdf4j.query.resultio.text.tsv.SPARQLResultsTSVWriter;
+import org.eclipse.rdf4j.query.TupleQueryResultHandlerException;
+import org.eclipse.rdf4j.query.resultio.QueryResultIO;
 import org.eclipse.rdf4j.repository.Repository;
 import org.eclipse.rdf4j.repository.RepositoryConnection;
 import org.eclipse.rdf4j.repository.RepositoryException;
@@ -25,11 +31,72 @@ public class SparqlSelect extends AbstractSparqlQuery {
 		logger.info("Executing SELECT query:");
 		logger.info(queryString);
 		
-		TupleQuery query = conn.prepareTupleQuery(queryString);
-	    // A QueryResult is also an AutoCloseable resource, so make sure it gets
-	    // closed when done.
-		TupleQueryResultHandler tsvWriter = new SPARQLResultsTSVWriter(System.out);
-		query.evaluate(tsvWriter);
+		ResultCache resultCache = getResultCache();
+		// Results are written to a file per query, or to the stdout for a single query string
+		try (OutputStream out = openOutput(outputFilepath, selectFormat.getDefaultFileExtension())) {
+			TupleQueryResultHandler writer = QueryResultIO.createTupleWriter(selectFormat, out);
+			if (resultCache == null) {
+				evaluate(conn, queryString, new RowCountingHandler(writer));
+			} else if (resultCache.getTuples(queryString, writer, conn.getValueFactory())) {
+				logger.info("Results read from the result cache");
+			} else {
+				// Written to the output and to the cache as they are received
+				try (ResultCache.Entry entry = resultCache.newEntry(queryString, false)) {
+					evaluate(conn, queryString, new RowCountingHandler(writer, entry.getTupleWriter()));
+					entry.commit();
+				}
+			}
+		}
+	}
+	
+	// In pages when --page-size is set
+	private void evaluate(RepositoryConnection conn, String queryString, TupleQueryResultHandler handler) {
+		QueryPaginator paginator = getPaginator();
+		if (paginator != null)
+			paginator.evaluate(conn, queryString, handler);
+		else
+			conn.prepareTupleQuery(queryString).evaluate(handler);
+	}
+	
+	// Count the rows in the metrics as they are passed to the handlers
+	private static class RowCountingHandler implements TupleQueryResultHandler {
+		
+		private TupleQueryResultHandler[] handlers;
+		
+		RowCountingHandler(TupleQueryResultHandler... handlers) {
+			this.handlers = handlers;
+		}
+		
+		@Override
+		public void handleBoolean(boolean value) throws QueryResultHandlerException {
+			for (TupleQueryResultHandler handler : handlers)
+				handler.handleBoolean(value);
+		}
+		
+		@Override
+		public void handleLinks(List<String> linkUrls) throws QueryResultHandlerException {
+			for (TupleQueryResultHandler handler : handlers)
+				handler.handleLinks(linkUrls);
+		}
+		
+		@Override
+		public void startQueryResult(List<String> bindingNames) throws TupleQueryResultHandlerException {
+			for (TupleQueryResultHandler handler : handlers)
+				handler.startQueryResult(bindingNames);
+		}
+		
+		@Override
+		public void endQueryResult() throws TupleQueryResultHandlerException {
+			for (TupleQueryResultHandler handler : handlers)
+				handler.endQueryResult();
+		}
+		
+		@Override
+		public void handleSolution(BindingSet bindingSet) throws TupleQueryResultHandlerException {
+			Metrics.ROWS_READ.inc();
+			for (TupleQueryResultHandler handler : handlers)
+				handler.handleSolution(bindingSet);
+		}
 	}
 
 }
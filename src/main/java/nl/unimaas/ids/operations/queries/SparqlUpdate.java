@@ -29,4 +29,9 @@ public class SparqlUpdate extends AbstractSparqlQuery {
 		update.execute();
 		logger.info("SPARQL Update done.");
 	}
+	
+	@Override
+	protected boolean isReadOnly() {
+		return false;
+	}
 }
@@ -0,0 +1,138 @@
+package nl.unimaas.ids.operations.transform;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import nl.unimaas.ids.operations.transform.PrefixInference.Expansion;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded LRU cache of the expansion of each raw value to expand, so repeated identifiers are resolved once.
+ * The values are resolved outside the lock, so a slow resolution does not hold up the other slices.
+ * The cache can be saved to a file at the end of a run and loaded at the start of the next run, the entries
+ * evicted during a run are not kept on disk. The file is only reused if it was written with the same settings (registry, predicate prefix).
+ */
+public class ExpansionCache {
+	
+	private static final Logger logger = LoggerFactory.getLogger(ExpansionCache.class.getName());
+	
+	private static final int MAGIC = 0x45585043; // "EXPC"
+	
+	private static final byte IRI_OBJECT = 0;
+	
+	private static final byte LITERAL_OBJECT = 1;
+	
+	private Map<String, Expansion> cache;
+	
+	private String settingsKey;
+	
+	private long hits = 0;
+	
+	private long misses = 0;
+	
+	private long evictions = 0;
+	
+	public ExpansionCache(int maxSize, String settingsKey) {
+		this.settingsKey = settingsKey;
+		this.cache = new LinkedHashMap<String, Expansion>(Math.min(maxSize, 1 << 16), 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Expansion> eldest) {
+				if (size() > maxSize) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+	
+	// Two threads missing the same value both resolve it, the resolver gives the same expansion
+	public Expansion get(String value, Function<String, Expansion> resolver) {
+		synchronized (this) {
+			Expansion expansion = cache.get(value);
+			if (expansion != null) {
+				hits++;
+				return expansion;
+			}
+			misses++;
+		}
+		Expansion expansion = resolver.apply(value);
+		synchronized (this) {
+			cache.put(value, expansion);
+		}
+		return expansion;
+	}
+	
+	// Read a cache file written with the same settings, returns the number of entries read
+	public synchronized int load(File file, ValueFactory f) throws IOException {
+		if (!file.exists())
+			return 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()), 1 << 16))) {
+			if (file.length() < 4 || in.readInt() != MAGIC || !readString(in).equals(settingsKey)) {
+				logger.info("Ignoring expansion cache " + file + " written with other settings");
+				return 0;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String value = readString(in);
+				IRI predicate = f.createIRI(readString(in));
+				byte objectType = in.readByte();
+				String object = readString(in);
+				cache.put(value, new Expansion(predicate, objectType == IRI_OBJECT ? f.createIRI(object) : f.createLiteral(object)));
+			}
+			evictions = 0;
+			return count;
+		}
+	}
+	
+	// Write the cached expansions, from the least to the most recently used
+	public synchronized void save(File file) throws IOException {
+		File tmpFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile.toPath()), 1 << 16))) {
+			out.writeInt(MAGIC);
+			writeString(out, settingsKey);
+			out.writeInt(cache.size());
+			for (Map.Entry<String, Expansion> entry : cache.entrySet()) {
+				Value object = entry.getValue().getObject();
+				writeString(out, entry.getKey());
+				writeString(out, entry.getValue().getPredicate().stringValue());
+				out.writeByte(object instanceof IRI ? IRI_OBJECT : LITERAL_OBJECT);
+				writeString(out, object.stringValue());
+			}
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	public synchronized String getStats() {
+		return "hits: " + hits + ", misses: " + misses + ", evictions: " + evictions + ", size: " + cache.size();
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+}
@@ -0,0 +1,193 @@
+package nl.unimaas.ids.operations.transform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits a value in fragments, strips the quotes around each fragment and cuts it at the first "(".
+ * The delimiter and quote rules are compiled once, then each value is scanned in a single pass
+ * giving the same fragments as String.split and replaceAll("^quote|quote$", "") did:
+ * the delimiter is a regex (",\"" only splits on commas followed by a quote, "|" is literal),
+ * trailing empty fragments are dropped and a value without delimiter is kept whole.
+ * Without delimiter, the values are only cleaned.
+ */
+public class FragmentSplitter {
+	
+	private static final String REGEX_META_CHARS = "\\^$.|?*+()[]{}";
+	
+	private static final String LINE_TERMINATORS = "\n\r\u0085\u2028\u2029";
+	
+	// Regex used to select the values to split
+	private String selectPattern;
+	
+	// Literal delimiter scanned with indexOf, null when the delimiter is a regex
+	private String delimiter = null;
+	
+	// Char that must follow the literal delimiter (for ,"), 0 if none
+	private char delimiterLookahead = 0;
+	
+	private ThreadLocal<Matcher> delimiterMatcher = null;
+	
+	private boolean stripQuotes;
+	
+	private boolean cutParenthesis;
+	
+	// Literal quote, null when the quote is a regex
+	private String quote = null;
+	
+	private ThreadLocal<Matcher> quoteMatcher = null;
+	
+	public FragmentSplitter(String splitDelimiter, String splitQuote) {
+		this(splitDelimiter, splitQuote, true);
+	}
+	
+	// A null delimiter does not split, a quote " " or "" does not strip quotes
+	public FragmentSplitter(String splitDelimiter, String splitQuote, boolean cutParenthesis) {
+		this.cutParenthesis = cutParenthesis;
+		if (splitDelimiter == null) {
+			selectPattern = null;
+		} else if (splitDelimiter.equals(",\"")) {
+			selectPattern = ",(?=\")";
+			delimiter = ",";
+			delimiterLookahead = '"';
+		} else if (splitDelimiter.equals("|")) {
+			selectPattern = splitDelimiter;
+			delimiter = splitDelimiter;
+		} else {
+			selectPattern = splitDelimiter;
+			if (isLiteral(splitDelimiter)) {
+				delimiter = splitDelimiter;
+			} else {
+				Pattern delimiterPattern = Pattern.compile(splitDelimiter);
+				delimiterMatcher = ThreadLocal.withInitial(() -> delimiterPattern.matcher(""));
+			}
+		}
+		
+		stripQuotes = !splitQuote.equals(" ") && !splitQuote.isEmpty();
+		if (stripQuotes) {
+			if (isLiteral(splitQuote) && !containsAny(splitQuote, LINE_TERMINATORS)) {
+				quote = splitQuote;
+			} else {
+				Pattern quotePattern = Pattern.compile("^" + splitQuote + "|" + splitQuote + "$");
+				quoteMatcher = ThreadLocal.withInitial(() -> quotePattern.matcher(""));
+			}
+		}
+	}
+	
+	// Regex matching the values that contain the delimiter, to use in the SPARQL FILTER. null without delimiter
+	public String getSelectPattern() {
+		return selectPattern;
+	}
+	
+	public List<String> split(String value) {
+		List<String> fragments = new ArrayList<String>();
+		split(value, fragments::add);
+		return fragments;
+	}
+	
+	public void split(String value, Consumer<String> fragmentConsumer) {
+		int length = value.length();
+		int index = 0;
+		int pendingEmpty = 0;
+		boolean matched = false;
+		
+		if (delimiter != null) {
+			int delimiterLength = delimiter.length();
+			int found = value.indexOf(delimiter);
+			while (found != -1) {
+				int end = found + delimiterLength;
+				if (delimiterLookahead != 0 && (end >= length || value.charAt(end) != delimiterLookahead)) {
+					found = value.indexOf(delimiter, found + 1);
+					continue;
+				}
+				matched = true;
+				pendingEmpty = emit(value, index, found, pendingEmpty, fragmentConsumer);
+				index = end;
+				found = value.indexOf(delimiter, index);
+			}
+		} else if (delimiterMatcher != null) {
+			Matcher m = delimiterMatcher.get().reset(value);
+			while (m.find()) {
+				// Like String.split, a zero-width match at the beginning never gives an empty leading fragment
+				if (index == 0 && m.start() == 0 && m.end() == 0)
+					continue;
+				matched = true;
+				pendingEmpty = emit(value, index, m.start(), pendingEmpty, fragmentConsumer);
+				index = m.end();
+			}
+			m.reset("");
+		}
+		
+		if (!matched) {
+			fragmentConsumer.accept(clean(value, 0, length));
+		} else if (index < length) {
+			emit(value, index, length, pendingEmpty, fragmentConsumer);
+		}
+		// Remaining empty fragments are trailing ones and dropped
+	}
+	
+	// Empty fragments are held back until a non-empty one shows they are not trailing
+	private int emit(String value, int start, int end, int pendingEmpty, Consumer<String> fragmentConsumer) {
+		if (start == end)
+			return pendingEmpty + 1;
+		for (; pendingEmpty > 0; pendingEmpty--)
+			fragmentConsumer.accept(clean(value, start, start));
+		fragmentConsumer.accept(clean(value, start, end));
+		return 0;
+	}
+	
+	// Strip the quotes and cut at the first "(" (if asked) the raw fragment between start and end
+	String clean(String value, int start, int end) {
+		if (stripQuotes) {
+			if (quote == null) {
+				String fragment = quoteMatcher.get().reset(value.substring(start, end)).replaceAll("");
+				quoteMatcher.get().reset("");
+				return cutParenthesis ? cutParenthesis(fragment) : fragment;
+			}
+			int quoteLength = quote.length();
+			if (value.startsWith(quote, start) && end - start >= quoteLength)
+				start += quoteLength;
+			// $ also matches before a final line terminator
+			int terminator = finalLineTerminator(value, start, end);
+			if (terminator != -1 && terminator - quoteLength >= start
+					&& value.startsWith(quote, terminator - quoteLength)) {
+				String fragment = value.substring(start, terminator - quoteLength) + value.substring(terminator, end);
+				return cutParenthesis ? cutParenthesis(fragment) : fragment;
+			}
+			if (end - quoteLength >= start && value.startsWith(quote, end - quoteLength))
+				end -= quoteLength;
+		}
+		int parenthesis = cutParenthesis ? value.indexOf('(', start) : -1;
+		if (parenthesis != -1 && parenthesis < end)
+			end = parenthesis;
+		return value.substring(start, end);
+	}
+	
+	private static String cutParenthesis(String fragment) {
+		int parenthesis = fragment.indexOf('(');
+		return parenthesis == -1 ? fragment : fragment.substring(0, parenthesis);
+	}
+	
+	private static int finalLineTerminator(String value, int start, int end) {
+		if (end - start >= 2 && value.charAt(end - 2) == '\r' && value.charAt(end - 1) == '\n')
+			return end - 2;
+		if (end > start && LINE_TERMINATORS.indexOf(value.charAt(end - 1)) != -1)
+			return end - 1;
+		return -1;
+	}
+	
+	private static boolean isLiteral(String s) {
+		return !s.isEmpty() && !containsAny(s, REGEX_META_CHARS);
+	}
+	
+	private static boolean containsAny(String s, String chars) {
+		for (int i = 0; i < s.length(); i++) {
+			if (chars.indexOf(s.charAt(i)) != -1)
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,106 @@
+package nl.unimaas.ids.operations.transform;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+
+/**
+ * Infer the URI of a CURIE-like value (e.g. "DrugBank:DB00001") from a registry of prefixes.
+ * Resolved values are linked with a "x-prefix" predicate, the others with "x-ref".
+ */
+public class PrefixInference {
+	
+	private ValueFactory f;
+	
+	private PrefixRegistry registry;
+	
+	// Namespace of the generated x- predicates
+	private String predicatePrefix;
+	
+	// Prefixes found in the values
+	private Map<String, String> availablePref = new ConcurrentHashMap<String, String>();
+	
+	public PrefixInference(ValueFactory f, PrefixRegistry registry,
+			String propertyToExpand, String uriExpansionPredicatePrefix) {
+		this.f = f;
+		this.registry = registry;
+		if (uriExpansionPredicatePrefix != null) {
+			predicatePrefix = uriExpansionPredicatePrefix;
+		} else {
+			predicatePrefix = propertyToExpand.substring(0, propertyToExpand.lastIndexOf("/") + 1);
+		}
+	}
+	
+	public Expansion infer(IRI predicateIri, String stringToExpand) {
+		if (stringToExpand.indexOf("(") != -1) {
+			stringToExpand = stringToExpand.substring(0,
+					stringToExpand.indexOf("("));
+		}
+
+		if (!stringToExpand.contains(":"))
+			return new Expansion(predicateIri, f.createLiteral(stringToExpand));
+
+		int p = 0;
+
+		if (stringToExpand.contains("url")) {
+			p = stringToExpand.indexOf(":");
+		} else {
+			p = stringToExpand.lastIndexOf(":");
+		}
+
+		String prefix = PrefixRegistry.normalize(stringToExpand.substring(0, p));
+		String id = stringToExpand.substring(p + 1);
+
+		availablePref.put(prefix, "");
+
+		prefix = registry.getPrefix(prefix);
+		String namespace = registry.getNamespace(prefix);
+		if (namespace == null) {
+			// A shorter prefix ending at another ':' of the value
+			int longest = registry.findLongestPrefix(stringToExpand, p);
+			if (longest != -1) {
+				prefix = registry.getPrefix(PrefixRegistry.normalize(stringToExpand.substring(0, longest)));
+				id = stringToExpand.substring(longest + 1);
+				namespace = registry.getNamespace(prefix);
+			}
+		}
+
+		if (namespace != null) {
+			return new Expansion(f.createIRI(predicatePrefix + "x-" + prefix),
+					f.createIRI(namespace + id));
+		} else {
+			return new Expansion(f.createIRI(predicatePrefix + "x-ref"),
+					f.createLiteral(stringToExpand));
+		}
+	}
+	
+	public Map<String, String> getAvailablePrefixes() {
+		return availablePref;
+	}
+	
+	/**
+	 * Predicate and object of an expanded statement
+	 */
+	public static class Expansion {
+		
+		private IRI predicate;
+		
+		private Value object;
+		
+		public Expansion(IRI predicate, Value object) {
+			this.predicate = predicate;
+			this.object = object;
+		}
+		
+		public IRI getPredicate() {
+			return predicate;
+		}
+		
+		public Value getObject() {
+			return object;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package nl.unimaas.ids.operations.transform;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Namespaces of the prefixes used to expand CURIEs, with the aliases of prefixes written differently in the data.
+ * Loaded from a JSON-LD context (e.g. http://prefix.cc/context) or a CSV/TSV file of prefix and namespace,
+ * or from the snapshot of prefix.cc bundled in the jar. A registry is built once per source and shared in the JVM.
+ */
+public class PrefixRegistry {
+	
+	private static final Logger logger = LoggerFactory.getLogger(PrefixRegistry.class.getName());
+	
+	// http://prefix.cc/context as of 2019-12-17
+	private static final String BUNDLED_CONTEXT = "/prefix-registry/prefix.cc-2019-12-17.jsonld";
+	
+	private static final String BUNDLED_ALIASES = "/prefix-registry/aliases.tsv";
+	
+	private static final Map<String, PrefixRegistry> registries = new ConcurrentHashMap<String, PrefixRegistry>();
+	
+	private Map<String, String> namespaces;
+	
+	private Map<String, String> aliases;
+	
+	public PrefixRegistry(Map<String, String> namespaces, Map<String, String> aliases) {
+		this.namespaces = namespaces;
+		this.aliases = new HashMap<String, String>();
+		for (Map.Entry<String, String> alias : aliases.entrySet())
+			this.aliases.put(normalize(alias.getKey()), alias.getValue());
+	}
+	
+	// Registry from a file path or URL, the bundled prefix.cc snapshot if source is null
+	public static PrefixRegistry get(String source) throws IOException {
+		return get(source, System.out);
+	}
+	
+	// The registry is built by the first call for the source, which prints its size to out
+	public static PrefixRegistry get(String source, PrintStream out) throws IOException {
+		String key = source == null ? BUNDLED_CONTEXT : source;
+		PrefixRegistry registry = registries.get(key);
+		if (registry == null) {
+			synchronized (registries) {
+				registry = registries.get(key);
+				if (registry == null) {
+					registry = load(source, out);
+					registries.put(key, registry);
+				}
+			}
+		}
+		return registry;
+	}
+	
+	private static PrefixRegistry load(String source, PrintStream out) throws IOException {
+		Map<String, String> namespaces;
+		if (source == null) {
+			namespaces = readJsonLdContext(PrefixRegistry.class.getResourceAsStream(BUNDLED_CONTEXT));
+		} else {
+			boolean isUrl = source.matches("^(http|https|ftp)://.*$");
+			try (InputStream in = isUrl ? new URL(source).openStream() : Files.newInputStream(Paths.get(source))) {
+				String path = isUrl ? new URL(source).getPath() : source;
+				if (path.endsWith(".csv")) {
+					namespaces = readDelimited(in, ',');
+				} else if (path.endsWith(".tsv")) {
+					namespaces = readDelimited(in, '\t');
+				} else {
+					namespaces = readJsonLdContext(in);
+				}
+			}
+		}
+		Map<String, String> aliases = readDelimited(PrefixRegistry.class.getResourceAsStream(BUNDLED_ALIASES), '\t');
+		
+		out.println("Registery build finished, total items: " + namespaces.size()
+				+ " (" + (source == null ? "bundled prefix.cc snapshot" : source) + ")");
+		return new PrefixRegistry(namespaces, aliases);
+	}
+	
+	private static Map<String, String> readJsonLdContext(InputStream in) throws IOException {
+		Map<String, String> namespaces = new HashMap<String, String>();
+		JsonNode context = new ObjectMapper().readTree(in).get("@context");
+		if (context == null)
+			throw new IOException("No @context in the prefix registry");
+		Iterator<Map.Entry<String, JsonNode>> iter = context.fields();
+		while (iter.hasNext()) {
+			Map.Entry<String, JsonNode> entry = iter.next();
+			if (entry.getValue().isTextual())
+				namespaces.put(entry.getKey(), entry.getValue().textValue());
+		}
+		return namespaces;
+	}
+	
+	// Two columns: prefix (or alias) and namespace (or prefix). Lines starting with # are ignored
+	private static Map<String, String> readDelimited(InputStream in, char delimiter) throws IOException {
+		Map<String, String> entries = new HashMap<String, String>();
+		try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+				CSVParser csvParser = new CSVParser(reader, CSVFormat.DEFAULT.withDelimiter(delimiter).withCommentMarker('#'))) {
+			for (CSVRecord csvRecord : csvParser) {
+				if (csvRecord.size() >= 2)
+					entries.put(csvRecord.get(0).trim(), csvRecord.get(1).trim());
+			}
+		}
+		return entries;
+	}
+	
+	// Prefix as found in the data to registry key: lower case without spaces
+	public static String normalize(String prefix) {
+		return prefix.toLowerCase().replace(" ", "").trim();
+	}
+	
+	// Registry prefix for a normalized prefix, after replacing aliases
+	public String getPrefix(String normalizedPrefix) {
+		String prefix = aliases.get(normalizedPrefix);
+		return prefix != null ? prefix : normalizedPrefix;
+	}
+	
+	// Namespace of a registry prefix, null if unknown
+	public String getNamespace(String prefix) {
+		return namespaces.get(prefix);
+	}
+	
+	/**
+	 * Position of the ':' ending the longest prefix of the CURIE with a namespace in the registry,
+	 * trying each ':' from the last to the first except the one already tried, -1 if none.
+	 * e.g. "UniProtKB:P12345:2" is resolved with "uniprotkb" when "uniprotkb:p12345" is unknown.
+	 */
+	public int findLongestPrefix(String curie, int tried) {
+		for (int p = curie.lastIndexOf(':'); p > 0; p = curie.lastIndexOf(':', p - 1)) {
+			if (p != tried && getNamespace(getPrefix(normalize(curie.substring(0, p)))) != null)
+				return p;
+		}
+		return -1;
+	}
+	
+	public int size() {
+		return namespaces.size();
+	}
+}
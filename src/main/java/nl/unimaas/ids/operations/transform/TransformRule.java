@@ -0,0 +1,213 @@
+package nl.unimaas.ids.operations.transform;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import nl.unimaas.ids.operations.transform.PrefixInference.Expansion;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.ValueFactory;
+
+/**
+ * A transformation of the values of a property of the instances of a class, made of steps in this order:
+ * <ul>
+ * <li>split:DELIMITER split the value in fragments</li>
+ * <li>trim:QUOTE strip the quote at the beginning and end of the value (default: ")</li>
+ * <li>strip-parenthetical cut the value at the first "("</li>
+ * <li>expand-prefix:NAMESPACE or expand-curie[:PREDICATE_NAMESPACE] turn the value in a URI</li>
+ * </ul>
+ * Rules with a split only apply to the values containing the delimiter, the others to all the values.
+ */
+public class TransformRule {
+
+	private String classToTransform;
+
+	private String property;
+
+	private List<String> steps;
+
+	private String delimiter = null;
+
+	private String quote = " ";
+
+	private boolean stripParenthetical = false;
+
+	private String expandPrefix = null;
+
+	private boolean expandCurie = false;
+
+	private String curiePredicatePrefix = null;
+
+	// Line of the former split file, with a delimiter instead of transformations
+	private boolean splitFileLine = false;
+
+	// Compiled in prepare()
+	private FragmentSplitter splitter = null;
+	private Pattern selectPattern = null;
+	private ValueFactory f;
+	private PrefixInference prefixInference = null;
+	private ExpansionCache expansionCache = null;
+
+	public TransformRule(String classToTransform, String property, List<String> steps) {
+		this.classToTransform = classToTransform;
+		this.property = property;
+		this.steps = steps;
+
+		int order = 0;
+		for (String step : steps) {
+			int colon = step.indexOf(':');
+			String operation = colon == -1 ? step : step.substring(0, colon);
+			String argument = colon == -1 ? null : step.substring(colon + 1);
+			int stepOrder = getStepOrder(operation);
+			if (stepOrder == -1)
+				throw new IllegalArgumentException("Unknown transformation \"" + step + "\", supported: split, trim, strip-parenthetical, expand-prefix and expand-curie");
+			if (stepOrder <= order)
+				throw new IllegalArgumentException("Transformations must be in the order split, trim, strip-parenthetical, expand-prefix or expand-curie: " + steps);
+			order = stepOrder == 4 ? 5 : stepOrder;
+
+			switch (operation) {
+			case "split":
+				if (argument == null || argument.isEmpty())
+					throw new IllegalArgumentException("split needs a delimiter, e.g. split:,");
+				delimiter = argument;
+				break;
+			case "trim":
+				quote = argument == null || argument.isEmpty() ? "\"" : argument;
+				break;
+			case "strip-parenthetical":
+				stripParenthetical = true;
+				break;
+			case "expand-prefix":
+				if (argument == null || argument.isEmpty())
+					throw new IllegalArgumentException("expand-prefix needs a namespace, e.g. expand-prefix:http://identifiers.org/drugbank/");
+				expandPrefix = argument;
+				break;
+			case "expand-curie":
+				expandCurie = true;
+				curiePredicatePrefix = argument == null || argument.isEmpty() ? null : argument;
+				break;
+			}
+		}
+	}
+
+	// Position of the step in a rule, -1 if unknown. expand-prefix and expand-curie are exclusive
+	private static int getStepOrder(String operation) {
+		switch (operation) {
+		case "split": return 1;
+		case "trim": return 2;
+		case "strip-parenthetical": return 3;
+		case "expand-prefix": return 4;
+		case "expand-curie": return 5;
+		default: return -1;
+		}
+	}
+
+	static boolean isStep(String column) {
+		int colon = column.indexOf(':');
+		return getStepOrder(colon == -1 ? column : column.substring(0, colon)) != -1;
+	}
+
+	/**
+	 * Parse the columns of a line of a rules file: class, property and steps.
+	 * A line of 3 columns with a delimiter instead of steps is a split rule of the former split file,
+	 * split:DELIMITER trim:" strip-parenthetical.
+	 */
+	public static TransformRule parse(List<String> columns) {
+		if (columns.size() < 3)
+			throw new IllegalArgumentException("A rule needs a class, a property and transformations: " + columns);
+		if (!isStep(columns.get(2))) {
+			TransformRule rule = new TransformRule(columns.get(0), columns.get(1),
+					Arrays.asList("split:" + columns.get(2), "trim:\"", "strip-parenthetical"));
+			rule.splitFileLine = true;
+			return rule;
+		}
+		return new TransformRule(columns.get(0), columns.get(1), columns.subList(2, columns.size()));
+	}
+
+	/**
+	 * Compile the rule before use. The registry is only used by expand-curie,
+	 * with a cache of expansionCacheSize values (0 for no cache).
+	 */
+	public void prepare(ValueFactory f, PrefixRegistry registry, int expansionCacheSize) {
+		this.f = f;
+		if (delimiter != null || !quote.equals(" ") || stripParenthetical) {
+			splitter = new FragmentSplitter(delimiter, quote, stripParenthetical);
+			if (splitter.getSelectPattern() != null)
+				selectPattern = Pattern.compile(splitter.getSelectPattern());
+		}
+		if (expandCurie) {
+			prefixInference = new PrefixInference(f, registry, property, curiePredicatePrefix);
+			if (expansionCacheSize > 0)
+				expansionCache = new ExpansionCache(expansionCacheSize, toString());
+		}
+	}
+
+	// Regex of the values the rule applies to, null for all the values
+	public String getSelectPattern() {
+		return splitter != null ? splitter.getSelectPattern() : null;
+	}
+
+	public boolean appliesTo(String value) {
+		return selectPattern == null || selectPattern.matcher(value).find();
+	}
+
+	// True if the output is a URI or a cross-reference instead of a new value of the property
+	public boolean isExpansion() {
+		return expandPrefix != null || expandCurie;
+	}
+
+	// Namespace of expand-prefix, null for the other rules
+	public String getExpandPrefix() {
+		return expandPrefix;
+	}
+
+	// Values produced by the split, trim and strip-parenthetical steps
+	public void transform(String value, Consumer<String> output) {
+		if (splitter != null)
+			splitter.split(value, output);
+		else
+			output.accept(value);
+	}
+
+	// Predicate and object of an expanded value
+	public Expansion expand(IRI predicate, String value) {
+		if (expandPrefix != null)
+			return new Expansion(predicate, f.createIRI(expandPrefix + value));
+		if (expansionCache != null)
+			return expansionCache.get(value, v -> prefixInference.infer(predicate, v));
+		return prefixInference.infer(predicate, value);
+	}
+
+	// True for a rule of the former split file: split:DELIMITER trim:" strip-parenthetical
+	public boolean isLegacySplit() {
+		return delimiter != null && quote.equals("\"") && stripParenthetical && !isExpansion();
+	}
+
+	// True for a line of the former split file, applied on its own like the split operation
+	public boolean isSplitFileLine() {
+		return splitFileLine;
+	}
+
+	public String getDelimiter() {
+		return delimiter;
+	}
+
+	public String getClassToTransform() {
+		return classToTransform;
+	}
+
+	public String getProperty() {
+		return property;
+	}
+
+	public List<String> getSteps() {
+		return steps;
+	}
+
+	@Override
+	public String toString() {
+		return classToTransform + " " + property + " " + String.join(" ", steps);
+	}
+}
@@ -0,0 +1,77 @@
+package nl.unimaas.ids;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SparqlDaemonTest {
+
+	private SparqlDaemon daemon = null;
+
+	@After
+	public void tearDown() {
+		if (daemon != null)
+			daemon.stop();
+	}
+
+	@Test
+	public void leavesTheStdoutOfTheJvm() throws Exception {
+		PrintStream stdout = System.out;
+		daemon = new SparqlDaemon("127.0.0.1", 0, 1, 1);
+		daemon.start();
+		assertSame(stdout, System.out);
+	}
+
+	@Test
+	public void refusesTheOptionsSetWhenTheDaemonStarts() throws Exception {
+		daemon = new SparqlDaemon("127.0.0.1", 0, 1, 1);
+		daemon.start();
+		assertEquals(400, post("-op\nselect\n-ep\nhttp://localhost/sparql\n--http-retries\n5\n", null));
+		assertEquals(400, post("--daemon-port\n8085\n", null));
+	}
+
+	@Test
+	public void refusesTheMetricsFilesOfConcurrentJobs() throws Exception {
+		daemon = new SparqlDaemon("127.0.0.1", 0, 2, 1);
+		daemon.start();
+		assertEquals(400, post("-op\nselect\n-ep\nhttp://localhost/sparql\n--metrics-file\nmetrics.json\n", null));
+	}
+
+	@Test
+	public void refusesTheRequestsWithoutTheToken() throws Exception {
+		daemon = new SparqlDaemon("127.0.0.1", 0, 1, 1);
+		daemon.setToken("secret");
+		daemon.start();
+		assertEquals(401, post("--help\n", null));
+		assertEquals(401, post("--help\n", "wrong"));
+		assertEquals(200, post("--help\n", "secret"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void needsATokenOnANonLoopbackAddress() throws Exception {
+		new SparqlDaemon("0.0.0.0", 0, 1, 1).start();
+	}
+
+	private int post(String body, String token) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + daemon.getPort() + "/jobs").openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		if (token != null)
+			connection.setRequestProperty("Authorization", "Bearer " + token);
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(body.getBytes(StandardCharsets.UTF_8));
+		}
+		int status = connection.getResponseCode();
+		connection.disconnect();
+		return status;
+	}
+}
@@ -0,0 +1,43 @@
+package nl.unimaas.ids;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.junit.Test;
+
+import picocli.CommandLine;
+
+public class SparqlOperationTest {
+
+	@Test
+	public void printsTheResultsToTheOutputGiven() throws Exception {
+		Repository repo = new SailRepository(new MemoryStore());
+		repo.initialize();
+		try (RepositoryConnection conn = repo.getConnection()) {
+			ValueFactory f = repo.getValueFactory();
+			conn.add(f.createIRI("urn:s"), f.createIRI("urn:p"), f.createLiteral("value"));
+		}
+		CliOptions cli = CommandLine.populateCommand(new CliOptions(), "-op", "select", "-sp", "SELECT ?o WHERE { ?s ?p ?o }");
+
+		PrintStream stdout = System.out;
+		ByteArrayOutputStream printed = new ByteArrayOutputStream();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(printed, true, "UTF-8"));
+		try {
+			SparqlOperation.run(cli, repo, new PrintStream(output, true, "UTF-8"));
+		} finally {
+			System.setOut(stdout);
+			repo.shutDown();
+		}
+		assertTrue(output.toString("UTF-8").contains("\nvalue\n"));
+		assertEquals("", printed.toString("UTF-8"));
+	}
+}
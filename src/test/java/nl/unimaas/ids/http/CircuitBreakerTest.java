@@ -0,0 +1,101 @@
+package nl.unimaas.ids.http;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+	private ExecutorService executor = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void letsTheRequestsThroughBelowTheThreshold() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker(3, 60);
+		breaker.onFailure();
+		breaker.onFailure();
+		breaker.onSuccess();
+		breaker.onFailure();
+		breaker.onFailure();
+		assertTrue(acquired(breaker, 1000));
+	}
+
+	@Test
+	public void neverPausesWithoutThreshold() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker(0, 60);
+		for (int i = 0; i < 10; i++)
+			breaker.onFailure();
+		assertTrue(acquired(breaker, 1000));
+	}
+
+	@Test
+	public void pausesThenLetsASingleRequestCheckTheEndpoint() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker(2, 1);
+		breaker.onFailure();
+		breaker.onFailure();
+		long start = System.currentTimeMillis();
+		Future<?> check = executor.submit(() -> acquire(breaker));
+		Future<?> other = executor.submit(() -> acquire(breaker));
+		// One of them checks the endpoint after the pause, the other waits for the result
+		Future<?> first = waitForOne(check, other);
+		assertTrue(System.currentTimeMillis() - start >= 900);
+		Thread.sleep(200);
+		assertFalse((first == check ? other : check).isDone());
+
+		breaker.onSuccess();
+		check.get(5, TimeUnit.SECONDS);
+		other.get(5, TimeUnit.SECONDS);
+		assertTrue(acquired(breaker, 1000));
+	}
+
+	@Test
+	public void pausesAgainWhenTheCheckFails() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker(1, 1);
+		breaker.onFailure();
+		breaker.acquire();
+		breaker.onFailure();
+		Future<?> check = executor.submit(() -> acquire(breaker));
+		Thread.sleep(500);
+		assertFalse(check.isDone());
+		check.get(5, TimeUnit.SECONDS);
+	}
+
+	private boolean acquired(CircuitBreaker breaker, long timeoutMillis) throws Exception {
+		Future<?> acquire = executor.submit(() -> acquire(breaker));
+		try {
+			acquire.get(timeoutMillis, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			return false;
+		}
+	}
+
+	private static Void acquire(CircuitBreaker breaker) throws InterruptedException {
+		breaker.acquire();
+		return null;
+	}
+
+	private static Future<?> waitForOne(Future<?> a, Future<?> b) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (System.currentTimeMillis() < deadline) {
+			if (a.isDone())
+				return a;
+			if (b.isDone())
+				return b;
+			Thread.sleep(10);
+		}
+		throw new AssertionError("No request let through after the pause");
+	}
+}
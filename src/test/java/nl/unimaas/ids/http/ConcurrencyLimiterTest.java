@@ -0,0 +1,85 @@
+package nl.unimaas.ids.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ConcurrencyLimiterTest {
+
+	private static final long MILLIS = 1000000;
+
+	private ExecutorService executor = Executors.newSingleThreadExecutor();
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void blocksAtTheLimitUntilARequestIsReleased() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(2);
+		limiter.acquire();
+		limiter.acquire();
+		Future<?> third = executor.submit(() -> {
+			limiter.acquire();
+			return null;
+		});
+		Thread.sleep(200);
+		assertFalse(third.isDone());
+		limiter.release(10 * MILLIS, false);
+		third.get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void halvesTheLimitOnceWhenTheEndpointIsOverloaded() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(8);
+		for (int i = 0; i < 3; i++)
+			limiter.acquire();
+		// The requests in progress report the same overload
+		limiter.release(10 * MILLIS, true);
+		limiter.release(10 * MILLIS, true);
+		assertEquals(4, limiter.getLimit());
+		limiter.release(10 * MILLIS, false);
+		assertEquals(4, limiter.getLimit());
+	}
+
+	@Test
+	public void growsBackUpToTheMaximum() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(4);
+		limiter.acquire();
+		limiter.release(10 * MILLIS, true);
+		assertEquals(2, limiter.getLimit());
+		// By 1/limit after each successful request
+		for (int i = 0; i < 3; i++) {
+			limiter.acquire();
+			limiter.release(10 * MILLIS, false);
+		}
+		assertEquals(3, limiter.getLimit());
+		for (int i = 0; i < 20; i++) {
+			limiter.acquire();
+			limiter.release(10 * MILLIS, false);
+		}
+		assertEquals(4, limiter.getLimit());
+	}
+
+	@Test
+	public void halvesTheLimitWhenTheLatencyRises() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(8);
+		for (int i = 0; i < 30; i++) {
+			limiter.acquire();
+			limiter.release(10 * MILLIS, false);
+		}
+		assertEquals(8, limiter.getLimit());
+		limiter.acquire();
+		limiter.release(500 * MILLIS, false);
+		assertTrue(limiter.getLimit() < 8);
+	}
+}
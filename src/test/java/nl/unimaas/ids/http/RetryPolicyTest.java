@@ -0,0 +1,119 @@
+package nl.unimaas.ids.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+	private RetryPolicy policy = new RetryPolicy(3, 1000);
+
+	@Test
+	public void delayDoublesAtEachAttemptUpToOneMinute() {
+		for (int i = 0; i < 100; i++) {
+			assertBetween(500, 1000, RetryPolicy.getDelay(1000, 0));
+			assertBetween(4000, 8000, RetryPolicy.getDelay(1000, 3));
+			assertBetween(RetryPolicy.MAX_DELAY / 2, RetryPolicy.MAX_DELAY, RetryPolicy.getDelay(1000, 40));
+		}
+	}
+
+	@Test
+	public void longerRetryAfterIsRespected() {
+		HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 503, "Service Unavailable");
+		response.setHeader("Retry-After", "10");
+		assertEquals(10000, policy.getDelay(0, response));
+		response.setHeader("Retry-After", "600");
+		assertEquals(RetryPolicy.MAX_DELAY, policy.getDelay(0, response));
+		// An HTTP date is ignored
+		response.setHeader("Retry-After", "Wed, 21 Oct 2015 07:28:00 GMT");
+		assertBetween(500, 1000, policy.getDelay(0, response));
+	}
+
+	@Test
+	public void queriesAreIdempotent() throws Exception {
+		assertTrue(RetryPolicy.isIdempotent(new HttpGet("http://localhost/sparql?query=ASK%7B%7D")));
+		assertTrue(RetryPolicy.isIdempotent(form("query", "ASK {}")));
+		assertTrue(RetryPolicy.isIdempotent(body("ASK {}", "application/sparql-query")));
+	}
+
+	@Test
+	public void updatesAreNotIdempotent() throws Exception {
+		assertFalse(RetryPolicy.isIdempotent(form("update", "CLEAR ALL")));
+		assertFalse(RetryPolicy.isIdempotent(body("CLEAR ALL", "application/sparql-update")));
+		HttpPost stream = new HttpPost("http://localhost/sparql");
+		stream.setEntity(new InputStreamEntity(new ByteArrayInputStream(new byte[0]), ContentType.create("application/sparql-query")));
+		assertFalse(RetryPolicy.isIdempotent(stream));
+	}
+
+	@Test
+	public void onlyQueriesAreRetriedAfterAGatewayError() throws Exception {
+		HttpPost query = form("query", "ASK {}");
+		HttpPost update = form("update", "CLEAR ALL");
+		assertTrue(policy.canRetry(0, query, true, 502));
+		assertFalse(policy.canRetry(0, update, false, 502));
+		// Not processed by the endpoint
+		assertTrue(policy.canRetry(0, update, false, 503));
+		assertTrue(policy.canRetry(0, update, false, 429));
+		assertFalse(policy.canRetry(0, query, true, 500));
+		assertFalse(policy.canRetry(3, query, true, 503));
+	}
+
+	@Test
+	public void updatesAreOnlyRetriedWhenNotSent() throws Exception {
+		HttpPost update = form("update", "CLEAR ALL");
+		HttpContext context = new BasicHttpContext();
+		assertTrue(policy.canRetry(0, update, false, new ConnectException(), context));
+		context.setAttribute(HttpCoreContext.HTTP_REQ_SENT, Boolean.FALSE);
+		assertTrue(policy.canRetry(0, update, false, new SocketTimeoutException(), context));
+		context.setAttribute(HttpCoreContext.HTTP_REQ_SENT, Boolean.TRUE);
+		assertFalse(policy.canRetry(0, update, false, new SocketTimeoutException(), context));
+	}
+
+	@Test
+	public void queriesAreRetriedAfterTransientErrors() throws Exception {
+		HttpPost query = form("query", "ASK {}");
+		HttpContext context = new BasicHttpContext();
+		assertTrue(policy.canRetry(0, query, true, new SocketTimeoutException(), context));
+		assertFalse(policy.canRetry(0, query, true, new InterruptedIOException(), context));
+		assertFalse(policy.canRetry(0, query, true, new UnknownHostException("endpoint"), context));
+		assertFalse(policy.canRetry(3, query, true, new SocketTimeoutException(), context));
+	}
+
+	private static HttpPost form(String name, String value) throws Exception {
+		HttpPost post = new HttpPost("http://localhost/sparql");
+		post.setEntity(new UrlEncodedFormEntity(Arrays.asList(new BasicNameValuePair(name, value)), "UTF-8"));
+		return post;
+	}
+
+	private static HttpPost body(String content, String mimeType) {
+		HttpPost post = new HttpPost("http://localhost/sparql");
+		post.setEntity(new StringEntity(content, ContentType.create(mimeType, "UTF-8")));
+		return post;
+	}
+
+	private static void assertBetween(long min, long max, long value) {
+		assertTrue(value + " not between " + min + " and " + max, value >= min && value <= max);
+	}
+}
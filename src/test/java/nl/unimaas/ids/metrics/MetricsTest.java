@@ -0,0 +1,31 @@
+package nl.unimaas.ids.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MetricsTest {
+
+	@Test
+	public void countsSinceTheBaseline() {
+		Counter counter = Metrics.counter("test_baseline_total", "Counter of the test");
+		Histogram histogram = Metrics.histogram("test_baseline_seconds", "Histogram of the test");
+		counter.add(5);
+		histogram.observe(100);
+
+		Metrics.Baseline baseline = Metrics.baseline();
+		counter.add(3);
+		histogram.observe(0.002);
+		histogram.observe(0.002);
+
+		assertEquals(3, baseline.get(counter));
+		assertEquals(2, baseline.getCounts(histogram)[1]);
+		assertEquals(0.004, baseline.getSum(histogram), 1e-9);
+		// The long duration before the baseline is not in the quantiles of the run
+		assertEquals(0.0025, Histogram.getQuantile(baseline.getCounts(histogram), histogram.getMax(), 1), 1e-9);
+		assertTrue(Metrics.toJson(baseline).contains("\"test_baseline_total\": 3"));
+		assertTrue(Metrics.toPrometheus(baseline).contains("sparql_operations_test_baseline_seconds_count 2\n"));
+		assertTrue(Metrics.toPrometheus().contains("sparql_operations_test_baseline_seconds_count 3\n"));
+	}
+}
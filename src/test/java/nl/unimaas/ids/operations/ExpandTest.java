@@ -0,0 +1,111 @@
+package nl.unimaas.ids.operations;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.RDF;
+import org.eclipse.rdf4j.query.QueryResults;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExpandTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private SailRepository repo;
+
+	private ValueFactory f;
+
+	@Before
+	public void setUp() {
+		repo = new SailRepository(new MemoryStore());
+		repo.initialize();
+		f = repo.getValueFactory();
+		try (RepositoryConnection conn = repo.getConnection()) {
+			IRI g = f.createIRI("urn:g");
+			for (String id : Arrays.asList("1", "2", "3")) {
+				IRI s = f.createIRI("urn:s" + id);
+				conn.add(s, RDF.TYPE, f.createIRI("urn:C"), g);
+				conn.add(s, f.createIRI("urn:p"), f.createIRI("a:" + id), g);
+			}
+		}
+	}
+
+	@After
+	public void tearDown() {
+		repo.shutDown();
+	}
+
+	// Expanding its own outputs again never ends
+	@Test(timeout = 30000)
+	public void fixedExpansionDoesNotReadItsOwnOutputsWithPages() throws Exception {
+		// Each statement is loaded before the next page is read, after the value it is expanded from in the order of the pages
+		Expand expand = new Expand(repo, null, 1);
+		expand.setUploadThreads(0);
+		expand.setPagination(1, 1, 0);
+		expand.executeExpand("urn:C", "urn:p", false, "http://example.org/", null);
+		assertEquals(new HashSet<String>(Arrays.asList("a:1", "a:2", "a:3",
+				"http://example.org/a:1", "http://example.org/a:2", "http://example.org/a:3")), values());
+	}
+
+	@Test
+	public void incrementalRunDoesNotExpandItsOwnOutputs() throws Exception {
+		File index = folder.newFolder("index");
+		for (int run = 0; run < 2; run++) {
+			Expand expand = new Expand(repo, null, 100);
+			expand.setIncrementalIndex(index);
+			expand.executeExpand("urn:C", "urn:p", false, "http://example.org/", null);
+		}
+		assertEquals(new HashSet<String>(Arrays.asList("a:1", "a:2", "a:3",
+				"http://example.org/a:1", "http://example.org/a:2", "http://example.org/a:3")), values());
+	}
+
+	@Test
+	public void checkpointReadsTheSlicesAsked() throws Exception {
+		assertEquals(0, checkpointedSlices(0));
+		assertEquals(4, checkpointedSlices(4));
+	}
+
+	// Expand with a checkpoint, number of slices recorded in the checkpoint file
+	private int checkpointedSlices(int checkpointSlices) throws Exception {
+		File checkpointFile = folder.newFile();
+		Expand expand = new Expand(repo, "urn:out" + checkpointSlices, 100);
+		expand.setCheckpoint(checkpointFile, false);
+		expand.setCheckpointSlices(checkpointSlices);
+		expand.executeExpand("urn:C", "urn:p", false, "http://example.org/", null);
+		Properties state = new Properties();
+		try (InputStream in = Files.newInputStream(checkpointFile.toPath())) {
+			state.load(in);
+		}
+		int slices = 0;
+		for (String key : state.stringPropertyNames())
+			slices += key.contains("|slice.") ? 1 : 0;
+		return slices;
+	}
+
+	private Set<String> values() {
+		Set<String> values = new HashSet<String>();
+		try (RepositoryConnection conn = repo.getConnection()) {
+			for (Statement statement : QueryResults.asList(conn.getStatements(null, f.createIRI("urn:p"), null)))
+				values.add(statement.getObject().stringValue());
+		}
+		return values;
+	}
+}
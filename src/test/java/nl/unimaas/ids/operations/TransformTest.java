@@ -0,0 +1,94 @@
+package nl.unimaas.ids.operations;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.RDF;
+import org.eclipse.rdf4j.query.QueryResults;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TransformTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private SailRepository repo;
+
+	private ValueFactory f;
+
+	@Before
+	public void setUp() {
+		repo = new SailRepository(new MemoryStore());
+		repo.initialize();
+		f = repo.getValueFactory();
+		try (RepositoryConnection conn = repo.getConnection()) {
+			IRI s = f.createIRI("urn:s");
+			IRI g = f.createIRI("urn:g");
+			conn.add(s, RDF.TYPE, f.createIRI("urn:C"), g);
+			conn.add(s, f.createIRI("urn:p"), f.createLiteral("a;b,c"), g);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		repo.shutDown();
+	}
+
+	@Test
+	public void splitFileLinesRunOnTheirOwnScan() throws Exception {
+		// Each line splits the values read from the repository, as the former split file did
+		transform("urn:C\turn:p\t;\nurn:C\turn:p\t,\n");
+		assertEquals(new HashSet<String>(Arrays.asList("a;b,c", "a", "b,c", "a;b", "c", "b")), values());
+	}
+
+	@Test
+	public void rulesAreChainedInOneScan() throws Exception {
+		transform("urn:C\turn:p\tsplit:;\nurn:C\turn:p\tsplit:,\n");
+		assertEquals(new HashSet<String>(Arrays.asList("a;b,c", "a", "b,c", "b", "c")), values());
+	}
+
+	@Test
+	public void incrementalRunDoesNotExpandItsOwnOutputs() throws Exception {
+		File index = folder.newFolder("index");
+		for (int run = 0; run < 2; run++)
+			transform("urn:C\turn:p\texpand-prefix:http://example.org/\n", index);
+		assertEquals(new HashSet<String>(Arrays.asList("a;b,c", "http://example.org/a;b,c")), values());
+	}
+
+	private void transform(String rules) throws Exception {
+		transform(rules, null);
+	}
+
+	private void transform(String rules, File incrementalIndex) throws Exception {
+		File rulesFile = new File(folder.getRoot(), "rules.tsv");
+		Files.write(rulesFile.toPath(), rules.getBytes(StandardCharsets.UTF_8));
+		Transform transform = new Transform(repo, null, 100);
+		transform.setIncrementalIndex(incrementalIndex);
+		transform.executeRulesFile(rulesFile.getPath(), false);
+	}
+
+	private Set<String> values() {
+		Set<String> values = new HashSet<String>();
+		try (RepositoryConnection conn = repo.getConnection()) {
+			for (Statement statement : QueryResults.asList(conn.getStatements(null, f.createIRI("urn:p"), null)))
+				values.add(statement.getObject().stringValue());
+		}
+		return values;
+	}
+}
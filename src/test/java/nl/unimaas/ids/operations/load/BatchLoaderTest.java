@@ -0,0 +1,129 @@
+package nl.unimaas.ids.operations.load;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.RepositoryException;
+import org.eclipse.rdf4j.repository.base.RepositoryConnectionWrapper;
+import org.eclipse.rdf4j.repository.base.RepositoryWrapper;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchLoaderTest {
+
+	private static final ValueFactory f = SimpleValueFactory.getInstance();
+
+	private Repository repo;
+
+	// Released to let the batches of <urn:slow> load
+	private CountDownLatch slowBatches = new CountDownLatch(1);
+
+	private ExecutorService executor = Executors.newSingleThreadExecutor();
+
+	@Before
+	public void setUp() {
+		SailRepository store = new SailRepository(new MemoryStore());
+		store.initialize();
+		repo = new RepositoryWrapper(store) {
+			@Override
+			public RepositoryConnection getConnection() throws RepositoryException {
+				return new RepositoryConnectionWrapper(this, super.getConnection()) {
+					@Override
+					public void add(Iterable<? extends Statement> statements, Resource... contexts) throws RepositoryException {
+						if (statements.iterator().next().getSubject().stringValue().equals("urn:slow")) {
+							try {
+								slowBatches.await();
+							} catch (InterruptedException e) {
+								throw new RepositoryException(e);
+							}
+						}
+						super.add(statements, contexts);
+					}
+				};
+			}
+		};
+	}
+
+	@After
+	public void tearDown() {
+		slowBatches.countDown();
+		executor.shutdownNow();
+		repo.shutDown();
+	}
+
+	@Test
+	public void loadsBatchesInTheCallingThread() {
+		BatchLoader loader = new BatchLoader(repo, 2, 0, 1);
+		for (int i = 0; i < 5; i++)
+			loader.add(statement("urn:fast", i));
+		assertEquals(4, loader.getLoadedCount());
+		loader.awaitLoaded();
+		assertEquals(5, loader.getLoadedCount());
+		loader.close();
+		assertEquals(5, size());
+	}
+
+	@Test
+	public void awaitLoadedWaitsForTheBatchesSubmittedBefore() throws Exception {
+		BatchLoader loader = new BatchLoader(repo, 2, 2, 4);
+		loader.add(statement("urn:slow", 0));
+		loader.add(statement("urn:slow", 1));
+		loader.add(statement("urn:fast", 0));
+		loader.add(statement("urn:fast", 1));
+		Future<?> waiting = executor.submit(() -> loader.awaitLoaded());
+		Thread.sleep(200);
+		// Loaded by the other upload stage while the first batch is still uploading
+		loader.add(statement("urn:fast", 2));
+		loader.add(statement("urn:fast", 3));
+		waitForLoadedCount(loader, 4);
+		Thread.sleep(200);
+		assertFalse("awaitLoaded returned before the first batch was loaded", waiting.isDone());
+
+		slowBatches.countDown();
+		waiting.get(10, TimeUnit.SECONDS);
+		loader.close();
+		assertEquals(6, size());
+	}
+
+	@Test
+	public void closeLoadsTheLastPartialBatch() {
+		BatchLoader loader = new BatchLoader(repo, 10, 2, 2);
+		for (int i = 0; i < 25; i++)
+			loader.add(statement("urn:fast", i));
+		loader.close();
+		assertEquals(25, loader.getLoadedCount());
+		assertEquals(25, size());
+	}
+
+	private static Statement statement(String subject, int i) {
+		return f.createStatement(f.createIRI(subject), f.createIRI("urn:p"), f.createLiteral(i), f.createIRI("urn:g"));
+	}
+
+	private long size() {
+		try (RepositoryConnection conn = repo.getConnection()) {
+			return conn.size();
+		}
+	}
+
+	private static void waitForLoadedCount(StatementLoader loader, long count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (loader.getLoadedCount() < count && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(count, loader.getLoadedCount());
+	}
+}
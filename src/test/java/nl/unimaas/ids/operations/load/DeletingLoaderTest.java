@@ -0,0 +1,107 @@
+package nl.unimaas.ids.operations.load;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.QueryResults;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.RepositoryException;
+import org.eclipse.rdf4j.repository.base.RepositoryConnectionWrapper;
+import org.eclipse.rdf4j.repository.base.RepositoryWrapper;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeletingLoaderTest {
+
+	private static final ValueFactory f = SimpleValueFactory.getInstance();
+
+	private SailRepository repo;
+
+	@Before
+	public void setUp() {
+		repo = new SailRepository(new MemoryStore());
+		repo.initialize();
+		try (RepositoryConnection conn = repo.getConnection()) {
+			for (int i = 0; i < 5; i++)
+				conn.add(source(i));
+		}
+	}
+
+	@After
+	public void tearDown() {
+		repo.shutDown();
+	}
+
+	@Test
+	public void deletesTheSourcesOnceTheirOutputsAreLoaded() throws Exception {
+		BatchLoader batchLoader = new BatchLoader(repo, 100, 0, 1);
+		DeletingLoader loader = new DeletingLoader(repo, batchLoader, 2);
+		for (int i = 0; i < 5; i++) {
+			loader.add(output(i));
+			loader.deleteSource(source(i));
+		}
+		Thread.sleep(200);
+		// The full chunks wait for the batch to fill up, it is not sent early
+		assertEquals(0, batchLoader.getLoadedCount());
+		assertEquals(0, loader.getDeletedCount());
+		assertEquals(5, count("urn:source"));
+
+		loader.close();
+		assertEquals(5, count("urn:output"));
+		assertEquals(0, count("urn:source"));
+		assertEquals(5, loader.getDeletedCount());
+	}
+
+	@Test
+	public void keepsTheSourcesWhenTheLoadingFails() {
+		Repository failing = new RepositoryWrapper(repo) {
+			@Override
+			public RepositoryConnection getConnection() throws RepositoryException {
+				return new RepositoryConnectionWrapper(this, super.getConnection()) {
+					@Override
+					public void add(Iterable<? extends Statement> statements, Resource... contexts) throws RepositoryException {
+						throw new RepositoryException("Store unavailable");
+					}
+				};
+			}
+		};
+		BatchLoader batchLoader = new BatchLoader(failing, 100, 0, 1);
+		batchLoader.setCommitRetries(0, 0);
+		DeletingLoader loader = new DeletingLoader(repo, batchLoader, 2);
+		for (int i = 0; i < 5; i++) {
+			loader.add(output(i));
+			loader.deleteSource(source(i));
+		}
+		try {
+			loader.close();
+			fail("close did not report the failed loading");
+		} catch (RepositoryException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("Store unavailable") || e.getCause() != null);
+		}
+		assertEquals(0, count("urn:output"));
+		assertEquals(5, count("urn:source"));
+	}
+
+	private static Statement source(int i) {
+		return f.createStatement(f.createIRI("urn:s" + i), f.createIRI("urn:source"), f.createLiteral("a;b" + i), f.createIRI("urn:g"));
+	}
+
+	private static Statement output(int i) {
+		return f.createStatement(f.createIRI("urn:s" + i), f.createIRI("urn:output"), f.createLiteral("a" + i), f.createIRI("urn:g"));
+	}
+
+	private long count(String predicate) {
+		try (RepositoryConnection conn = repo.getConnection()) {
+			return QueryResults.asList(conn.getStatements(null, f.createIRI(predicate), null)).size();
+		}
+	}
+}
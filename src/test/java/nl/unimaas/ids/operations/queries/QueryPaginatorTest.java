@@ -0,0 +1,170 @@
+package nl.unimaas.ids.operations.queries;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.unimaas.ids.operations.queries.QueryPaginator.PagedQuery;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.QueryResults;
+import org.eclipse.rdf4j.query.TupleQuery;
+import org.eclipse.rdf4j.query.TupleQueryResult;
+import org.eclipse.rdf4j.query.impl.IteratingTupleQueryResult;
+import org.eclipse.rdf4j.query.impl.TupleQueryResultBuilder;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.base.RepositoryConnectionWrapper;
+import org.eclipse.rdf4j.repository.base.RepositoryWrapper;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.rio.helpers.StatementCollector;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.junit.Test;
+
+public class QueryPaginatorTest {
+
+	@Test
+	public void ordersASelectByItsColumns() {
+		String query = "SELECT ?s ?label WHERE { ?s ?p ?o . BIND(STR(?o) AS ?label) }";
+		PagedQuery paged = QueryPaginator.getPagedQuery(query);
+		assertEquals(query + "\nORDER BY ?s ?label", paged.orderedQuery);
+		assertEquals(Arrays.asList("s", "label"), paged.bindingNames);
+	}
+
+	@Test
+	public void keepsTheOrderOfTheQuery() {
+		String query = "SELECT DISTINCT ?s WHERE { ?s ?p ?o } ORDER BY DESC(?s)";
+		assertEquals(query, QueryPaginator.getPagedQuery(query).orderedQuery);
+	}
+
+	@Test
+	public void doesNotPageAQueryWithALimitOrAnOffset() {
+		assertNull(QueryPaginator.getPagedQuery("SELECT ?s WHERE { ?s ?p ?o } LIMIT 10"));
+		assertNull(QueryPaginator.getPagedQuery("SELECT ?s WHERE { ?s ?p ?o } OFFSET 10"));
+	}
+
+	@Test
+	public void doesNotPageAnInvalidQuery() {
+		assertNull(QueryPaginator.getPagedQuery("SELECT ?s WHERE { ?s ?p "));
+	}
+
+	@Test
+	public void ordersAConstructByTheVariablesOfItsTemplate() {
+		String query = "CONSTRUCT { ?s <urn:p> ?o } WHERE { ?s ?p ?o }";
+		assertEquals(query + "\nORDER BY ?s ?o", QueryPaginator.getPagedQuery(query).orderedQuery);
+	}
+
+	@Test
+	public void ordersAConstructWithSeveralTriplesByAllTheirVariables() {
+		String query = "CONSTRUCT { ?s <urn:p> ?o . ?o <urn:q> ?x . _:b <urn:r> ?s } WHERE { ?s ?p ?o . ?o ?q ?x }";
+		assertEquals(query + "\nORDER BY ?s ?o ?x", QueryPaginator.getPagedQuery(query).orderedQuery);
+
+		String ordered = "CONSTRUCT { ?s <urn:p> ?o . ?o <urn:q> ?s } WHERE { ?s ?p ?o } ORDER BY ?o";
+		assertEquals(ordered, QueryPaginator.getPagedQuery(ordered).orderedQuery);
+	}
+
+	@Test
+	public void theOrderAndLimitOfASubqueryDoNotApplyToTheQuery() {
+		String query = "SELECT * WHERE { { SELECT DISTINCT ?s WHERE { ?s ?p ?o } ORDER BY ?s LIMIT 10 } }";
+		assertEquals(query + "\nORDER BY ?s", QueryPaginator.getPagedQuery(query).orderedQuery);
+
+		String construct = "CONSTRUCT { ?s <urn:p> ?o . ?o <urn:q> ?s } WHERE { { SELECT ?s ?o WHERE { ?s ?p ?o } ORDER BY ?o LIMIT 5 } }";
+		assertEquals(construct + "\nORDER BY ?s ?o", QueryPaginator.getPagedQuery(construct).orderedQuery);
+	}
+
+	@Test
+	public void fetchesAllThePagesInOrder() {
+		SailRepository repo = new SailRepository(new MemoryStore());
+		repo.initialize();
+		ValueFactory f = repo.getValueFactory();
+		IRI p = f.createIRI("urn:p");
+		try (RepositoryConnection conn = repo.getConnection()) {
+			for (int i = 0; i < 5; i++)
+				conn.add(f.createIRI("urn:s" + i), p, f.createIRI("urn:o" + i));
+			QueryPaginator paginator = new QueryPaginator(repo, 2, 2, 0);
+
+			TupleQueryResultBuilder rows = new TupleQueryResultBuilder();
+			paginator.evaluate(conn, "SELECT ?s WHERE { ?s ?p ?o }", rows);
+			List<BindingSet> solutions = QueryResults.asList(rows.getQueryResult());
+			assertEquals(5, solutions.size());
+			for (int i = 0; i < 5; i++)
+				assertEquals("urn:s" + i, solutions.get(i).getValue("s").stringValue());
+
+			Model statements = new LinkedHashModel();
+			paginator.evaluate(conn, "CONSTRUCT { ?s <urn:q> ?o . ?o <urn:r> ?s } WHERE { ?s ?p ?o }", new StatementCollector(statements));
+			assertEquals(10, statements.size());
+		} finally {
+			repo.shutDown();
+		}
+	}
+
+	@Test
+	public void aFailedPageResumesAfterTheRowsPassed() {
+		SailRepository repo = new SailRepository(new MemoryStore());
+		repo.initialize();
+		ValueFactory f = repo.getValueFactory();
+		try (RepositoryConnection conn = repo.getConnection()) {
+			for (int i = 0; i < 5; i++)
+				conn.add(f.createIRI("urn:s" + i), f.createIRI("urn:p"), f.createIRI("urn:o" + i));
+		}
+		// The first query fails after its first row
+		AtomicInteger failures = new AtomicInteger(1);
+		Repository flaky = new RepositoryWrapper(repo) {
+			@Override
+			public RepositoryConnection getConnection() {
+				return new RepositoryConnectionWrapper(this, super.getConnection()) {
+					@Override
+					public TupleQuery prepareTupleQuery(QueryLanguage ql, String query, String baseURI) {
+						TupleQuery tupleQuery = super.prepareTupleQuery(ql, query, baseURI);
+						return failures.getAndDecrement() > 0 ? failingAfterFirstRow(tupleQuery) : tupleQuery;
+					}
+				};
+			}
+		};
+		try (RepositoryConnection conn = flaky.getConnection()) {
+			TupleQueryResultBuilder rows = new TupleQueryResultBuilder();
+			new QueryPaginator(flaky, 3, 1, 1).evaluate(conn, "SELECT ?s WHERE { ?s ?p ?o }", rows);
+			List<BindingSet> solutions = QueryResults.asList(rows.getQueryResult());
+			assertEquals(5, solutions.size());
+			for (int i = 0; i < 5; i++)
+				assertEquals("urn:s" + i, solutions.get(i).getValue("s").stringValue());
+		} finally {
+			repo.shutDown();
+		}
+	}
+
+	private static TupleQuery failingAfterFirstRow(TupleQuery tupleQuery) {
+		return (TupleQuery) Proxy.newProxyInstance(TupleQuery.class.getClassLoader(), new Class<?>[] {TupleQuery.class}, (proxy, method, args) -> {
+			if (!method.getName().equals("evaluate") || args != null)
+				return method.invoke(tupleQuery, args);
+			TupleQueryResult result = tupleQuery.evaluate();
+			return new IteratingTupleQueryResult(result.getBindingNames(), new Iterator<BindingSet>() {
+				private boolean first = true;
+
+				@Override
+				public boolean hasNext() {
+					if (!first)
+						throw new QueryEvaluationException("Connection reset");
+					return result.hasNext();
+				}
+
+				@Override
+				public BindingSet next() {
+					first = false;
+					return result.next();
+				}
+			});
+		});
+	}
+}
@@ -0,0 +1,77 @@
+package nl.unimaas.ids.operations.queries;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class QueryTemplateTest {
+
+	@Test
+	public void insertsTheValueAsIsInAnIri() {
+		assertEquals("INSERT { GRAPH <http://example.org/graph> { ?s ?p ?o } }",
+				resolve("INSERT { GRAPH <?_outputGraph> { ?s ?p ?o } }", "outputGraph", "http://example.org/graph"));
+		assertEquals("SELECT * { <http://example.org/ns#a1> ?p ?o }",
+				resolve("SELECT * { <http://example.org/ns#?_id> ?p ?o }", "id", "a1"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAValueInvalidInAnIri() {
+		resolve("SELECT * { GRAPH <?_g> { ?s ?p ?o } }", "g", "not an iri");
+	}
+
+	@Test
+	public void insertsAnRdfTermElsewhere() {
+		assertEquals("FILTER(?o = <http://example.org/a>)", resolve("FILTER(?o = ?_x)", "x", "http://example.org/a"));
+		assertEquals("FILTER(?o > 4.5)", resolve("FILTER(?o > ?_x)", "x", "4.5"));
+		assertEquals("FILTER(?o = \"say \\\"hi\\\"\")", resolve("FILTER(?o = ?_x)", "x", "say \"hi\""));
+	}
+
+	@Test
+	public void comparisonIsNotAnIri() {
+		assertEquals("FILTER(?o <10 && ?o > 2)", resolve("FILTER(?o <?_max && ?o > 2)", "max", "10"));
+	}
+
+	@Test
+	public void escapesTheValueInAStringLiteral() {
+		assertEquals("FILTER(regex(?o, \"a\\\"b\"))", resolve("FILTER(regex(?o, \"?_x\"))", "x", "a\"b"));
+		assertEquals("FILTER(regex(?o, '^a\\'b'))", resolve("FILTER(regex(?o, '^?_x'))", "x", "a'b"));
+		assertEquals("BIND(\"\"\"x: C:\\\\tmp\"\"\" AS ?v)", resolve("BIND(\"\"\"x: ?_x\"\"\" AS ?v)", "x", "C:\\tmp"));
+		// An IRI value stays a string in a literal
+		assertEquals("BIND(\"http://example.org/a\" AS ?v)", resolve("BIND(\"?_x\" AS ?v)", "x", "http://example.org/a"));
+	}
+
+	@Test
+	public void findsTheEndOfAStringWithEscapedQuotes() {
+		assertEquals("BIND(\"a\\\"b\" AS ?v) FILTER(?o = 1)", resolve("BIND(\"a\\\"?_x\" AS ?v) FILTER(?o = ?_y)", "x", "b", "y", "1"));
+	}
+
+	@Test
+	public void leavesPlaceholdersInCommentsUnchanged() {
+		assertEquals("# graph ?_g\nSELECT * { GRAPH <urn:g> { ?s ?p ?o } }",
+				resolve("# graph ?_g\nSELECT * { GRAPH <?_g> { ?s ?p ?o } }", "g", "urn:g"));
+		// Not a comment in a string
+		assertEquals("BIND(\"#a\" AS ?v)", resolve("BIND(\"#?_x\" AS ?v)", "x", "a"));
+	}
+
+	@Test
+	public void leavesPlaceholdersWithoutValueUnchanged() {
+		assertEquals("SELECT ?_x WHERE { ?s ?p ?_x }", QueryTemplate.get("SELECT ?_x WHERE { ?s ?p ?_x }").resolve(new HashMap<String, String>()));
+	}
+
+	@Test
+	public void listsTheVariablesOnceInOrder() {
+		assertEquals(Arrays.asList("b", "a"), QueryTemplate.get("SELECT * { GRAPH <?_b> { ?s ?_a ?_b } } # ?_c").getVariables());
+	}
+
+	// Resolve with the values of the name and value pairs
+	private static String resolve(String query, String... namesAndValues) {
+		Map<String, String> values = new HashMap<String, String>();
+		for (int i = 0; i < namesAndValues.length; i += 2)
+			values.put(namesAndValues[i], namesAndValues[i + 1]);
+		return QueryTemplate.get(query).resolve(values);
+	}
+}
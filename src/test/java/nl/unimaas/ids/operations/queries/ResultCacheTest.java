@@ -0,0 +1,86 @@
+package nl.unimaas.ids.operations.queries;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.TupleQueryResultHandler;
+import org.eclipse.rdf4j.query.impl.TupleQueryResultBuilder;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.RepositoryException;
+import org.eclipse.rdf4j.repository.base.RepositoryConnectionWrapper;
+import org.eclipse.rdf4j.repository.base.RepositoryWrapper;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResultCacheTest {
+
+	private static final ValueFactory f = SimpleValueFactory.getInstance();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void normalizeRemovesCommentsAndExtraSpaces() {
+		assertEquals("SELECT * WHERE { ?s ?p ?o }", ResultCache.normalize("# all\nSELECT  *\n\tWHERE {\r\n  ?s ?p ?o # triples\n}\n"));
+	}
+
+	@Test
+	public void normalizeKeepsStringsAndIris() {
+		assertEquals("SELECT * WHERE { ?s <http://example.org/ns#p> \"a  # b\" , '''c\n d''' }",
+				ResultCache.normalize("SELECT * WHERE { ?s <http://example.org/ns#p> \"a  # b\" , '''c\n d''' }"));
+		assertEquals("FILTER(?o = \"a\\\"  b\")", ResultCache.normalize("FILTER(?o   =  \"a\\\"  b\")"));
+	}
+
+	@Test
+	public void normalizeKeepsComparisons() {
+		assertEquals("FILTER(?o < 3 && ?o > 1)", ResultCache.normalize("FILTER(?o <  3 &&   ?o > 1)"));
+	}
+
+	@Test
+	public void probedVersionChangesWithTheNumberOfStatements() throws Exception {
+		SailRepository store = new SailRepository(new MemoryStore());
+		store.initialize();
+		// The statements are counted by a query, not by reading them all
+		Repository repo = new RepositoryWrapper(store) {
+			@Override
+			public RepositoryConnection getConnection() throws RepositoryException {
+				return new RepositoryConnectionWrapper(this, super.getConnection()) {
+					@Override
+					public long size(Resource... contexts) throws RepositoryException {
+						throw new UnsupportedOperationException("size reads all the statements");
+					}
+				};
+			}
+		};
+		try (RepositoryConnection conn = store.getConnection()) {
+			conn.add(f.createIRI("urn:s"), f.createIRI("urn:p"), f.createLiteral(1), f.createIRI("urn:g"));
+		}
+		ResultCache cache = new ResultCache(folder.newFolder(), 0, 1 << 20, "http://localhost/sparql", null, null);
+		cache.probeVersion(repo);
+		String query = "SELECT * WHERE { ?s ?p ?o }";
+		try (ResultCache.Entry entry = cache.newEntry(query, false)) {
+			TupleQueryResultHandler writer = entry.getTupleWriter();
+			writer.startQueryResult(Collections.singletonList("s"));
+			writer.endQueryResult();
+			entry.commit();
+		}
+		assertTrue(cache.getTuples(query, new TupleQueryResultBuilder(), f));
+
+		try (RepositoryConnection conn = store.getConnection()) {
+			conn.add(f.createIRI("urn:s"), f.createIRI("urn:p"), f.createLiteral(2), f.createIRI("urn:g"));
+		}
+		cache.dataChanged();
+		assertFalse(cache.getTuples(query, new TupleQueryResultBuilder(), f));
+		store.shutDown();
+	}
+}
@@ -0,0 +1,101 @@
+package nl.unimaas.ids.operations.queries;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
+import org.eclipse.rdf4j.model.util.Models;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SparqlConstructTest {
+
+	private static final String QUERY = "CONSTRUCT { ?s <urn:label> ?o } WHERE { ?s <urn:name> ?o }";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private SailRepository repo;
+
+	private Model expected = new LinkedHashModel();
+
+	@Before
+	public void setUp() {
+		repo = new SailRepository(new MemoryStore());
+		repo.initialize();
+		ValueFactory f = repo.getValueFactory();
+		IRI name = f.createIRI("urn:name");
+		IRI label = f.createIRI("urn:label");
+		try (RepositoryConnection conn = repo.getConnection()) {
+			for (int i = 0; i < 100; i++) {
+				conn.add(f.createIRI("urn:s" + i), name, f.createLiteral("name " + i));
+				expected.add(f.createIRI("urn:s" + i), label, f.createLiteral("name " + i));
+			}
+		}
+	}
+
+	@After
+	public void tearDown() {
+		repo.shutDown();
+	}
+
+	@Test
+	public void writesTheStatementsInTheChosenFormat() throws Exception {
+		SparqlConstruct construct = new SparqlConstruct(repo, null, null, null);
+		construct.setConstructFormat("ntriples");
+		String output = new File(folder.getRoot(), "result").getPath();
+		try (RepositoryConnection conn = repo.getConnection()) {
+			construct.executeQuery(conn, QUERY, output);
+		}
+		assertTrue(Models.isomorphic(expected, read(new File(output + ".nt"), RDFFormat.NTRIPLES, false)));
+	}
+
+	@Test
+	public void compressesTheOutput() throws Exception {
+		SparqlConstruct construct = new SparqlConstruct(repo, null, null, null);
+		construct.setOutputCompression("gzip");
+		String output = new File(folder.getRoot(), "result").getPath();
+		try (RepositoryConnection conn = repo.getConnection()) {
+			construct.executeQuery(conn, QUERY, output);
+		}
+		assertTrue(Models.isomorphic(expected, read(new File(output + ".ttl.gz"), RDFFormat.TURTLE, true)));
+	}
+
+	@Test
+	public void writesTheCachedStatementsLikeTheQueriedOnes() throws Exception {
+		SparqlConstruct construct = new SparqlConstruct(repo, null, null, null);
+		construct.setResultCache(new ResultCache(folder.newFolder("cache"), 0, 1 << 20, "memory", null, "1"));
+		String queried = new File(folder.getRoot(), "queried").getPath();
+		String cached = new File(folder.getRoot(), "cached").getPath();
+		try (RepositoryConnection conn = repo.getConnection()) {
+			construct.executeQuery(conn, QUERY, queried);
+			conn.clear();
+			construct.executeQuery(conn, QUERY, cached);
+		}
+		assertEquals(100, read(new File(cached + ".ttl"), RDFFormat.TURTLE, false).size());
+		assertTrue(Models.isomorphic(read(new File(queried + ".ttl"), RDFFormat.TURTLE, false),
+				read(new File(cached + ".ttl"), RDFFormat.TURTLE, false)));
+	}
+
+	private static Model read(File file, RDFFormat format, boolean gzip) throws Exception {
+		try (InputStream in = gzip ? new GZIPInputStream(new FileInputStream(file)) : new FileInputStream(file)) {
+			return Rio.parse(in, "", format);
+		}
+	}
+}
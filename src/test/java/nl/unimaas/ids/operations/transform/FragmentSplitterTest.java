@@ -0,0 +1,91 @@
+package nl.unimaas.ids.operations.transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class FragmentSplitterTest {
+
+	@Test
+	public void splitsAndStripsTheQuotes() {
+		assertEquals(Arrays.asList("a", "b", "c"), new FragmentSplitter(",", "\"").split("\"a\",b,\"c\""));
+	}
+
+	@Test
+	public void cutsTheFragmentsAtTheFirstParenthesis() {
+		assertEquals(Arrays.asList("aspirin ", "ibuprofen"), new FragmentSplitter(";", "\"").split("aspirin (oral);ibuprofen"));
+		assertEquals(Arrays.asList("aspirin (oral)", "ibuprofen"), new FragmentSplitter(";", "\"", false).split("aspirin (oral);ibuprofen"));
+	}
+
+	@Test
+	public void commaQuoteOnlySplitsBeforeAQuote() {
+		FragmentSplitter splitter = new FragmentSplitter(",\"", "\"");
+		assertEquals(",(?=\")", splitter.getSelectPattern());
+		assertEquals(Arrays.asList("a,b", "c"), splitter.split("\"a,b\",\"c\""));
+	}
+
+	@Test
+	public void pipeIsLiteral() {
+		assertEquals(Arrays.asList("a", "b"), new FragmentSplitter("|", "\"").split("a|b"));
+	}
+
+	@Test
+	public void delimiterCanBeARegex() {
+		assertEquals(Arrays.asList("a", "b", "c"), new FragmentSplitter("\\s*;\\s*", " ").split("a ; b;  c"));
+	}
+
+	@Test
+	public void dropsTheTrailingEmptyFragments() {
+		assertEquals(Arrays.asList("a", "", "b"), new FragmentSplitter(";", " ").split("a;;b;;"));
+	}
+
+	@Test
+	public void keepsAValueWithoutDelimiterWhole() {
+		assertEquals(Arrays.asList("\u00e9t\u00e9"), new FragmentSplitter(";", " ").split("\u00e9t\u00e9"));
+	}
+
+	@Test
+	public void onlyCleansWithoutDelimiter() {
+		FragmentSplitter splitter = new FragmentSplitter(null, "\"");
+		assertNull(splitter.getSelectPattern());
+		assertEquals(Arrays.asList("a;b "), splitter.split("\"a;b (x)\""));
+	}
+
+	@Test
+	public void givesTheFragmentsOfTheFormerSplit() {
+		String[] delimiters = { ",", ";", "|", ",\"", "\\s*;\\s*", "\\|", ".", "ab" };
+		String[] quotes = { "\"", " ", "", "'", "\\*" };
+		String[] values = { "", "a", "a,b", "\"a\",\"b\"", "a;;b;;", ";a;b", "a|b|", "\"x (y)\",z", "'a'; 'b'",
+				"*a*|*b*", "ab", "abab", "\"a\"\n", ",\",\"", "a ; b (c) ;d" };
+		for (String delimiter : delimiters) {
+			for (String quote : quotes) {
+				FragmentSplitter splitter = new FragmentSplitter(delimiter, quote);
+				for (String value : values)
+					assertEquals(delimiter + " " + quote + " " + value, formerSplit(value, delimiter, quote), splitter.split(value));
+			}
+		}
+	}
+
+	// The split of the Split operation before the FragmentSplitter
+	private static List<String> formerSplit(String value, String delimiter, String quote) {
+		String splitPattern = delimiter.equals(",\"") ? ",(?=\")" : delimiter;
+		String[] fragments = value.split(splitPattern);
+		if (splitPattern.equals("|"))
+			fragments = value.split(Pattern.quote(splitPattern));
+		List<String> result = new ArrayList<String>();
+		for (String fragment : fragments) {
+			if (!quote.equals(" "))
+				fragment = fragment.replaceAll("^" + quote + "|" + quote + "$", "");
+			if (fragment.indexOf("(") != -1)
+				fragment = fragment.substring(0, fragment.indexOf("("));
+			result.add(fragment);
+		}
+		return result;
+	}
+}
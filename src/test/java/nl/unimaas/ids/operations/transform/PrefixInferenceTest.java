@@ -0,0 +1,85 @@
+package nl.unimaas.ids.operations.transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.unimaas.ids.operations.transform.PrefixInference.Expansion;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.Test;
+
+public class PrefixInferenceTest {
+
+	private static final ValueFactory f = SimpleValueFactory.getInstance();
+
+	private static final IRI XREF = f.createIRI("http://example.org/vocab/xref");
+
+	private PrefixInference inference = new PrefixInference(f, registry(), XREF.stringValue(), null);
+
+	@Test
+	public void expandsAKnownPrefix() {
+		Expansion expansion = inference.infer(XREF, "DrugBank:DB00001");
+		assertEquals(f.createIRI("http://example.org/vocab/x-drugbank"), expansion.getPredicate());
+		assertEquals(f.createIRI("http://bio2rdf.org/drugbank:DB00001"), expansion.getObject());
+	}
+
+	@Test
+	public void replacesTheAliases() {
+		Expansion expansion = inference.infer(XREF, "UniProtKB:P12345");
+		assertEquals(f.createIRI("http://example.org/vocab/x-uniprot"), expansion.getPredicate());
+		assertEquals(f.createIRI("http://purl.uniprot.org/uniprot/P12345"), expansion.getObject());
+	}
+
+	@Test
+	public void triesTheShorterPrefixes() {
+		Expansion expansion = inference.infer(XREF, "UniProtKB:P12345:2");
+		assertEquals(f.createIRI("http://example.org/vocab/x-uniprot"), expansion.getPredicate());
+		assertEquals(f.createIRI("http://purl.uniprot.org/uniprot/P12345:2"), expansion.getObject());
+	}
+
+	@Test
+	public void cutsTheValueAtTheFirstParenthesis() {
+		assertEquals(f.createIRI("http://bio2rdf.org/drugbank:DB00001"), inference.infer(XREF, "DrugBank:DB00001(aspirin)").getObject());
+	}
+
+	@Test
+	public void linksAnUnknownPrefixAsAReference() {
+		Expansion expansion = inference.infer(XREF, "Unknown:42");
+		assertEquals(f.createIRI("http://example.org/vocab/x-ref"), expansion.getPredicate());
+		assertEquals(f.createLiteral("Unknown:42"), expansion.getObject());
+		assertTrue(inference.getAvailablePrefixes().containsKey("unknown"));
+	}
+
+	@Test
+	public void keepsAValueWithoutPrefix() {
+		Expansion expansion = inference.infer(XREF, "aspirin");
+		assertEquals(XREF, expansion.getPredicate());
+		assertEquals(f.createLiteral("aspirin"), expansion.getObject());
+	}
+
+	@Test
+	public void usesTheGivenPredicateNamespace() {
+		PrefixInference withPrefix = new PrefixInference(f, registry(), XREF.stringValue(), "http://example.org/links/");
+		assertEquals(f.createIRI("http://example.org/links/x-drugbank"), withPrefix.infer(XREF, "drugbank:DB00001").getPredicate());
+	}
+
+	@Test
+	public void bundlesTheRegistry() throws Exception {
+		PrefixRegistry bundled = PrefixRegistry.get(null);
+		assertTrue(bundled.size() > 2000);
+		assertEquals("http://purl.uniprot.org/core/", bundled.getNamespace(bundled.getPrefix("uniprotkb")));
+	}
+
+	private static PrefixRegistry registry() {
+		Map<String, String> namespaces = new HashMap<String, String>();
+		namespaces.put("drugbank", "http://bio2rdf.org/drugbank:");
+		namespaces.put("uniprot", "http://purl.uniprot.org/uniprot/");
+		return new PrefixRegistry(namespaces, Collections.singletonMap("UniProtKB", "uniprot"));
+	}
+}
@@ -0,0 +1,89 @@
+package nl.unimaas.ids.operations.transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.Test;
+
+public class TransformRuleTest {
+
+	@Test
+	public void parsesALineOfTheSplitFile() {
+		TransformRule rule = TransformRule.parse(Arrays.asList("urn:C", "urn:p", ","));
+		assertTrue(rule.isSplitFileLine());
+		assertTrue(rule.isLegacySplit());
+		assertEquals(",", rule.getDelimiter());
+		assertEquals(Arrays.asList("split:,", "trim:\"", "strip-parenthetical"), rule.getSteps());
+	}
+
+	@Test
+	public void parsesTransformations() {
+		TransformRule rule = TransformRule.parse(Arrays.asList("urn:C", "urn:p", "split:,", "trim:\"", "strip-parenthetical"));
+		assertFalse(rule.isSplitFileLine());
+		assertTrue(rule.isLegacySplit());
+		assertFalse(rule.isExpansion());
+
+		rule = TransformRule.parse(Arrays.asList("urn:C", "urn:p", "trim", "expand-curie:http://example.org/"));
+		assertNull(rule.getDelimiter());
+		assertFalse(rule.isLegacySplit());
+		assertTrue(rule.isExpansion());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAnUnknownTransformation() {
+		new TransformRule("urn:C", "urn:p", Arrays.asList("split:,", "lowercase"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsTransformationsOutOfOrder() {
+		TransformRule.parse(Arrays.asList("urn:C", "urn:p", "trim", "split:,"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsTwoExpansions() {
+		TransformRule.parse(Arrays.asList("urn:C", "urn:p", "expand-prefix:http://example.org/", "expand-curie"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsASplitWithoutDelimiter() {
+		TransformRule.parse(Arrays.asList("urn:C", "urn:p", "split"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsALineWithoutTransformation() {
+		TransformRule.parse(Arrays.asList("urn:C", "urn:p"));
+	}
+
+	@Test
+	public void splitsTheValuesContainingTheDelimiter() {
+		TransformRule rule = TransformRule.parse(Arrays.asList("urn:C", "urn:p", "split:;", "trim", "strip-parenthetical"));
+		rule.prepare(SimpleValueFactory.getInstance(), null, 0);
+		assertTrue(rule.appliesTo("a;b"));
+		assertFalse(rule.appliesTo("ab"));
+		// The text before "(" is kept as it is, with its spaces
+		assertEquals(Arrays.asList("a", "b ", "c"), transform(rule, "\"a\";b (note);\"c\""));
+	}
+
+	@Test
+	public void appliesToAllTheValuesWithoutSplit() {
+		TransformRule rule = TransformRule.parse(Arrays.asList("urn:C", "urn:p", "strip-parenthetical", "expand-prefix:http://example.org/"));
+		rule.prepare(SimpleValueFactory.getInstance(), null, 0);
+		assertNull(rule.getSelectPattern());
+		assertTrue(rule.appliesTo("anything"));
+		assertEquals(Arrays.asList("DB00001"), transform(rule, "DB00001(drug)"));
+		assertEquals("http://example.org/DB00001", rule.expand(null, "DB00001").getObject().stringValue());
+	}
+
+	private static List<String> transform(TransformRule rule, String value) {
+		List<String> values = new ArrayList<String>();
+		rule.transform(value, values::add);
+		return values;
+	}
+}